@@ -0,0 +1,121 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the aggregations of YoutubeAnalytics over an index of generated comments.
+ *
+ * pagedStoredFieldsByUser is the way these answers were computed before (paging through the
+ * hits and reading the user ID and like count of each one from the stored fields), for
+ * comparison with byUser.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AnalyticsBenchmark {
+
+  private static final int PAGE_SIZE = 1000;
+  private static final Set<String> PAGED_FIELDS = 
+      new HashSet<String>(Arrays.asList("userId", "likeCount"));
+
+  @Param({"200000"})
+  public int numComments;
+
+  private Path indexPath;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+  private final Query all = new MatchAllDocsQuery();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    indexPath = Files.createTempDirectory("youtube-benchmark-index");
+    new CommentCorpus(42, 100, 10000).writeIndex(indexPath, numComments);
+
+    reader = DirectoryReader.open(FSDirectory.open(indexPath));
+    searcher = ParallelIndexSearcher.create(reader, true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    reader.close();
+    for (File file : indexPath.toFile().listFiles()) {
+      file.delete();
+    }
+    indexPath.toFile().delete();
+  }
+
+  @Benchmark
+  public YoutubeAnalytics.Result totals() throws IOException {
+    return YoutubeAnalytics.aggregate(searcher, all, null, 0);
+  }
+
+  @Benchmark
+  public YoutubeAnalytics.Result byUser() throws IOException {
+    return YoutubeAnalytics.aggregate(searcher, all, YoutubeAnalytics.Key.USER, 0);
+  }
+
+  @Benchmark
+  public YoutubeAnalytics.Result byDay() throws IOException {
+    return YoutubeAnalytics.aggregate(searcher, all, YoutubeAnalytics.Key.DAY, 0);
+  }
+
+  @Benchmark
+  public YoutubeAnalytics.Result topCommentsByVideo() throws IOException {
+    return YoutubeAnalytics.aggregate(searcher, all, YoutubeAnalytics.Key.VIDEO, 3);
+  }
+
+  @Benchmark
+  public Map<String, long[]> pagedStoredFieldsByUser() throws IOException {
+    Map<String, long[]> groups = new HashMap<String, long[]>();
+    TopDocs docs = searcher.search(all, PAGE_SIZE);
+    while (docs.scoreDocs.length != 0) {
+      for (ScoreDoc hit : docs.scoreDocs) {
+        Document doc = searcher.doc(hit.doc, PAGED_FIELDS);
+        long[] group = groups.get(doc.get("userId"));
+        if (group == null) {
+          group = new long[2];
+          groups.put(doc.get("userId"), group);
+        }
+        ++group[0];
+        group[1] += doc.getField("likeCount").numericValue().longValue();
+      }
+      docs = searcher.searchAfter(docs.scoreDocs[docs.scoreDocs.length - 1], all, PAGE_SIZE);
+    }
+    return groups;
+  }
+
+}
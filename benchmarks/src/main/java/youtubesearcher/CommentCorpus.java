@@ -0,0 +1,238 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import youtubesearcher.YoutubeIndexer.Comment;
+import youtubesearcher.YoutubeIndexer.CommentsPage;
+import youtubesearcher.YoutubeIndexer.Video;
+
+/**
+ * Deterministic generator of realistic Youtube comments for benchmarks.
+ *
+ * Comments are generated in the same JSON shape as the responses of the Youtube Data API, so
+ * they go through the same parsing code as the real crawl. Words are drawn from a Zipf-like
+ * distribution so that common words have long postings lists, like in real comments.
+ */
+class CommentCorpus {
+
+  private static final String[] VOCABULARY = {
+    "the", "i", "this", "song", "is", "a", "and", "to", "you", "it", "of", "love", "my", "in",
+    "so", "that", "for", "me", "who", "still", "listening", "best", "ever", "2019", "video",
+    "like", "when", "was", "one", "good", "music", "just", "all", "his", "her", "voice", "never",
+    "gets", "old", "beautiful", "amazing", "can't", "stop", "anyone", "here", "after", "years",
+    "remember", "childhood", "memories", "goosebumps", "every", "time", "hear", "legend", "part",
+    "chorus", "lyrics", "perfect", "masterpiece", "underrated", "deserves", "more", "views",
+    "subscribers", "first", "comment", "thanks", "uploading", "live", "version", "better",
+    "original", "cover", "guitar", "drums", "bass", "solo", "dance", "cried", "wedding", "mom",
+    "dad", "brother", "sister", "friend", "miss", "rip", "king", "queen", "vibes", "mood", "lol",
+    "omg", "wow", "fire", "classic", "generation", "nostalgia", "summer", "night", "radio"
+  };
+
+  private static final String[] EMOJIS = {"😂", "❤️", "🔥", "😭", "👏"};
+
+  private final Random random;
+  private final int numVideos;
+  private final int numUsers;
+  private int nextCommentId = 0;
+
+  CommentCorpus(long seed, int numVideos, int numUsers) {
+    this.random = new Random(seed);
+    this.numVideos = numVideos;
+    this.numUsers = numUsers;
+  }
+
+  /**
+   * Draw a word index with probability roughly proportional to 1 / (rank + 1).
+   */
+  private int zipfWord() {
+    double u = random.nextDouble();
+    return (int) (Math.pow(VOCABULARY.length + 1, u)) - 1;
+  }
+
+  String commentText() {
+    int length = 3 + random.nextInt(random.nextInt(10) == 0 ? 60 : 15);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < length; ++i) {
+      if (i != 0) text.append(' ');
+      text.append(VOCABULARY[Math.min(zipfWord(), VOCABULARY.length - 1)]);
+    }
+    if (random.nextInt(4) == 0) {
+      text.append(' ').append(EMOJIS[random.nextInt(EMOJIS.length)]);
+    }
+    return text.toString();
+  }
+
+  static String videoId(int video) {
+    return String.format("vid%08d", video);
+  }
+
+  static String userId(int user) {
+    return String.format("UCuser%016d", user);
+  }
+
+  static String channelId(int channel) {
+    return String.format("UCchannel%013d", channel);
+  }
+
+  private JsonObject commentSnippet(String videoId) {
+    int user = random.nextInt(numUsers);
+    JsonObject snippet = new JsonObject();
+    snippet.addProperty("videoId", videoId);
+    snippet.addProperty("textDisplay", commentText());
+    snippet.addProperty("textOriginal", commentText());
+    snippet.addProperty("authorDisplayName", "User Name " + user);
+    snippet.addProperty("authorProfileImageUrl",
+                        "https://yt3.ggpht.com/a/" + userId(user) + "=s28-c-k-no-mo-rj-c0xffffff");
+    snippet.addProperty("authorChannelUrl", "http://www.youtube.com/channel/" + userId(user));
+    JsonObject authorChannelId = new JsonObject();
+    authorChannelId.addProperty("value", userId(user));
+    snippet.add("authorChannelId", authorChannelId);
+    snippet.addProperty("canRate", true);
+    snippet.addProperty("viewerRating", "none");
+    snippet.addProperty("likeCount", random.nextInt(20) == 0 ? random.nextInt(100000)
+                                                             : random.nextInt(10));
+    snippet.addProperty("publishedAt", "2019-0" + (1 + random.nextInt(9)) + "-1"
+                                       + random.nextInt(10) + "T12:34:56.000Z");
+    snippet.addProperty("updatedAt", "2019-10-10T12:34:56.000Z");
+    return snippet;
+  }
+
+  /**
+   * Generate the JSON body of one commentThreads page.
+   *
+   * @param numThreads Number of comment threads in the page.
+   * @return The JSON body.
+   */
+  String topLevelPageJson(int numThreads) {
+    JsonObject root = new JsonObject();
+    root.addProperty("kind", "youtube#commentThreadListResponse");
+    root.addProperty("nextPageToken", "QURTSl9pMFpFNzlQVWt" + random.nextInt(1000000));
+    JsonArray items = new JsonArray();
+    for (int i = 0; i < numThreads; ++i) {
+      String commentId = "Ugz" + (nextCommentId++);
+      String videoId = videoId(random.nextInt(numVideos));
+      JsonObject topLevelComment = new JsonObject();
+      topLevelComment.addProperty("kind", "youtube#comment");
+      topLevelComment.addProperty("id", commentId);
+      topLevelComment.add("snippet", commentSnippet(videoId));
+      JsonObject snippet = new JsonObject();
+      snippet.addProperty("videoId", videoId);
+      snippet.add("topLevelComment", topLevelComment);
+      snippet.addProperty("canReply", true);
+      snippet.addProperty("totalReplyCount", random.nextInt(3) == 0 ? random.nextInt(5) : 0);
+      snippet.addProperty("isPublic", true);
+      JsonObject thread = new JsonObject();
+      thread.addProperty("kind", "youtube#commentThread");
+      thread.addProperty("id", commentId);
+      thread.add("snippet", snippet);
+      items.add(thread);
+    }
+    root.add("items", items);
+    return root.toString();
+  }
+
+  /**
+   * Generate the JSON of a video (as returned by the videos API).
+   */
+  static JsonObject videoJson(int video) {
+    JsonObject thumbnail = new JsonObject();
+    thumbnail.addProperty("url", "https://i.ytimg.com/vi/" + videoId(video) + "/default.jpg");
+    JsonObject thumbnails = new JsonObject();
+    thumbnails.add("default", thumbnail);
+    JsonObject snippet = new JsonObject();
+    snippet.addProperty("title", "Official Music Video Number " + video + " (Remastered in HD)");
+    snippet.add("thumbnails", thumbnails);
+    snippet.addProperty("channelId", channelId(video % 10));
+    snippet.addProperty("channelTitle", "Channel " + (video % 10));
+    JsonObject videoJson = new JsonObject();
+    videoJson.addProperty("id", videoId(video));
+    videoJson.add("snippet", snippet);
+    return videoJson;
+  }
+
+  /**
+   * Generate parsed comments (as the indexer would produce them).
+   *
+   * @param numComments Number of comments.
+   * @return The comments.
+   */
+  List<Comment> comments(int numComments) {
+    List<Comment> comments = new ArrayList<Comment>(numComments);
+    while (comments.size() < numComments) {
+      CommentsPage page = YoutubeIndexer.parseCommentsPage(topLevelPageJson(100));
+      JsonArray items = page.getComments();
+      for (int i = 0; i < items.size() && comments.size() < numComments; ++i) {
+        comments.add(Comment.parseTopLevelComment(items.get(i).getAsJsonObject()));
+      }
+    }
+    return comments;
+  }
+
+  /**
+   * Build an index of generated comments on disk.
+   *
+   * @param indexPath Path of the index directory.
+   * @param numComments Number of comments to index.
+   * @throws IOException
+   */
+  void writeIndex(Path indexPath, int numComments) throws IOException {
+    writeIndex(indexPath, numComments, false);
+  }
+
+  /**
+   * Build an index of generated comments on disk.
+   *
+   * @param indexPath Path of the index directory.
+   * @param numComments Number of comments to index.
+   * @param shingles Whether to index the shingles of the comment text (indexer option -sh).
+   * @throws IOException
+   */
+  void writeIndex(Path indexPath, int numComments, boolean shingles) throws IOException {
+    writeIndex(indexPath, numComments, shingles, null);
+  }
+
+  /**
+   * Build an index of generated comments on disk.
+   *
+   * @param indexPath Path of the index directory.
+   * @param numComments Number of comments to index.
+   * @param shingles Whether to index the shingles of the comment text (indexer option -sh).
+   * @param indexSort Order of the comments in the segments (indexer option -is), or null.
+   * @throws IOException
+   */
+  void writeIndex(Path indexPath, int numComments, boolean shingles, Sort indexSort) 
+                                                                      throws IOException {
+    Video[] videos = new Video[numVideos];
+    for (int i = 0; i < numVideos; ++i) {
+      videos[i] = Video.parseVideoInfo(videoJson(i));
+    }
+    IndexWriterConfig config = new IndexWriterConfig(
+        PhraseShingles.indexAnalyzer(PartialMatch.indexAnalyzer(new StandardAnalyzer())));
+    if (indexSort != null) config.setIndexSort(indexSort);
+    try (Directory directory = FSDirectory.open(indexPath);
+         IndexWriter indexWriter = new IndexWriter(directory, config)) {
+      for (Comment comment : comments(numComments)) {
+        int video = Integer.parseInt(comment.getVideoId().substring(3));
+        Document doc = YoutubeIndexer.makeDoc(comment, videos[video]);
+        if (shingles) PhraseShingles.addField(doc);
+        YoutubeIndexer.addDoc(indexWriter, doc);
+      }
+    }
+  }
+
+}
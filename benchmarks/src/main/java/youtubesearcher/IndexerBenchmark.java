@@ -0,0 +1,96 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.RAMDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.JsonArray;
+
+import youtubesearcher.YoutubeIndexer.Comment;
+import youtubesearcher.YoutubeIndexer.CommentsPage;
+import youtubesearcher.YoutubeIndexer.Video;
+
+/**
+ * Benchmarks of the indexer hot loop: parsing downloaded pages and adding comments to the index.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexerBenchmark {
+
+  private static final int BATCH_SIZE = 1000;
+
+  private String topLevelPageJson; // one full (100 threads) commentThreads page
+  private List<Comment> comments;  // one batch of parsed comments
+  private Video video;
+
+  private RAMDirectory directory;
+  private IndexWriter indexWriter;
+
+  @Setup(Level.Trial)
+  public void setUpCorpus() {
+    CommentCorpus corpus = new CommentCorpus(42, 100, 10000);
+    topLevelPageJson = corpus.topLevelPageJson(100);
+    comments = corpus.comments(BATCH_SIZE);
+    video = Video.parseVideoInfo(CommentCorpus.videoJson(0));
+  }
+
+  @Setup(Level.Iteration)
+  public void setUpIndex() throws IOException {
+    directory = new RAMDirectory();
+    indexWriter = new IndexWriter(directory, new IndexWriterConfig(
+        PartialMatch.indexAnalyzer(new StandardAnalyzer())));
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDownIndex() throws IOException {
+    indexWriter.close();
+    directory.close();
+  }
+
+  /**
+   * Parse a commentThreads page and all top-level comments in it.
+   */
+  @Benchmark
+  public void parseTopLevelPage(Blackhole blackhole) {
+    CommentsPage page = YoutubeIndexer.parseCommentsPage(topLevelPageJson);
+    JsonArray items = page.getComments();
+    for (int i = 0; i < items.size(); ++i) {
+      blackhole.consume(Comment.parseTopLevelComment(items.get(i).getAsJsonObject()));
+    }
+  }
+
+  /**
+   * Build the Documents of a batch of comments and add them to the index (ops/s = docs/s).
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void addDocs() throws IOException {
+    for (Comment comment : comments) {
+      YoutubeIndexer.addDoc(indexWriter, comment, video);
+    }
+  }
+
+}
@@ -0,0 +1,123 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of phrase queries on the comment text, over an index of generated comments without
+ * (before) and with (after) the shingles of indexer option -shingles.
+ *
+ * The phrases are parsed like the retriever does; without shingles they are matched on the
+ * positions of the words, as before the option existed. phraseLog replays a log of the phrases
+ * people search for (lines and fixed expressions of common words), the other benchmarks search
+ * one phrase of each kind.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhraseQueryBenchmark {
+
+  private static final String[] PHRASE_LOG = {
+    "\"love song\"", "\"best song ever\"", "\"still listening\"", "\"never gets old\"",
+    "\"i love you\"", "\"my childhood memories\"", "\"who is still listening\"",
+    "\"best music video ever\"", "\"goosebumps every time\"", "\"part of my childhood\"",
+    "\"rip legend\"", "\"this song is a masterpiece\"", "\"so beautiful\"", "\"me and my mom\""
+  };
+
+  @Param({"100000"})
+  public int numComments;
+
+  @Param({"false", "true"})
+  public boolean shingles;
+
+  private Path indexPath;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+  private Query[] phraseLog;
+  private Query twoWordPhrase;
+  private Query longPhrase;
+  private Query stopWordPhrase;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    indexPath = Files.createTempDirectory("youtube-benchmark-index");
+    new CommentCorpus(42, 100, 10000).writeIndex(indexPath, numComments, shingles);
+
+    reader = DirectoryReader.open(FSDirectory.open(indexPath));
+    searcher = new IndexSearcher(reader);
+    phraseLog = new Query[PHRASE_LOG.length];
+    for (int i = 0; i < PHRASE_LOG.length; ++i) {
+      phraseLog[i] = parse(PHRASE_LOG[i]);
+    }
+    twoWordPhrase = parse("\"love song\"");
+    longPhrase = parse("\"i still love you\"");
+    stopWordPhrase = parse("\"part of my childhood\"");
+  }
+
+  private static Query parse(String queryString) throws Exception {
+    return new PhraseShingles.Parser(new StandardAnalyzer()).parse(queryString);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    reader.close();
+    for (File file : indexPath.toFile().listFiles()) {
+      file.delete();
+    }
+    indexPath.toFile().delete();
+  }
+
+  /**
+   * First page of results of every phrase of the log (the average time is per log replay).
+   */
+  @Benchmark
+  public long phraseLog() throws IOException {
+    long totalHits = 0;
+    for (Query query : phraseLog) {
+      totalHits += YoutubeRetriever.searchPage(searcher, query, 1, 10).totalHits;
+    }
+    return totalHits;
+  }
+
+  @Benchmark
+  public TopDocs twoWordPhrase() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, twoWordPhrase, 1, 10);
+  }
+
+  @Benchmark
+  public TopDocs longPhrase() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, longPhrase, 1, 10);
+  }
+
+  @Benchmark
+  public TopDocs stopWordPhrase() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, stopWordPhrase, 1, 10);
+  }
+
+}
@@ -0,0 +1,126 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.highlight.InvalidTokenOffsetsException;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the retriever: query parsing, searching, deep pagination, highlighting and
+ * rendering a full page of results, over an index of generated comments.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RetrieverBenchmark {
+
+  private static final String HIGHLIGHT_TEXT =
+      "i still love this song after all these years, the chorus gives me goosebumps every time";
+
+  @Param({"100000"})
+  public int numComments;
+
+  @Param({"love", "\"this song\"", "best song ever"})
+  public String commentQuery;
+
+  @Param({"HTML", "JSON"})
+  public String format;
+
+  private Path indexPath;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+  private YoutubeRetriever retriever;
+  private YoutubeRetriever deepPageRetriever;
+  private Query query;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    indexPath = Files.createTempDirectory("youtube-benchmark-index");
+    new CommentCorpus(42, 100, 10000).writeIndex(indexPath, numComments);
+
+    reader = DirectoryReader.open(FSDirectory.open(indexPath));
+    searcher = new IndexSearcher(reader);
+    retriever = newRetriever(1);
+    deepPageRetriever = newRetriever(50);
+    query = retriever.buildQuery();
+  }
+
+  private YoutubeRetriever newRetriever(int page) {
+    YoutubeRetriever youtubeRetriever = new YoutubeRetriever();
+    youtubeRetriever.parseArgs(new String[] {
+      "-i", indexPath.toString(), "-q", commentQuery,
+      "-p", String.valueOf(page), "-m", "10", "-f", format, "-w", "/search"
+    });
+    youtubeRetriever.initialize();
+    return youtubeRetriever;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    reader.close();
+    for (File file : indexPath.toFile().listFiles()) {
+      file.delete();
+    }
+    indexPath.toFile().delete();
+  }
+
+  @Benchmark
+  public Query parseQuery() throws Exception {
+    return retriever.buildQuery();
+  }
+
+  @Benchmark
+  public TopDocs search() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, query, 1, 10);
+  }
+
+  @Benchmark
+  public TopDocs deepPagination() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, query, 50, 10);
+  }
+
+  @Benchmark
+  public String highlight() throws IOException, InvalidTokenOffsetsException {
+    return YoutubeRetriever.getHighlightedField(query, new StandardAnalyzer(),
+                                                "commentText", HIGHLIGHT_TEXT);
+  }
+
+  /**
+   * A whole retriever request (open the index, search, highlight, look up parents and render).
+   */
+  @Benchmark
+  public int renderPage() {
+    return retriever.search(new NullWriter());
+  }
+
+  @Benchmark
+  public int renderDeepPage() {
+    return deepPageRetriever.search(new NullWriter());
+  }
+
+}
@@ -0,0 +1,117 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the comments most similar to a comment (retriever option -similar-to), through
+ * the similarity graph (graphSearch) and by comparing the comment to every vector (exactSearch),
+ * over an index of generated comments.
+ *
+ * The queries are the texts of comments of the index. The setup prints the recall of the graph,
+ * the fraction of the 10 most similar comments found by the exact search that the graph finds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimilarCommentsBenchmark {
+
+  private static final int NUM_QUERIES = 100;
+  private static final int NUM_NEIGHBORS = 10;
+
+  @Param({"100000"})
+  public int numComments;
+
+  private Path indexPath;
+  private SimilarComments similarComments;
+  private final String[] queries = new String[NUM_QUERIES];
+  private int nextQuery;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    indexPath = Files.createTempDirectory("youtube-benchmark-index");
+    new CommentCorpus(42, 100, 10000).writeIndex(indexPath, numComments);
+    SimilarComments.update(indexPath.toFile());
+
+    DirectoryReader reader = DirectoryReader.open(FSDirectory.open(indexPath));
+    Random random = new Random(42);
+    for (int i = 0; i < NUM_QUERIES; ++i) {
+      queries[i] = reader.document(random.nextInt(reader.maxDoc())).get("commentText");
+    }
+    reader.close();
+    similarComments = SimilarComments.open(Collections.singletonList(indexPath.toFile()),
+                                           IndexShards.DirectoryMode.AUTO);
+
+    double recall = 0;
+    for (String query : queries) {
+      List<SimilarComments.Neighbor> exact = similarComments.searchExact(query, NUM_NEIGHBORS);
+      Set<String> exactIds = new HashSet<String>();
+      for (SimilarComments.Neighbor neighbor : exact) {
+        exactIds.add(neighbor.commentId);
+      }
+      int found = 0;
+      for (SimilarComments.Neighbor neighbor : similarComments.search(query, NUM_NEIGHBORS)) {
+        if (exactIds.contains(neighbor.commentId)) ++found;
+      }
+      recall += found / (double) exact.size();
+    }
+    System.out.printf("%nRecall@%d of the graph: %.3f%n", NUM_NEIGHBORS, recall / NUM_QUERIES);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    similarComments.close();
+    File graphDir = SimilarComments.graphDir(indexPath.toFile());
+    for (File file : graphDir.listFiles()) {
+      file.delete();
+    }
+    graphDir.delete();
+    for (File file : indexPath.toFile().listFiles()) {
+      file.delete();
+    }
+    indexPath.toFile().delete();
+  }
+
+  private String nextQuery() {
+    nextQuery = (nextQuery + 1) % NUM_QUERIES;
+    return queries[nextQuery];
+  }
+
+  @Benchmark
+  public List<SimilarComments.Neighbor> graphSearch() throws IOException {
+    return similarComments.search(nextQuery(), NUM_NEIGHBORS);
+  }
+
+  @Benchmark
+  public List<SimilarComments.Neighbor> exactSearch() throws IOException {
+    return similarComments.searchExact(nextQuery(), NUM_NEIGHBORS);
+  }
+
+}
@@ -0,0 +1,97 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the most liked comments (retriever option -sort LIKES), over an index of
+ * generated comments in the order they were added (before) and sorted by likes (after, indexer
+ * option -index-sort LIKES).
+ *
+ * On the sorted index every segment stops after the hits of the page, so the time depends on
+ * the page rather than on the number of matches: allComments matches every comment,
+ * commonWord about half of them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SortedSearchBenchmark {
+
+  private static final Sort LIKES = YoutubeRetriever.SortOrder.LIKES.sort;
+
+  @Param({"200000"})
+  public int numComments;
+
+  @Param({"false", "true"})
+  public boolean indexSort;
+
+  private Path indexPath;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+  private final Query all = new MatchAllDocsQuery();
+  private final Query commonWord = new TermQuery(new Term("commentText", "song"));
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    indexPath = Files.createTempDirectory("youtube-benchmark-index");
+    new CommentCorpus(42, 100, 10000).writeIndex(indexPath, numComments, false,
+                                                 indexSort ? LIKES : null);
+
+    reader = DirectoryReader.open(FSDirectory.open(indexPath));
+    searcher = new IndexSearcher(reader);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    reader.close();
+    for (File file : indexPath.toFile().listFiles()) {
+      file.delete();
+    }
+    indexPath.toFile().delete();
+  }
+
+  @Benchmark
+  public TopDocs allComments() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, all, 1, 10, LIKES, null);
+  }
+
+  @Benchmark
+  public TopDocs commonWord() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, commonWord, 1, 10, LIKES, null);
+  }
+
+  @Benchmark
+  public TopDocs commonWordPage5() throws IOException {
+    return YoutubeRetriever.searchPage(searcher, commonWord, 5, 10, LIKES, null);
+  }
+
+}
@@ -86,7 +86,7 @@ if [[ -n "$QUERY_STRING" ]]; then
     # (Also note that you cannot add an & at the end of the exec command. It will break the program. However 
     # you CAN add a & INSIDE the process substitution, but it is not necessary, as the process substitution itself
     # is already running in the background.)
-    exec 3< <(java -cp "${classpath}/args4j-2.33.jar:${classpath}/jsoup-1.11.3/jsoup-1.11.3.jar:${classpath}/lucene-6.6.0/core/lucene-core-6.6.0.jar:${classpath}/gson-2.6.2.jar:${classpath}:bin:." youtubesearcher.YoutubeIndexer -p "$indexpath" "$indexScopeFlag" -i "$indexScopeId" -k "$API_KEY" \
+    exec 3< <(java -cp "${classpath}/args4j-2.33.jar:${classpath}/jsoup-1.11.3/jsoup-1.11.3.jar:${classpath}/lucene-6.6.0/core/lucene-core-6.6.0.jar:${classpath}/lucene-6.6.0/analysis/common/lucene-analyzers-common-6.6.0.jar:${classpath}/lucene-6.6.0/join/lucene-join-6.6.0.jar:${classpath}/gson-2.6.2.jar:${classpath}:bin:." youtubesearcher.YoutubeIndexer -p "$indexpath" "$indexScopeFlag" -i "$indexScopeId" -k "$API_KEY" \
               2>&1 | nc seashells.io 1337)
     sleep 0.1                                  # sleep 100ms to make sure the output by nc (our URL) is already written to fd3.
     read <&3 discard discard indexProgressUrl  # Read one line from fd3 and assign content starting from the 3rd token to $indexProgressUrl.
@@ -124,6 +124,15 @@ if [[ -n "$QUERY_STRING" ]]; then
                 | sed 's/+/ /g' | sed 's/%2B/+/g' | sed 's/%22/\"/g' | sed 's/%20/ /g'`
   channelIdQuery=`echo $QUERY_STRING | sed -n 's/^.*channelIdQuery=\([^&]*\).*$/\1/p' \
                 | sed 's/+/ /g' | sed 's/%2B/+/g' | sed 's/%22/\"/g' | sed 's/%20/ /g'`
+  replyQuery=`echo $QUERY_STRING | sed -n 's/^.*replyQuery=\([^&]*\).*$/\1/p' \
+                | sed 's/+/ /g' | sed 's/%2B/+/g' | sed 's/%22/\"/g' | sed 's/%20/ /g'`
+  fromDate=`echo $QUERY_STRING | sed -n 's/^.*fromDate=\([^&]*\).*$/\1/p'`
+  toDate=`echo $QUERY_STRING | sed -n 's/^.*toDate=\([^&]*\).*$/\1/p'`
+  sort=`echo $QUERY_STRING | sed -n 's/^.*sort=\([^&]*\).*$/\1/p'`
+  collapseDuplicates=`echo $QUERY_STRING | sed -n 's/^.*collapseDuplicates=\([^&]*\).*$/\1/p'`
+  groupBy=`echo $QUERY_STRING | sed -n 's/^.*groupBy=\([^&]*\).*$/\1/p'`
+  groupHits=`echo $QUERY_STRING | sed -n 's/^.*groupHits=\([^&]*\).*$/\1/p'`
+  similarTo=`echo $QUERY_STRING | sed -n 's/^.*similarTo=\([^&]*\).*$/\1/p'`
   page=`echo $QUERY_STRING | sed -n 's/^.*page=\([^&]*\).*$/\1/p'`
   max=`echo $QUERY_STRING | sed -n 's/^.*max=\([^&]*\).*$/\1/p'`
 
@@ -133,13 +142,33 @@ if [[ -n "$QUERY_STRING" ]]; then
   if [[ -z "$max" ]]; then
     max=10
   fi
+  # Options carried by the pagination and suggestion links, passed only when set
+  options=()
+  [[ -n "$replyQuery" ]] && options+=(-rq "$replyQuery")
+  [[ -n "$fromDate" ]] && options+=(-from "$fromDate")
+  [[ -n "$toDate" ]] && options+=(-to "$toDate")
+  [[ -n "$sort" ]] && options+=(-s "$sort")
+  [[ -n "$collapseDuplicates" ]] && options+=(-cd)
+  [[ -n "$groupBy" ]] && options+=(-g "$groupBy")
+  [[ -n "$groupHits" ]] && options+=(-gh "$groupHits")
+  [[ -n "$similarTo" ]] && options+=(-st "$similarTo")
 
   if [[ ( -n "$commentQuery" ) || ( -n "$usernameQuery" ) || ( -n "$userIdQuery" ) || ( -n "$videoTitleQuery" ) \
-        || ( -n "$videoIdQuery" ) || ( -n "$channelTitleQuery" ) || ( -n "$channelIdQuery" ) ]]; then
+        || ( -n "$videoIdQuery" ) || ( -n "$channelTitleQuery" ) || ( -n "$channelIdQuery" ) \
+        || ( -n "$similarTo" ) ]]; then
     classpath="/home/ct1856/public_html/java-bin/"
     indexpath="/home/ct1856/public_html/WSE-project-index-files/index"
     dictionarypath="/home/ct1856/public_html/WSE-project-index-files/dictionary_index"
-    java -cp "${classpath}/args4j-2.33.jar:${classpath}/jsoup-1.11.3/jsoup-1.11.3.jar:${classpath}/lucene-6.6.0/core/lucene-core-6.6.0.jar:${classpath}/lucene-6.6.0/queryparser/lucene-queryparser-6.6.0.jar:${classpath}/lucene-6.6.0/highlighter/lucene-highlighter-6.6.0.jar:${classpath}/lucene-6.6.0/memory/lucene-memory-6.6.0.jar:${classpath}/lucene-6.6.0/suggest/lucene-suggest-6.6.0.jar:${classpath}/gson-2.6.2.jar:${classpath}:bin:." youtubesearcher.YoutubeRetriever -i "$indexpath" -d "$dictionarypath" -w "$SCRIPT_NAME" -q "$commentQuery" -un "$usernameQuery" -ui "$userIdQuery" -vt "$videoTitleQuery" -vi "$videoIdQuery" -ct "$channelTitleQuery" -ci "$channelIdQuery" -p "$page" -m "$max"
+    errorFile=$(mktemp)
+    java -cp "${classpath}/args4j-2.33.jar:${classpath}/jsoup-1.11.3/jsoup-1.11.3.jar:${classpath}/lucene-6.6.0/core/lucene-core-6.6.0.jar:${classpath}/lucene-6.6.0/analysis/common/lucene-analyzers-common-6.6.0.jar:${classpath}/lucene-6.6.0/queryparser/lucene-queryparser-6.6.0.jar:${classpath}/lucene-6.6.0/highlighter/lucene-highlighter-6.6.0.jar:${classpath}/lucene-6.6.0/memory/lucene-memory-6.6.0.jar:${classpath}/lucene-6.6.0/suggest/lucene-suggest-6.6.0.jar:${classpath}/lucene-6.6.0/join/lucene-join-6.6.0.jar:${classpath}/lucene-6.6.0/grouping/lucene-grouping-6.6.0.jar:${classpath}/gson-2.6.2.jar:${classpath}:bin:." youtubesearcher.YoutubeRetriever -i "$indexpath" -d "$dictionarypath" -w "$SCRIPT_NAME" -q "$commentQuery" -un "$usernameQuery" -ui "$userIdQuery" -vt "$videoTitleQuery" -vi "$videoIdQuery" -ct "$channelTitleQuery" -ci "$channelIdQuery" -p "$page" -m "$max" "${options[@]}" 2> "$errorFile"
+    status=$?
+    if [[ $status -ne 0 ]]; then
+      # Show why the search failed (e.g. a query that can't be parsed) instead of a blank page
+      echo "<p><b>The search failed.</b><br><pre>"
+      sed 's/&/\&amp;/g; s/</\&lt;/g; s/>/\&gt;/g' "$errorFile"
+      echo "</pre></p>"
+    fi
+    rm -f "$errorFile"
   fi
 fi
 
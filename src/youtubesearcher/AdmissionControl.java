@@ -0,0 +1,79 @@
+package youtubesearcher;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control of the requests of a SearchNode: a fixed number of requests are served
+ * concurrently, and the others wait in a bounded queue.
+ *
+ * Requests that can't be served in time are shed instead of piling up: a request arriving when
+ * the queue is full, or that waited in the queue longer than the queue timeout, is still run
+ * (so that it gets an answer) but with a rejection reason, for which the handler answers at
+ * once without searching (see rejection()). The latency of the admitted requests then stays
+ * bounded by the queue timeout plus their own search time, however many requests arrive, and
+ * the coordinator can fail over to another replica.
+ */
+class AdmissionControl implements Executor {
+
+  private final ThreadPoolExecutor executor;
+  private final long queueTimeoutNanos;
+  private final ThreadLocal<String> rejection = new ThreadLocal<String>();
+
+  /**
+   * @param numThreads Number of requests served concurrently.
+   * @param queueSize Number of requests that can wait for a thread.
+   * @param queueTimeoutMillis Longest wait for a thread, in milliseconds.
+   */
+  AdmissionControl(int numThreads, int queueSize, long queueTimeoutMillis) {
+    executor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                                      new ArrayBlockingQueue<Runnable>(queueSize));
+    queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+  }
+
+  @Override
+  public void execute(final Runnable task) {
+    final long queuedTime = System.nanoTime();
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          long waitNanos = System.nanoTime() - queuedTime;
+          Metrics.timer("node.queue").record(waitNanos);
+          if (waitNanos > queueTimeoutNanos) {
+            Metrics.counter("node.shed").increment();
+            runRejected(task, "waited too long in the queue");
+          } else {
+            task.run();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // The queue is full: answer right away on the calling (dispatcher) thread
+      Metrics.counter("node.rejected").increment();
+      runRejected(task, "queue full");
+    }
+  }
+
+  private void runRejected(Runnable task, String reason) {
+    rejection.set(reason);
+    try {
+      task.run();
+    } finally {
+      rejection.remove();
+    }
+  }
+
+  /**
+   * Get the reason why the request run by the current thread is rejected.
+   *
+   * @return The reason, or null if the request is admitted.
+   */
+  String rejection() {
+    return rejection.get();
+  }
+
+}
@@ -0,0 +1,151 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Progress of a channel crawled by partitions (indexer options -threads and -checkpoint): the
+ * partitions (videos, and the discussion of the channel) whose comments are all in the index.
+ *
+ * A partition is only recorded once the index has been committed after it was crawled, so an
+ * interrupted crawl resumed from the checkpoint skips exactly the partitions that are safely in
+ * the index, and crawls the others (including the ones that were in progress) from the start.
+ * The file is written as JSON, to a temporary file first and then moved over the old one, so it
+ * is never left half-written.
+ */
+class CrawlCheckpoint {
+
+  private static final Gson GSON = new Gson();
+  private static final long SAVE_INTERVAL_MILLIS = 30 * 1000;
+
+  /**
+   * Contents of the checkpoint file
+   */
+  private static class State {
+    String channelId;
+    List<String> donePartitions = new ArrayList<String>();
+  }
+
+  private final File file;
+  private final String channelId;
+  private final Set<String> done = new LinkedHashSet<String>(); // committed and recorded
+  private final List<String> completed = new ArrayList<String>(); // crawled, not committed yet
+  private long lastSaveTime = System.currentTimeMillis();
+
+  private CrawlCheckpoint(File file, String channelId) {
+    this.file = file;
+    this.channelId = channelId;
+  }
+
+  /**
+   * Load the checkpoint of a channel crawl.
+   *
+   * @param file The checkpoint file, or null to keep the progress in memory only.
+   * @param channelId The crawled channel. A checkpoint of another channel is ignored.
+   * @return The checkpoint (empty if the file does not exist yet).
+   * @throws IOException Error reading the file.
+   */
+  static CrawlCheckpoint load(File file, String channelId) throws IOException {
+    CrawlCheckpoint checkpoint = new CrawlCheckpoint(file, channelId);
+    if (file == null || ! file.exists()) return checkpoint;
+    State state;
+    try {
+      state = GSON.fromJson(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8),
+                            State.class);
+    } catch (JsonParseException e) {
+      System.err.println("Ignoring malformed checkpoint file " + file);
+      return checkpoint;
+    }
+    if (state == null || ! channelId.equals(state.channelId)) {
+      System.err.println("Ignoring checkpoint file " + file + " of another channel.");
+      return checkpoint;
+    }
+    checkpoint.done.addAll(state.donePartitions);
+    return checkpoint;
+  }
+
+  /**
+   * Check whether a partition was crawled and committed by an earlier run.
+   *
+   * @param partition The ID of the partition (video ID, or channel ID for the discussion).
+   */
+  synchronized boolean isDone(String partition) {
+    return done.contains(partition);
+  }
+
+  /**
+   * Get the number of partitions recorded as done.
+   */
+  synchronized int numDone() {
+    return done.size();
+  }
+
+  /**
+   * Report that all comments of a partition were added to the index (not committed yet).
+   *
+   * @param partition The ID of the partition.
+   */
+  synchronized void completed(String partition) {
+    completed.add(partition);
+  }
+
+  /**
+   * Check whether the completed partitions should be committed and recorded now.
+   */
+  synchronized boolean isDue() {
+    return ! completed.isEmpty()
+           && System.currentTimeMillis() - lastSaveTime >= SAVE_INTERVAL_MILLIS;
+  }
+
+  /**
+   * Take the partitions completed so far, to be recorded by save() once the index is committed.
+   *
+   * @return The completed partitions.
+   */
+  synchronized List<String> takeCompleted() {
+    List<String> partitions = new ArrayList<String>(completed);
+    completed.clear();
+    return partitions;
+  }
+
+  /**
+   * Record partitions as done and write the checkpoint file.
+   *
+   * @param committed Partitions (from takeCompleted()) whose comments are committed.
+   * @throws IOException Error writing the file.
+   */
+  synchronized void save(List<String> committed) throws IOException {
+    done.addAll(committed);
+    lastSaveTime = System.currentTimeMillis();
+    if (file == null) return;
+    State state = new State();
+    state.channelId = channelId;
+    state.donePartitions.addAll(done);
+    Path path = file.toPath().toAbsolutePath();
+    Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.write(tempPath, GSON.toJson(state).getBytes(StandardCharsets.UTF_8));
+    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Delete the checkpoint file, once the crawl is complete.
+   *
+   * @throws IOException
+   */
+  void delete() throws IOException {
+    if (file != null) Files.deleteIfExists(file.toPath());
+  }
+
+}
@@ -0,0 +1,136 @@
+package youtubesearcher;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Log of the records of the Youtube API that could not be parsed (dead letters), one JSON object
+ * per line: {"time": ..., "kind": ..., "error": ..., "record": {...}}, where "record" is the
+ * record exactly as received, so that it can be re-ingested once the parser handles it.
+ *
+ * Records are handed over to a background thread through a bounded queue and written in batches
+ * with one open file, so a crawl is never slowed down by bad records. If the queue is full (the
+ * disk can't keep up), records are dropped and counted instead of blocking the crawl.
+ */
+class DeadLetterLog implements Closeable {
+
+  private static final Gson GSON = new Gson();
+  private static final int QUEUE_CAPACITY = 10000;
+  private static final int MAX_BATCH_SIZE = 1000;
+  private static final String END = new String("END"); // tells the writer thread to stop
+
+  private final File file;
+  private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_CAPACITY);
+  private final Thread writerThread;
+
+  /**
+   * Start a dead-letter log.
+   *
+   * @param file The log file (created with its directory if needed, appended to otherwise).
+   */
+  DeadLetterLog(File file) {
+    this.file = file;
+    writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeBatches();
+      }
+    }, "dead-letter-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  /**
+   * Log a record that could not be parsed. Never blocks.
+   *
+   * @param kind What the record is, e.g. "topLevelComment".
+   * @param record The record as received.
+   * @param error The parse error.
+   */
+  void add(String kind, JsonElement record, Exception error) {
+    JsonObject line = new JsonObject();
+    line.addProperty("time", System.currentTimeMillis());
+    line.addProperty("kind", kind);
+    line.addProperty("error", error.getCause() == null ? error.toString()
+                              : error.getMessage() + ": " + error.getCause());
+    line.add("record", record);
+    if (queue.offer(GSON.toJson(line))) {
+      Metrics.counter("indexer.deadLetters").increment();
+    } else {
+      Metrics.counter("indexer.deadLettersDropped").increment();
+    }
+  }
+
+  /**
+   * Write the queued records until close(), a batch (all records queued so far) at a time.
+   */
+  private void writeBatches() {
+    BufferedWriter writer = null;
+    List<String> batch = new ArrayList<String>();
+    try {
+      while (true) {
+        batch.clear();
+        batch.add(queue.take());
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        boolean end = batch.remove(END);
+        if (! batch.isEmpty()) {
+          if (writer == null) writer = open();
+          for (String line : batch) {
+            writer.write(line);
+            writer.newLine();
+          }
+          writer.flush();
+        }
+        if (end) break;
+      }
+    } catch (IOException e) {
+      System.err.println("Error writing the dead-letter log " + file + ": " + e);
+      queue.clear();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      if (writer != null) {
+        try {
+          writer.close();
+        } catch (IOException e) {
+          System.err.println("Error closing the dead-letter log " + file);
+        }
+      }
+    }
+  }
+
+  private BufferedWriter open() throws IOException {
+    File dir = file.getAbsoluteFile().getParentFile();
+    if (dir != null) dir.mkdirs();
+    return Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                                   StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Write the remaining records and stop the writer thread.
+   */
+  @Override
+  public void close() {
+    if (! writerThread.isAlive()) return; // stopped by a write error
+    try {
+      queue.put(END);
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,273 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.packed.GrowableWriter;
+import org.apache.lucene.util.packed.PackedInts;
+
+/**
+ * Columnar cache of the IDs and counts of the comments of every segment, for searchers kept
+ * open by long-running processes (see ResidentSearcherManager).
+ *
+ * For every ID field, a column maps each doc ID to the ordinal of its value in the (sorted) terms
+ * dictionary of the segment, bit-packed to the number of distinct values; the values themselves
+ * are kept once as UTF-8 bytes. The counts are int arrays. A segment's columns are built from
+ * its terms and doc values (the counts from the stored fields of segments indexed before they
+ * had doc values) the first time one of its documents is rendered, and dropped when the segment
+ * is closed, e.g. after it was merged away. Since deletions don't change a segment's core, the
+ * columns also hold deleted documents; lookups check the live docs of the current reader.
+ *
+ * With the columns, hits are rendered without decoding their IDs and counts from the stored
+ * fields, and parents are only looked up (in the postings of their commentId) in the segments
+ * whose commentId dictionary has them, found by a binary search, instead of by a query.
+ */
+class DocColumns {
+
+  /** ID fields held as ordinal columns */
+  static final String[] ID_FIELDS = {"commentId", "parentId", "videoId", "userId"};
+  /** Count fields held as int columns */
+  static final String[] COUNT_FIELDS = {"likeCount", "replyCount"};
+
+  private static final Map<Object, DocColumns> CACHE = new ConcurrentHashMap<Object, DocColumns>();
+
+  private final IdColumn[] idColumns = new IdColumn[ID_FIELDS.length];
+  private final int[][] countColumns = new int[COUNT_FIELDS.length][];
+
+  /**
+   * Values of an ID field: the distinct values in term order, and the ordinal of every doc.
+   */
+  private static class IdColumn {
+    private byte[] bytes = new byte[0]; // UTF-8 bytes of all values, in term order
+    private int[] offsets = new int[1]; // start of every value in bytes (plus the end)
+    private int numValues = 0;
+    private final GrowableWriter ords;  // ordinal + 1 of the value of every doc (0 if none)
+
+    IdColumn(LeafReader reader, String field) throws IOException {
+      ords = new GrowableWriter(1, Math.max(reader.maxDoc(), 1), PackedInts.COMPACT);
+      Terms terms = reader.terms(field);
+      if (terms == null) return;
+      TermsEnum termsEnum = terms.iterator();
+      PostingsEnum postings = null;
+      BytesRef term;
+      while ((term = termsEnum.next()) != null) {
+        bytes = ArrayUtil.grow(bytes, offsets[numValues] + term.length);
+        System.arraycopy(term.bytes, term.offset, bytes, offsets[numValues], term.length);
+        offsets = ArrayUtil.grow(offsets, numValues + 2);
+        offsets[numValues + 1] = offsets[numValues] + term.length;
+        postings = termsEnum.postings(postings, PostingsEnum.NONE);
+        int doc;
+        while ((doc = postings.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          ords.set(doc, numValues + 1);
+        }
+        ++numValues;
+      }
+    }
+
+    /**
+     * Get the value of a doc, or null if it has none.
+     */
+    String get(int doc) {
+      int ord = (int) ords.get(doc) - 1;
+      if (ord < 0) return null;
+      return new String(bytes, offsets[ord], offsets[ord + 1] - offsets[ord],
+                        StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check whether a doc (live or deleted) has a value.
+     */
+    boolean contains(BytesRef value) {
+      BytesRef scratch = new BytesRef(bytes, 0, 0);
+      int low = 0;
+      int high = numValues - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        scratch.offset = offsets[mid];
+        scratch.length = offsets[mid + 1] - offsets[mid];
+        int cmp = scratch.compareTo(value);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private DocColumns(LeafReader reader) throws IOException {
+    for (int i = 0; i < ID_FIELDS.length; ++i) {
+      idColumns[i] = new IdColumn(reader, ID_FIELDS[i]);
+    }
+    loadCounts(reader);
+  }
+
+  /**
+   * Load the count columns, from doc values where the segment has them.
+   */
+  private void loadCounts(LeafReader reader) throws IOException {
+    final int maxDoc = reader.maxDoc();
+    boolean needStoredFields = false;
+    for (int i = 0; i < COUNT_FIELDS.length; ++i) {
+      countColumns[i] = new int[maxDoc];
+      FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(COUNT_FIELDS[i]);
+      if (fieldInfo != null && fieldInfo.getDocValuesType() == DocValuesType.NUMERIC) {
+        NumericDocValues values = reader.getNumericDocValues(COUNT_FIELDS[i]);
+        Bits docsWithField = reader.getDocsWithField(COUNT_FIELDS[i]);
+        for (int doc = 0; doc < maxDoc; ++doc) {
+          countColumns[i][doc] = (int) values.get(doc);
+          // Merged from a segment without doc values
+          if (! docsWithField.get(doc)) needStoredFields = true;
+        }
+      } else {
+        needStoredFields = true;
+      }
+    }
+    if (! needStoredFields) return;
+
+    // Older segments: read the counts (only) from the stored fields, once
+    for (int doc = 0; doc < maxDoc; ++doc) {
+      final int docId = doc;
+      reader.document(doc, new StoredFieldVisitor() {
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+          return countIndex(fieldInfo.name) >= 0 ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void intField(FieldInfo fieldInfo, int value) {
+          countColumns[countIndex(fieldInfo.name)][docId] = value;
+        }
+
+        @Override
+        public void longField(FieldInfo fieldInfo, long value) {
+          countColumns[countIndex(fieldInfo.name)][docId] = (int) value;
+        }
+      });
+    }
+  }
+
+  private static int countIndex(String field) {
+    for (int i = 0; i < COUNT_FIELDS.length; ++i) {
+      if (COUNT_FIELDS[i].equals(field)) return i;
+    }
+    return -1;
+  }
+
+  private static int idIndex(String field) {
+    for (int i = 0; i < ID_FIELDS.length; ++i) {
+      if (ID_FIELDS[i].equals(field)) return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Get the columns of a segment, building them on first use.
+   *
+   * @param reader The reader of the segment.
+   * @return The columns.
+   * @throws IOException
+   */
+  static DocColumns get(LeafReader reader) throws IOException {
+    Object key = reader.getCoreCacheKey();
+    DocColumns columns = CACHE.get(key);
+    if (columns != null) return columns;
+
+    long startTime = System.nanoTime();
+    columns = new DocColumns(reader);
+    Metrics.timer("retriever.columnsBuild").record(System.nanoTime() - startTime);
+    DocColumns existing = CACHE.putIfAbsent(key, columns);
+    if (existing != null) return existing;
+    reader.addCoreClosedListener(new LeafReader.CoreClosedListener() {
+      @Override
+      public void onClose(Object ownerCoreCacheKey) {
+        CACHE.remove(ownerCoreCacheKey);
+      }
+    });
+    return columns;
+  }
+
+  /**
+   * Find the live doc of a comment in the index.
+   *
+   * @param reader The top-level reader.
+   * @param commentId The comment ID.
+   * @return The doc ID of the comment, or -1 if it is not indexed.
+   * @throws IOException
+   */
+  static int findComment(IndexReader reader, String commentId) throws IOException {
+    Term term = new Term(ID_FIELDS[0], commentId);
+    for (LeafReaderContext leaf : reader.leaves()) {
+      if (! get(leaf.reader()).idColumns[0].contains(term.bytes())) continue;
+      // Older versions of an updated comment are deleted, but can be anywhere in the segment
+      // (after the live one in a sorted index)
+      PostingsEnum postings = leaf.reader().postings(term, PostingsEnum.NONE);
+      if (postings == null) continue;
+      Bits liveDocs = leaf.reader().getLiveDocs();
+      for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+           doc = postings.nextDoc()) {
+        if (liveDocs == null || liveDocs.get(doc)) return leaf.docBase + doc;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Load the stored fields of a doc, with the IDs and counts taken from the columns.
+   *
+   * @param reader The top-level reader.
+   * @param docId The doc ID.
+   * @return The document, with the same fields as IndexReader.document().
+   * @throws IOException
+   */
+  static Document document(IndexReader reader, int docId) throws IOException {
+    List<LeafReaderContext> leaves = reader.leaves();
+    LeafReaderContext leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+    int doc = docId - leaf.docBase;
+    DocColumns columns = get(leaf.reader());
+
+    DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor() {
+      @Override
+      public Status needsField(FieldInfo fieldInfo) throws IOException {
+        if (idIndex(fieldInfo.name) >= 0 || countIndex(fieldInfo.name) >= 0) return Status.NO;
+        return super.needsField(fieldInfo);
+      }
+    };
+    leaf.reader().document(doc, visitor);
+    Document document = visitor.getDocument();
+    for (int i = 0; i < ID_FIELDS.length; ++i) {
+      String value = columns.idColumns[i].get(doc);
+      if (value != null) document.add(new StoredField(ID_FIELDS[i], value));
+    }
+    for (int i = 0; i < COUNT_FIELDS.length; ++i) {
+      document.add(new StoredField(COUNT_FIELDS[i], columns.countColumns[i][doc]));
+    }
+    return document;
+  }
+
+}
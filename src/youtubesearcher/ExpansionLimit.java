@@ -0,0 +1,71 @@
+package youtubesearcher;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.AttributeSource;
+
+/**
+ * Limit on the number of terms a wildcard, prefix, fuzzy or range query expands to (retriever
+ * option -max-terms).
+ *
+ * A pattern like "a*" on the comment text matches a large part of the terms dictionary, and
+ * searching it means reading the postings of every one of these terms. Before such a query is
+ * searched, its terms are counted (up to the limit) and the query is rejected with a
+ * TooManyTermsException if there are more; otherwise it is rewritten like the query parser does
+ * by default (constant score).
+ */
+class ExpansionLimit extends MultiTermQuery.RewriteMethod {
+
+  /**
+   * Thrown when searching a query that expands to more terms than the limit.
+   */
+  static class TooManyTermsException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    TooManyTermsException(MultiTermQuery query, int maxTerms) {
+      super("The query " + query + " matches more than " + maxTerms + " terms.");
+    }
+  }
+
+  private final int maxTerms;
+
+  /**
+   * @param maxTerms The maximum number of terms of a query, over all segments of the index.
+   */
+  ExpansionLimit(int maxTerms) {
+    this.maxTerms = maxTerms;
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+    // A term in several segments is counted once per segment, which is what the search costs
+    int numTerms = 0;
+    for (LeafReaderContext context : reader.leaves()) {
+      Terms terms = context.reader().terms(query.getField());
+      if (terms == null) continue;
+      TermsEnum termsEnum = getTermsEnum(query, terms, new AttributeSource());
+      while (termsEnum.next() != null) {
+        if (++numTerms > maxTerms) throw new TooManyTermsException(query, maxTerms);
+      }
+    }
+    return MultiTermQuery.CONSTANT_SCORE_REWRITE.rewrite(reader, query);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    // Equal limits keep equal queries equal, for the filter cache
+    return other instanceof ExpansionLimit && maxTerms == ((ExpansionLimit) other).maxTerms;
+  }
+
+  @Override
+  public int hashCode() {
+    return maxTerms;
+  }
+
+}
@@ -0,0 +1,293 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.lucene.document.Document;
+
+/**
+ * Renders search results as an HTML snippet to be embedded in the search engine webpage.
+ *
+ * All values coming from the index or from user input are escaped before being written.
+ */
+class HtmlResultRenderer extends ResultRenderer {
+
+  private static final int PEEK_RANGE = 9; // number of page links shown on each side of the page
+
+  private final String webpageUrl;     // URL of the search engine webpage
+  private final String linkParameters; // URL-encoded filter parameters of re-search links
+
+  /*
+   * State of the page being rendered
+   */
+  private String commentQuery_urlEncoded;
+  private int numTotalHits;
+  private int page;
+  private int hitsPerPage;
+
+  HtmlResultRenderer(Writer out, String webpageUrl, String linkParameters) {
+    super(out);
+    this.webpageUrl = webpageUrl == null ? "" : webpageUrl;
+    this.linkParameters = linkParameters == null ? "" : linkParameters;
+  }
+
+  @Override
+  void beginResults(String commentQuery, String suggestion,
+                    int numTotalHits, int page, int hitsPerPage) throws IOException {
+    this.commentQuery_urlEncoded = urlEncode(commentQuery);
+    this.numTotalHits = numTotalHits;
+    this.page = page;
+    this.hitsPerPage = hitsPerPage;
+
+    out.write("<h2>Results for query <u>");
+    writeEscaped(commentQuery);
+    out.write("</u>\n");
+    if (suggestion != null) {
+      out.write("(Or did you mean <a href=\"");
+      writeEscaped(webpageUrl);
+      out.write("?commentQuery=");
+      out.write(urlEncode(suggestion));
+      out.write(linkParameters);
+      out.write("&max=");
+      out.write(Integer.toString(hitsPerPage));
+      out.write("\">");
+      writeEscaped(suggestion);
+      out.write("</a>?)\n");
+    }
+    out.write("</h2>\n");
+    if (! unavailableNodes.isEmpty()) {
+      out.write("<p><i>Partial results: ");
+      out.write(Integer.toString(unavailableNodes.size()));
+      out.write(" search node(s) did not answer.</i></p>\n");
+    }
+    if (timedOut) {
+      out.write("<p><i>Partial results: the search took too long.</i></p>\n");
+    }
+
+    writePagination();
+  }
+
+  @Override
+  void result(int rank, float score, Document doc,
+              String highlightedText, Document parentDoc) throws IOException {
+    String videoId = field(doc, "videoId");
+    String parentId = field(doc, "parentId");
+
+    // The font is the same as that used by Youtube comments
+    out.write("<p style='font-family:Roboto,Arial,sans-serif;'>"
+              + "<span style='font-size:1.3rem;font-weight:bold;'><i>");
+    out.write(Integer.toString(rank));
+    out.write("</i>. <a href=\"https://www.youtube.com/channel/");
+    writeEscaped(field(doc, "userId"));
+    out.write("\"><img src=\"");
+    writeEscaped(field(doc, "profilePicture"));
+    out.write("\" width=20 height=20>");
+    writeEscaped(field(doc, "userName"));
+    out.write("</a></span> commented:<br>"
+              + "<table style='font-family:Roboto,Arial,sans-serif;'>"
+              + "<td valign='top'><a href=\"https://www.youtube.com/watch?v=");
+    writeEscaped(videoId);
+    out.write("\"><img src=\"");
+    writeEscaped(field(doc, "videoThumbnail"));
+    out.write("\"></a></td>"
+              + "<td valign='top'><a href=\"https://www.youtube.com/watch?v=");
+    writeEscaped(videoId);
+    out.write("&lc=");
+    writeEscaped(field(doc, "commentId"));
+    out.write("\"><span style='font-size:1.0rem;margin-left:2em;'>\"");
+    if (highlightedText != null) {
+      out.write(highlightedText); // Already escaped by the highlighter
+    } else {
+      writeEscaped(field(doc, "commentText"));
+    }
+    out.write("\"</span></a>");
+
+    if (! parentId.isEmpty()) {
+      out.write("<span style='font-size:0.7rem;font-weight:bold;'>"
+                + "<br>&nbsp in reply to the following comment by "
+                + "<a href=\"https://www.youtube.com/channel/");
+      writeEscaped(parentDoc == null ? "Not Indexed" : field(parentDoc, "userId"));
+      out.write("\">");
+      writeEscaped(parentDoc == null ? "Not Indexed" : field(parentDoc, "userName"));
+      out.write("</a>: <br></span><a href=\"https://www.youtube.com/watch?v=");
+      writeEscaped(videoId);
+      out.write("&lc=");
+      writeEscaped(parentId);
+      out.write("\"><span style='font-size:0.9rem;margin-left:2em;'>\"");
+      writeEscaped(parentDoc == null ? "Not Indexed" : field(parentDoc, "commentText"));
+      out.write("\"</span></a>");
+    }
+
+    out.write("<span style='font-size:1.0rem;font-weight:bold;'><br>&nbsp on video titled: </span>"
+              + "<a href=\"https://www.youtube.com/watch?v=");
+    writeEscaped(videoId);
+    out.write("\"><span style='font-size:1.0rem;font-weight:bold;'>");
+    writeEscaped(field(doc, "videoTitle"));
+    out.write("</span></a><span style='font-size:0.7rem;font-weight:bold;'>"
+              + "<br>&nbsp from channel: <a href=\"https://www.youtube.com/channel/");
+    writeEscaped(field(doc, "channelId"));
+    out.write("\">");
+    writeEscaped(field(doc, "channelTitle"));
+    out.write("</a><br></span></td></table></p>\n");
+  }
+
+  @Override
+  void beginGroup(int rank, YoutubeRetriever.GroupBy groupBy, String groupValue, 
+                  int numHits) throws IOException {
+    out.write("<div style='font-family:Roboto,Arial,sans-serif;'>"
+              + "<h3><i>");
+    out.write(Integer.toString(rank));
+    out.write("</i>. ");
+    out.write(Integer.toString(numHits));
+    if (groupBy == YoutubeRetriever.GroupBy.VIDEO) {
+      out.write(" matching comments on <a href=\"https://www.youtube.com/watch?v=");
+      writeEscaped(groupValue);
+      out.write("\">this video</a>:</h3>\n");
+    } else {
+      out.write(" matching comments in the thread of comment ");
+      writeEscaped(groupValue);
+      out.write(":</h3>\n");
+    }
+    out.write("<div style='margin-left:2em;'>\n");
+  }
+
+  @Override
+  void endGroup() throws IOException {
+    out.write("</div></div>\n");
+  }
+
+  @Override
+  void endResults() throws IOException {
+    writePagination();
+    out.flush();
+  }
+
+  /**
+   * Write the interactive pagination
+   */
+  private void writePagination() throws IOException {
+    if (numTotalHits == 0) return;
+
+    int lastPage = numTotalHits / hitsPerPage + (numTotalHits % hitsPerPage != 0 ? 1 : 0);
+    if (totalHitsLowerBound && numTotalHits >= page * hitsPerPage) {
+      lastPage = Math.max(lastPage, page + 1); // the hits after this page were not counted
+    }
+    if (maxDepth > 0) {
+      lastPage = Math.min(lastPage, Math.max(maxDepth / hitsPerPage, 1));
+    }
+
+    if (lastPage != 1) {
+      out.write("&nbsp&nbsp");
+      if (page != 1) {
+        writePageLink(1, "First");
+        out.write("&nbsp&nbsp");
+        writePageLink(page - 1, "Prev");
+      }
+
+      if (page > 1 + PEEK_RANGE) {
+        out.write(" ...");
+      } else {
+        out.write("&nbsp&nbsp");
+      }
+
+      for (int i = Math.max(page - PEEK_RANGE, 1); i < page; ++i) {
+        writePageLink(i, String.valueOf(i));
+        out.write("&nbsp&nbsp");
+      }
+
+      out.write(String.valueOf(page));
+
+      for (int i = page + 1; i <= Math.min(page + PEEK_RANGE, lastPage); ++i) {
+        out.write("&nbsp&nbsp");
+        writePageLink(i, String.valueOf(i));
+      }
+
+      if (page < lastPage - PEEK_RANGE) {
+        out.write("... ");
+      } else {
+        out.write("&nbsp&nbsp");
+      }
+
+      if (page != lastPage) {
+        writePageLink(page + 1, "Next");
+        if (! totalHitsLowerBound) {
+          out.write("&nbsp&nbsp");
+          writePageLink(lastPage, "Last");
+        }
+      }
+    }
+
+    out.write("<br><span style='margin-left:1em'>Displaying results ");
+    out.write(Integer.toString(hitsPerPage * (page - 1) + 1));
+    out.write(" ~ ");
+    out.write(Integer.toString(hitsPerPage * (page - 1) + hitsPerPage));
+    out.write(" (page ");
+    out.write(Integer.toString(page));
+    if (! totalHitsLowerBound) {
+      out.write(" of ");
+      out.write(Integer.toString(lastPage));
+    }
+    out.write(")<br></span>\n");
+  }
+
+  /**
+   * Write the HTML hyperlink for a page
+   *
+   * @param pageNumber The page number to link to.
+   * @param anchorText The anchor text to display for the link.
+   */
+  private void writePageLink(int pageNumber, String anchorText) throws IOException {
+    out.write("<a href=\"");
+    writeEscaped(webpageUrl);
+    out.write("?page=");
+    out.write(Integer.toString(pageNumber));
+    out.write("&max=");
+    out.write(Integer.toString(hitsPerPage));
+    out.write("&commentQuery=");
+    out.write(commentQuery_urlEncoded);
+    out.write(linkParameters);
+    out.write("\">");
+    out.write(anchorText);
+    out.write("</a>");
+  }
+
+  /**
+   * Write a value escaped for use in HTML text and (double or single quoted) attribute values.
+   * The characters are escaped on the fly without building an intermediate String.
+   */
+  private void writeEscaped(String value) throws IOException {
+    if (value == null) return;
+    int start = 0;
+    for (int i = 0; i < value.length(); ++i) {
+      String replacement;
+      switch (value.charAt(i)) {
+        case '&':  replacement = "&amp;";  break;
+        case '<':  replacement = "&lt;";   break;
+        case '>':  replacement = "&gt;";   break;
+        case '"':  replacement = "&quot;"; break;
+        case '\'': replacement = "&#39;";  break;
+        default:   continue;
+      }
+      out.write(value, start, i - start);
+      out.write(replacement);
+      start = i + 1;
+    }
+    out.write(value, start, value.length() - start);
+  }
+
+  /**
+   * URL Encode a user input for use in a re-search link.
+   */
+  static String urlEncode(String value) {
+    if (value == null) return "";
+    try {
+      return URLEncoder.encode(value, StandardCharsets.UTF_8.toString());
+    } catch (UnsupportedEncodingException ex) {
+      return value;
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Replicator that keeps a read-only copy of an index up to date with the commits published by
+ * the indexer (option -snapshot, see IndexSnapshots).
+ *
+ * Only the files of the published commit that the replica doesn't have yet are copied. The
+ * segments file, which makes the new commit visible, is copied last under a temporary name and
+ * renamed, so a retriever opening the replica at any time sees either the previous commit or the
+ * new one as a whole. Files of older commits are deleted afterwards; searchers still using them
+ * keep them open. A sharded index is replicated shard by shard into the same layout, and the
+ * metadata index of a compact index along with the shard it belongs to. The similarity graph of
+ * a sub-index (indexer option -similar, see SimilarComments) is copied after the index it refers
+ * to, whole and renamed into place the same way, whenever it changed.
+ */
+public class IndexReplicator {
+
+  /*
+   * command-line arguments for the entry point
+   */
+  @Option(name = "-source", aliases = "-s", required = true,
+          usage = "Path to the index written by the indexer. Required option.")
+  private File sourceDir;
+
+  @Option(name = "-target", aliases = "-t", required = true,
+          usage = "Path to the replica to update. Required option.")
+  private File targetDir;
+
+  @Option(name = "-interval", aliases = "-n",
+          usage = "Check for new commits every this many seconds. "
+                  + "0 (default) replicates once and exits.")
+  private int intervalSeconds = 0;
+
+  @Option(name = "-help", aliases = "-h", help = true,
+          usage = "Print help text.")
+  private boolean printHelp = false;
+
+  private static final String PENDING_PREFIX = "pending_";
+
+  @SuppressWarnings("deprecation")
+  private int parseArgs(String[] args) {
+    final CmdLineParser args4jCmdLineParser = new CmdLineParser(this);
+    try {
+      args4jCmdLineParser.parseArgument(args);
+      if (intervalSeconds < 0)
+        throw new CmdLineException("The interval must not be negative.");
+    } catch (final CmdLineException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 2;
+    }
+
+    if (printHelp) {
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Replicate once, or forever with an interval.
+   *
+   * @return status code (0 for success).
+   */
+  private int run() {
+    while (true) {
+      int status = replicateAll();
+      if (intervalSeconds == 0) return status;
+      try {
+        TimeUnit.SECONDS.sleep(intervalSeconds);
+      } catch (InterruptedException e) {
+        return status;
+      }
+    }
+  }
+
+  /**
+   * Replicate every shard of the source index.
+   *
+   * @return status code (0 for success).
+   */
+  private int replicateAll() {
+    int status = 0;
+    for (File shardDir : IndexShards.indexDirs(sourceDir)) {
+      File replicaDir = shardDir.equals(sourceDir) ? targetDir
+                                                  : new File(targetDir, shardDir.getName());
+      // The metadata of a compact index first, so the replica never has comments without it
+      File metadataDir = MetadataStore.metadataDir(shardDir);
+      if (metadataDir.isDirectory()) {
+        status = Math.max(status, replicateDir(metadataDir, MetadataStore.metadataDir(replicaDir)));
+      }
+      int shardStatus = replicateDir(shardDir, replicaDir);
+      status = Math.max(status, shardStatus);
+      // The similarity graph after the index, so the comments it finds are in the replica
+      File graphDir = SimilarComments.graphDir(shardDir);
+      if (shardStatus == 0 && new File(graphDir, SimilarComments.FILE_NAME).isFile()) {
+        status = Math.max(status, replicateGraph(graphDir, SimilarComments.graphDir(replicaDir)));
+      }
+    }
+    return status;
+  }
+
+  /**
+   * Replicate the published commit of one index directory.
+   *
+   * @param dir The source directory.
+   * @param replicaDir The replica directory (created if missing).
+   * @return status code (0 for success).
+   */
+  private int replicateDir(File dir, File replicaDir) {
+    try (Directory source = FSDirectory.open(dir.toPath());
+         Directory target = FSDirectory.open(Files.createDirectories(replicaDir.toPath()))) {
+      String segmentsFileName = IndexSnapshots.readPublished(source);
+      if (segmentsFileName == null) {
+        System.err.println("No commit published in " + dir
+                           + "; index it with the -snapshot option.");
+        return 1;
+      }
+      long startTime = System.nanoTime();
+      int numCopied = replicate(source, target, segmentsFileName);
+      if (numCopied != 0) {
+        Metrics.timer("replicator.commit").record(System.nanoTime() - startTime);
+        System.out.println("Replicated " + segmentsFileName + " of " + dir
+                           + " (" + numCopied + " new files)");
+      }
+      return 0;
+    } catch (IOException e) {
+      System.err.println("Error replicating " + dir);
+      e.printStackTrace();
+      Metrics.counter("replicator.errors").increment();
+      return 2;
+    }
+  }
+
+  /**
+   * Replicate the similarity graph of one sub-index if it changed.
+   *
+   * @param graphDir The source graph directory.
+   * @param replicaGraphDir The replica graph directory (created if missing).
+   * @return status code (0 for success).
+   */
+  private int replicateGraph(File graphDir, File replicaGraphDir) {
+    try (Directory source = FSDirectory.open(graphDir.toPath());
+         Directory target = FSDirectory.open(Files.createDirectories(replicaGraphDir.toPath()))) {
+      String file = SimilarComments.FILE_NAME;
+      Set<String> targetFiles = new HashSet<String>(Arrays.asList(target.listAll()));
+      if (targetFiles.contains(file) && sameFile(source, target, file)) return 0;
+      String pendingName = PENDING_PREFIX + file;
+      if (targetFiles.contains(pendingName)) target.deleteFile(pendingName);
+      target.copyFrom(source, file, pendingName, IOContext.READONCE);
+      Metrics.counter("replicator.bytes").add(target.fileLength(pendingName));
+      target.sync(Collections.singleton(pendingName));
+      target.rename(pendingName, file);
+      target.syncMetaData();
+      System.out.println("Replicated the similarity graph of " + graphDir.getParentFile());
+      return 0;
+    } catch (IOException e) {
+      System.err.println("Error replicating " + graphDir);
+      e.printStackTrace();
+      Metrics.counter("replicator.errors").increment();
+      return 2;
+    }
+  }
+
+  /**
+   * Bring a replica directory to a commit of the source directory.
+   *
+   * @param source The source directory.
+   * @param target The replica directory.
+   * @param segmentsFileName The segments file of the commit to replicate.
+   * @return Number of files copied (0 if the replica already has the commit).
+   * @throws IOException
+   */
+  static int replicate(Directory source, Directory target, String segmentsFileName)
+                                                                    throws IOException {
+    Set<String> targetFiles = new HashSet<String>(Arrays.asList(target.listAll()));
+    if (targetFiles.contains(segmentsFileName)) return 0;
+
+    // The files of the commit, except the segments file itself
+    SegmentInfos commit = SegmentInfos.readCommit(source, segmentsFileName);
+    Collection<String> commitFiles = commit.files(false);
+
+    // Copy the missing (or different) files
+    List<String> copied = new ArrayList<String>();
+    for (String file : commitFiles) {
+      if (targetFiles.contains(file) && sameFile(source, target, file)) continue;
+      if (targetFiles.contains(file)) target.deleteFile(file);
+      target.copyFrom(source, file, file, IOContext.READONCE);
+      Metrics.counter("replicator.bytes").add(target.fileLength(file));
+      copied.add(file);
+    }
+    target.sync(copied);
+
+    // Make the commit visible
+    String pendingName = PENDING_PREFIX + segmentsFileName;
+    if (targetFiles.contains(pendingName)) target.deleteFile(pendingName);
+    target.copyFrom(source, segmentsFileName, pendingName, IOContext.READONCE);
+    target.sync(Collections.singleton(pendingName));
+    target.rename(pendingName, segmentsFileName);
+    target.syncMetaData();
+    copied.add(segmentsFileName);
+
+    // Delete the files of older commits
+    for (String file : targetFiles) {
+      if (! commitFiles.contains(file) && (file.startsWith(IndexFileNames.SEGMENTS)
+                                           || file.startsWith("_"))) {
+        IOUtils.deleteFilesIgnoringExceptions(target, file);
+      }
+    }
+    return copied.size();
+  }
+
+  /**
+   * Check whether a file of the replica is the same as in the source by length and checksum.
+   */
+  private static boolean sameFile(Directory source, Directory target, String file) {
+    try (IndexInput sourceInput = source.openInput(file, IOContext.READONCE);
+         IndexInput targetInput = target.openInput(file, IOContext.READONCE)) {
+      return sourceInput.length() == targetInput.length()
+             && CodecUtil.retrieveChecksum(sourceInput) == CodecUtil.retrieveChecksum(targetInput);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Replicator entry point.
+   *
+   * @param args command-line arguments
+   */
+  public static void main(String[] args) {
+    final IndexReplicator replicator = new IndexReplicator();
+    int status;
+    status = replicator.parseArgs(args);
+    if (status != 0) System.exit(status);
+    status = replicator.run();
+    if (status != 0) System.exit(status);
+  }
+
+}
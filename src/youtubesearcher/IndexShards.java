@@ -0,0 +1,393 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Layout of a sharded index.
+ *
+ * A sharded index is a directory containing one sub-index per shard, named "shard-0",
+ * "shard-1", ... Comments are routed to shards by the hash of their channel ID, so all comments
+ * of a channel live in the same shard and indexers crawling different channels can write to
+ * different shards at the same time.
+ *
+ * A time-partitioned index is a directory containing one sub-index per month ("part-2019-01",
+ * "part-2019-02", ...) or per year ("part-2019", ...) of publish time: every comment is in the
+ * partition of the period it was published in, so searches of a date range, or of the most
+ * recent comments, only open the partitions that can have hits. Partitions of periods that are
+ * over can be frozen: merged into a single segment and no longer written to.
+ *
+ * The number of shards is recorded in the file "shards" of the index directory when the index
+ * is created, since a shard directory only exists once a comment was written to it.
+ *
+ * A directory without shard or partition sub-directories is a plain index.
+ */
+class IndexShards {
+
+  /**
+   * How the files of an index are accessed.
+   */
+  enum DirectoryMode {
+    AUTO,    // FSDirectory.open() picks the implementation for the platform
+    MMAP,    // memory-mapped files
+    NIO,     // positional reads through FileChannel, no address space used
+    PRELOAD; // memory-mapped files, all loaded into physical memory when opened
+
+    /**
+     * Open a directory in this mode.
+     *
+     * @param path Path of the directory.
+     * @return The directory.
+     * @throws IOException
+     */
+    Directory open(Path path) throws IOException {
+      switch (this) {
+        case MMAP:
+          return new MMapDirectory(path);
+        case NIO:
+          return new NIOFSDirectory(path);
+        case PRELOAD:
+          MMapDirectory directory = new MMapDirectory(path);
+          directory.setPreload(true);
+          return directory;
+        case AUTO:
+        default:
+          return FSDirectory.open(path);
+      }
+    }
+  }
+
+  /**
+   * Periods of the partitions of a time-partitioned index.
+   */
+  enum TimePartitioning {
+    MONTHLY("yyyy-MM"),
+    YEARLY("yyyy");
+
+    private final DateTimeFormatter formatter;
+
+    TimePartitioning(String pattern) {
+      formatter = DateTimeFormatter.ofPattern(pattern).withZone(ZoneOffset.UTC);
+    }
+
+    /**
+     * Get the name of the partition of a publish time, e.g. "2019-01".
+     *
+     * @param publishTime Milliseconds since the epoch.
+     */
+    String partitionOf(long publishTime) {
+      return formatter.format(Instant.ofEpochMilli(publishTime));
+    }
+  }
+
+  private static final String SHARD_PREFIX = "shard-";
+  private static final Pattern SHARD_PATTERN = Pattern.compile(SHARD_PREFIX + "(\\d+)");
+  private static final String NUM_SHARDS_FILE = "shards"; // number of shards, in the index dir
+  private static final String PARTITION_PREFIX = "part-";
+  private static final Pattern PARTITION_PATTERN = 
+      Pattern.compile(PARTITION_PREFIX + "(\\d{4})(?:-(\\d{2}))?");
+  private static final String FROZEN_KEY = "frozen"; // commit user data of frozen partitions
+
+  /**
+   * Get the shard that owns a routing key.
+   *
+   * @param routingKey The routing key (the channel ID).
+   * @param numShards Number of shards.
+   * @return The shard number.
+   */
+  static int shardOf(String routingKey, int numShards) {
+    return Math.floorMod(routingKey.hashCode(), numShards);
+  }
+
+  /**
+   * Get the directory of a shard.
+   */
+  static File shardDir(File indexDir, int shard) {
+    return new File(indexDir, SHARD_PREFIX + shard);
+  }
+
+  /**
+   * Get the directory of a time partition.
+   *
+   * @param partition The name of the partition (from TimePartitioning.partitionOf()).
+   */
+  static File partitionDir(File indexDir, String partition) {
+    return new File(indexDir, PARTITION_PREFIX + partition);
+  }
+
+  /**
+   * List the directories of all sub-indexes making up an index, in shard order (or in
+   * chronological order for a time-partitioned index).
+   *
+   * @param indexDir The index directory.
+   * @return The shard or partition directories, or the index directory itself if it is a plain
+   *         index.
+   */
+  static List<File> indexDirs(File indexDir) {
+    File[] shardDirs = indexDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isDirectory() && SHARD_PATTERN.matcher(file.getName()).matches();
+      }
+    });
+    if (shardDirs == null || shardDirs.length == 0) {
+      List<File> partitionDirs = partitionDirs(indexDir);
+      return partitionDirs.isEmpty() ? Collections.singletonList(indexDir) : partitionDirs;
+    }
+    Arrays.sort(shardDirs, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        return Integer.compare(shardNumber(a), shardNumber(b));
+      }
+    });
+    return Arrays.asList(shardDirs);
+  }
+
+  /**
+   * Read the number of shards recorded in an index directory.
+   *
+   * @param indexDir The index directory.
+   * @return The number of shards, or 0 if none is recorded (a plain, time-partitioned or new
+   *         index, or an index sharded before the number was recorded).
+   * @throws IOException Error reading the file.
+   */
+  static int readNumShards(File indexDir) throws IOException {
+    Path path = new File(indexDir, NUM_SHARDS_FILE).toPath();
+    if (! Files.exists(path)) return 0;
+    String numShards = new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+    try {
+      return Integer.parseInt(numShards);
+    } catch (NumberFormatException e) {
+      throw new IOException("Invalid number of shards in " + path + ": " + numShards, e);
+    }
+  }
+
+  /**
+   * Record the number of shards of an index in its directory (creating the directory).
+   *
+   * @param indexDir The index directory.
+   * @param numShards The number of shards.
+   * @throws IOException Error writing the file.
+   */
+  static void writeNumShards(File indexDir, int numShards) throws IOException {
+    Path path = Files.createDirectories(indexDir.toPath()).resolve(NUM_SHARDS_FILE);
+    Path tempPath = path.resolveSibling(NUM_SHARDS_FILE + ".tmp");
+    Files.write(tempPath, Integer.toString(numShards).getBytes(StandardCharsets.UTF_8));
+    Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING,
+               StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Get the number of a shard from its directory.
+   *
+   * @return The shard number, or -1 if the directory is not a shard directory.
+   */
+  static int shardNumber(File shardDir) {
+    Matcher matcher = SHARD_PATTERN.matcher(shardDir.getName());
+    return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+  }
+
+  /**
+   * List the partition directories of a time-partitioned index, oldest first.
+   *
+   * @param indexDir The index directory.
+   * @return The partition directories (empty if the index is not time-partitioned).
+   */
+  static List<File> partitionDirs(File indexDir) {
+    File[] partitionDirs = indexDir.listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file) {
+        return file.isDirectory() && PARTITION_PATTERN.matcher(file.getName()).matches();
+      }
+    });
+    if (partitionDirs == null) return Collections.emptyList();
+    // Names are fixed-width, so they sort chronologically
+    Arrays.sort(partitionDirs);
+    return Arrays.asList(partitionDirs);
+  }
+
+  /**
+   * List the partition directories of a time-partitioned index that can hold comments published
+   * in a time range, oldest first.
+   *
+   * @param indexDir The index directory.
+   * @param from Start of the range (milliseconds since the epoch, inclusive).
+   * @param to End of the range (milliseconds since the epoch, inclusive).
+   * @return The partition directories overlapping the range.
+   */
+  static List<File> partitionDirs(File indexDir, long from, long to) {
+    List<File> dirs = new ArrayList<File>();
+    for (File dir : partitionDirs(indexDir)) {
+      if (partitionStart(dir) <= to && partitionEnd(dir) > from) dirs.add(dir);
+    }
+    return dirs;
+  }
+
+  /**
+   * Get the partitioning of a time-partitioned index.
+   *
+   * @param indexDir The index directory.
+   * @return The period of its partitions (the one of its first partition), or null if the index
+   *         is not time-partitioned.
+   */
+  static TimePartitioning partitioning(File indexDir) {
+    List<File> dirs = partitionDirs(indexDir);
+    if (dirs.isEmpty()) return null;
+    Matcher matcher = PARTITION_PATTERN.matcher(dirs.get(0).getName());
+    matcher.matches();
+    return matcher.group(2) == null ? TimePartitioning.YEARLY : TimePartitioning.MONTHLY;
+  }
+
+  /**
+   * Get the start of the period of a partition, in milliseconds since the epoch.
+   */
+  static long partitionStart(File partitionDir) {
+    return partitionStartDate(partitionDir).atStartOfDay(ZoneOffset.UTC).toInstant()
+                                           .toEpochMilli();
+  }
+
+  /**
+   * Get the end of the period of a partition (exclusive), in milliseconds since the epoch.
+   */
+  static long partitionEnd(File partitionDir) {
+    Matcher matcher = PARTITION_PATTERN.matcher(partitionDir.getName());
+    matcher.matches();
+    LocalDate start = partitionStartDate(partitionDir);
+    LocalDate end = matcher.group(2) == null ? start.plusYears(1) : start.plusMonths(1);
+    return end.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+
+  private static LocalDate partitionStartDate(File partitionDir) {
+    Matcher matcher = PARTITION_PATTERN.matcher(partitionDir.getName());
+    if (! matcher.matches()) {
+      throw new IllegalArgumentException(partitionDir + " is not a time partition");
+    }
+    int month = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+    return LocalDate.of(Integer.parseInt(matcher.group(1)), month, 1);
+  }
+
+  /**
+   * Check whether the latest commit of a partition is frozen.
+   *
+   * @param directory The directory of the partition.
+   * @return true if the partition was frozen by freeze().
+   * @throws IOException
+   */
+  static boolean isFrozen(Directory directory) throws IOException {
+    if (! DirectoryReader.indexExists(directory)) return false;
+    Map<String, String> userData = SegmentInfos.readLatestCommit(directory).getUserData();
+    return "true".equals(userData.get(FROZEN_KEY));
+  }
+
+  /**
+   * Freeze a partition: merge it into a single segment, and mark its next commit as frozen.
+   * Writers must not add to a frozen partition (see isFrozen()).
+   *
+   * @param writer The writer of the partition (committed or closed by the caller).
+   * @throws IOException
+   */
+  static void freeze(IndexWriter writer) throws IOException {
+    writer.forceMerge(1);
+    writer.setLiveCommitData(Collections.singletonMap(FROZEN_KEY, "true").entrySet());
+  }
+
+  /**
+   * Open the directories of all sub-indexes making up an index.
+   *
+   * @param indexDir The index directory.
+   * @return The opened directories (one per shard, or one for an unsharded index).
+   * @throws IOException
+   */
+  static List<Directory> openDirectories(File indexDir) throws IOException {
+    return openDirectories(indexDir, DirectoryMode.AUTO);
+  }
+
+  /**
+   * Open the directories of all sub-indexes making up an index in a given mode.
+   *
+   * @param indexDir The index directory.
+   * @param mode How the index files are accessed.
+   * @return The opened directories (one per shard, or one for an unsharded index).
+   * @throws IOException
+   */
+  static List<Directory> openDirectories(File indexDir, DirectoryMode mode) throws IOException {
+    return openDirectories(indexDirs(indexDir), mode);
+  }
+
+  /**
+   * Open the directories of some sub-indexes of an index (e.g. the partitions of a time range).
+   *
+   * @param dirs The sub-index directories.
+   * @param mode How the index files are accessed.
+   * @return The opened directories, in the same order.
+   * @throws IOException
+   */
+  static List<Directory> openDirectories(List<File> dirs, DirectoryMode mode) throws IOException {
+    List<Directory> directories = new ArrayList<Directory>();
+    try {
+      for (File dir : dirs) {
+        directories.add(mode.open(dir.toPath()));
+      }
+    } catch (IOException e) {
+      IOUtils.closeWhileHandlingException(directories);
+      throw e;
+    }
+    return directories;
+  }
+
+  /**
+   * Open a reader over all sub-indexes.
+   *
+   * For a sharded index this is a MultiReader with one sub-reader per shard, so that term
+   * statistics (and hence scores) are computed over the whole index. Closing it closes the
+   * readers of all shards.
+   *
+   * @param directories The directories of the sub-indexes.
+   * @return The reader.
+   * @throws IOException
+   */
+  static IndexReader openReader(List<Directory> directories) throws IOException {
+    if (directories.size() == 1) {
+      return DirectoryReader.open(directories.get(0));
+    }
+    List<IndexReader> shardReaders = new ArrayList<IndexReader>();
+    try {
+      for (Directory directory : directories) {
+        shardReaders.add(DirectoryReader.open(directory));
+      }
+    } catch (IOException e) {
+      IOUtils.closeWhileHandlingException(shardReaders);
+      throw e;
+    }
+    return new MultiReader(shardReaders.toArray(new IndexReader[shardReaders.size()]), true);
+  }
+
+}
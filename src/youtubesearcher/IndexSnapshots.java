@@ -0,0 +1,120 @@
+package youtubesearcher;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.PersistentSnapshotDeletionPolicy;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * Point-in-time commits published by the indexer for read replicas.
+ *
+ * With snapshots enabled, the indexer protects the commit made at the end of every run with a
+ * PersistentSnapshotDeletionPolicy, so that its files stay on disk while replicas copy them even
+ * if the index is updated again in the meantime. The name of the segments file of the latest
+ * snapshot is then published in a small file of the index directory, which IndexReplicator reads
+ * to know what to copy. The previous snapshot is kept too, for replicas still copying it.
+ *
+ * Once an index has published a commit, every later indexer run keeps publishing, since a
+ * writer without the snapshot deletion policy would delete the commits replicas rely on.
+ */
+class IndexSnapshots {
+
+  /** Name of the file holding the segments file name of the latest published commit. */
+  static final String PUBLISHED_FILE = "published_commit";
+
+  private static final String CODEC_NAME = "YoutubePublishedCommit";
+  private static final int VERSION = 0;
+  private static final int SNAPSHOTS_TO_KEEP = 2;
+
+  /**
+   * Make a writer config keep snapshots of commits.
+   *
+   * @param config The writer config.
+   * @param directory The directory of the index (where the snapshots are persisted).
+   * @throws IOException
+   */
+  static void enableSnapshots(IndexWriterConfig config, Directory directory) throws IOException {
+    config.setIndexDeletionPolicy(
+        new PersistentSnapshotDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy(), directory,
+                                             config.getOpenMode()));
+  }
+
+  /**
+   * Commit the index, snapshot the commit and publish it for replicas.
+   *
+   * @param writer A writer configured with enableSnapshots().
+   * @return The published commit.
+   * @throws IOException
+   */
+  static IndexCommit publish(IndexWriter writer) throws IOException {
+    PersistentSnapshotDeletionPolicy snapshots =
+        (PersistentSnapshotDeletionPolicy) writer.getConfig().getIndexDeletionPolicy();
+    writer.commit();
+    IndexCommit commit = snapshots.snapshot();
+    writePublished(writer.getDirectory(), commit.getSegmentsFileName());
+
+    // Release the older snapshots so that their files can be deleted
+    List<IndexCommit> snapshotted = new ArrayList<IndexCommit>(snapshots.getSnapshots());
+    Collections.sort(snapshotted, new Comparator<IndexCommit>() {
+      @Override
+      public int compare(IndexCommit a, IndexCommit b) {
+        return Long.compare(b.getGeneration(), a.getGeneration());
+      }
+    });
+    for (int i = SNAPSHOTS_TO_KEEP; i < snapshotted.size(); ++i) {
+      snapshots.release(snapshotted.get(i));
+    }
+    writer.deleteUnusedFiles();
+    return commit;
+  }
+
+  /**
+   * Atomically replace the published commit of an index.
+   */
+  private static void writePublished(Directory directory, String segmentsFileName)
+                                                                    throws IOException {
+    String tempName;
+    try (IndexOutput out = directory.createTempOutput(PUBLISHED_FILE, "tmp", IOContext.DEFAULT)) {
+      tempName = out.getName();
+      CodecUtil.writeHeader(out, CODEC_NAME, VERSION);
+      out.writeString(segmentsFileName);
+      CodecUtil.writeFooter(out);
+    }
+    directory.sync(Collections.singleton(tempName));
+    directory.rename(tempName, PUBLISHED_FILE);
+    directory.syncMetaData();
+  }
+
+  /**
+   * Get the segments file name of the latest published commit of an index.
+   *
+   * @param directory The directory of the index.
+   * @return The segments file name, or null if no commit was published.
+   * @throws IOException
+   */
+  static String readPublished(Directory directory) throws IOException {
+    try (ChecksumIndexInput in = directory.openChecksumInput(PUBLISHED_FILE, IOContext.READONCE)) {
+      CodecUtil.checkHeader(in, CODEC_NAME, VERSION, VERSION);
+      String segmentsFileName = in.readString();
+      CodecUtil.checkFooter(in);
+      return segmentsFileName;
+    } catch (NoSuchFileException | FileNotFoundException e) {
+      return null;
+    }
+  }
+
+}
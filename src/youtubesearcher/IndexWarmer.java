@@ -0,0 +1,136 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * Warmup of a newly opened searcher, before it serves its first search.
+ *
+ * A fresh searcher pays for page faults (and, for the filter cache, cache misses) on its first
+ * queries. The warmer can replay representative queries from a query log (the format written
+ * by the retriever option -query-log) through the normal search path, and/or read the terms
+ * dictionary and the doc values of every segment once, so that their pages are in memory.
+ * Segments are only read the first time a searcher containing them is warmed; the segments a
+ * refreshed searcher shares with the previous one are already warm.
+ */
+class IndexWarmer {
+
+  private final File indexDir;
+  private final List<QueryLog.Entry> queries;
+  private final boolean touchSegments;
+  private final Set<Object> warmSegments =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<Object, Boolean>()));
+
+  /**
+   * Make a warmer.
+   *
+   * @param indexDir The index the searchers are opened on (passed to the replayed searches).
+   * @param queryFile Query log with the queries to replay, or null to replay no query.
+   * @param touchSegments Whether to read the terms and doc values of every new segment.
+   * @throws IOException Error reading the query file.
+   */
+  IndexWarmer(File indexDir, File queryFile, boolean touchSegments) throws IOException {
+    this.indexDir = indexDir;
+    this.queries = queryFile == null ? Collections.<QueryLog.Entry>emptyList()
+                                     : QueryLog.read(queryFile);
+    this.touchSegments = touchSegments;
+  }
+
+  /**
+   * Warm up a searcher.
+   *
+   * @param searcher The new searcher.
+   * @throws IOException
+   */
+  void warm(IndexSearcher searcher) throws IOException {
+    long startTime = System.nanoTime();
+    if (touchSegments) {
+      for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+        if (warmSegments.add(leaf.reader().getCoreCacheKey())) {
+          touch(leaf.reader());
+        }
+      }
+    }
+    for (QueryLog.Entry query : queries) {
+      YoutubeRetriever retriever = new YoutubeRetriever();
+      String[] args = query.toArgs(indexDir);
+      args = Arrays.copyOf(args, args.length + 2);
+      args[args.length - 2] = "-f";
+      args[args.length - 1] = "JSON";
+      if (retriever.parseArgs(args) == 0) {
+        retriever.search(new StringWriter(), searcher, null); // the rendered page is dropped
+      }
+    }
+    Metrics.timer("warmer.warmup").record(System.nanoTime() - startTime);
+  }
+
+  /**
+   * Read the terms dictionary and the doc values of a segment.
+   */
+  private static void touch(LeafReader reader) throws IOException {
+    int maxDoc = reader.maxDoc();
+    for (FieldInfo fieldInfo : reader.getFieldInfos()) {
+      String field = fieldInfo.name;
+      if (fieldInfo.getIndexOptions() != IndexOptions.NONE) {
+        Terms terms = reader.terms(field);
+        if (terms != null) {
+          TermsEnum termsEnum = terms.iterator();
+          while (termsEnum.next() != null) {
+            termsEnum.docFreq();
+          }
+        }
+      }
+      switch (fieldInfo.getDocValuesType()) {
+        case NUMERIC:
+          NumericDocValues numeric = reader.getNumericDocValues(field);
+          for (int doc = 0; doc < maxDoc; ++doc) numeric.get(doc);
+          break;
+        case BINARY:
+          BinaryDocValues binary = reader.getBinaryDocValues(field);
+          for (int doc = 0; doc < maxDoc; ++doc) binary.get(doc);
+          break;
+        case SORTED:
+          SortedDocValues sorted = reader.getSortedDocValues(field);
+          for (int doc = 0; doc < maxDoc; ++doc) sorted.getOrd(doc);
+          break;
+        case SORTED_NUMERIC:
+          SortedNumericDocValues sortedNumeric = reader.getSortedNumericDocValues(field);
+          for (int doc = 0; doc < maxDoc; ++doc) sortedNumeric.setDocument(doc);
+          break;
+        case SORTED_SET:
+          SortedSetDocValues sortedSet = reader.getSortedSetDocValues(field);
+          for (int doc = 0; doc < maxDoc; ++doc) {
+            sortedSet.setDocument(doc);
+            while (sortedSet.nextOrd() != SortedSetDocValues.NO_MORE_ORDS) {
+              // Only the reads matter
+            }
+          }
+          break;
+        case NONE:
+        default:
+          break;
+      }
+    }
+    Metrics.counter("warmer.segments").increment();
+  }
+
+}
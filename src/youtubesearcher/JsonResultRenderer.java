@@ -0,0 +1,125 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+import org.apache.lucene.document.Document;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Renders search results as a JSON object for programmatic clients.
+ *
+ * The output has the form:
+ * {"query": ..., "suggestion": ..., "totalHits": ..., "page": ..., "hitsPerPage": ...,
+ *  "results": [{"rank": ..., "score": ..., "commentId": ..., ..., "parent": {...}}, ...]}
+ * The fields of a comment are plain text, except "highlightedText" (present if the comment text
+ * was highlighted), which is an HTML fragment: the text, HTML-escaped, with the matches of the
+ * query in <b>...</b>.
+ * Partial results from a distributed search also have "partial": true and "unavailableNodes",
+ * results cut by the time budget "partial": true and "timedOut": true, and results of a search
+ * that stopped counting early (sorted index) "totalHitsLowerBound": true.
+ * Grouped results are groups of the form
+ * {"rank": ..., "groupBy": "video" or "thread", "group": ..., "totalHits": ..., "results": [...]}.
+ */
+class JsonResultRenderer extends ResultRenderer {
+
+  private static final String[] STRING_FIELDS = {
+    "commentId", "parentId", "userId", "userName", "profilePicture", "commentText",
+    "videoId", "videoTitle", "videoThumbnail", "channelId", "channelTitle"
+  };
+  private static final String[] INT_FIELDS = {
+    "likeCount", "replyCount"
+  };
+  private static final String[] PARENT_FIELDS = {
+    "commentId", "userId", "userName", "commentText"
+  };
+
+  private final JsonWriter json; // streaming writer on top of the output
+
+  JsonResultRenderer(Writer out) {
+    super(out);
+    json = new JsonWriter(out);
+  }
+
+  @Override
+  void beginResults(String commentQuery, String suggestion,
+                    int numTotalHits, int page, int hitsPerPage) throws IOException {
+    json.beginObject();
+    json.name("query").value(commentQuery == null ? "" : commentQuery);
+    if (suggestion != null) {
+      json.name("suggestion").value(suggestion);
+    }
+    json.name("totalHits").value(numTotalHits);
+    if (totalHitsLowerBound) {
+      json.name("totalHitsLowerBound").value(true);
+    }
+    json.name("page").value(page);
+    json.name("hitsPerPage").value(hitsPerPage);
+    if (! unavailableNodes.isEmpty() || timedOut) {
+      json.name("partial").value(true);
+    }
+    if (timedOut) {
+      json.name("timedOut").value(true);
+    }
+    if (! unavailableNodes.isEmpty()) {
+      json.name("unavailableNodes").beginArray();
+      for (String node : unavailableNodes) {
+        json.value(node);
+      }
+      json.endArray();
+    }
+    json.name("results").beginArray();
+  }
+
+  @Override
+  void result(int rank, float score, Document doc,
+              String highlightedText, Document parentDoc) throws IOException {
+    json.beginObject();
+    json.name("rank").value(rank);
+    json.name("score").value(score);
+    for (String fieldName : STRING_FIELDS) {
+      json.name(fieldName).value(field(doc, fieldName));
+    }
+    for (String fieldName : INT_FIELDS) {
+      json.name(fieldName).value(intField(doc, fieldName));
+    }
+    if (highlightedText != null) {
+      json.name("highlightedText").value(highlightedText);
+    }
+    if (parentDoc != null) {
+      json.name("parent").beginObject();
+      for (String fieldName : PARENT_FIELDS) {
+        json.name(fieldName).value(field(parentDoc, fieldName));
+      }
+      json.endObject();
+    }
+    json.endObject();
+  }
+
+  @Override
+  void beginGroup(int rank, YoutubeRetriever.GroupBy groupBy, String groupValue, 
+                  int numHits) throws IOException {
+    json.beginObject();
+    json.name("rank").value(rank);
+    json.name("groupBy").value(groupBy.name().toLowerCase(Locale.ROOT));
+    json.name("group").value(groupValue);
+    json.name("totalHits").value(numHits);
+    json.name("results").beginArray();
+  }
+
+  @Override
+  void endGroup() throws IOException {
+    json.endArray();
+    json.endObject();
+  }
+
+  @Override
+  void endResults() throws IOException {
+    json.endArray();
+    json.endObject();
+    json.flush();
+  }
+
+}
@@ -0,0 +1,270 @@
+package youtubesearcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+
+import youtubesearcher.YoutubeIndexer.Comment;
+import youtubesearcher.YoutubeIndexer.Video;
+
+/**
+ * Per-video and per-user metadata of a compact index (indexer option -compact).
+ *
+ * In a compact index the comment documents only store IDs; the video title, thumbnail and
+ * channel of every video, and the name and profile picture of every user, are stored once in a
+ * small metadata index in the sub-directory "metadata" of the index (of every shard if sharded),
+ * keyed by video ID and user ID. The titles and names are still indexed in the comment documents
+ * for the filters of the retriever. At render time the retriever joins the metadata back into the
+ * stored fields of the hits, through a cache of the recently used entries.
+ */
+class MetadataStore implements Closeable {
+
+  static final String DIR_NAME = "metadata";
+
+  private static final String KEY_FIELD = "metaKey";
+  private static final String VIDEO_KEY_PREFIX = "video:";
+  private static final String USER_KEY_PREFIX = "user:";
+  private static final int MAX_CACHED_ENTRIES = 10000;
+
+  /**
+   * Get the metadata directory of a sub-index.
+   *
+   * @param subIndexDir The directory of an unsharded index or of a shard.
+   * @return The metadata directory.
+   */
+  static File metadataDir(File subIndexDir) {
+    return new File(subIndexDir, DIR_NAME);
+  }
+
+  /**
+   * Writer adding the metadata of the videos and users of the indexed comments.
+   *
+   * Each entry is written once per indexer run (the first time it is seen), replacing the entry
+   * written by earlier runs.
+   */
+  static class Updater {
+    private final IndexWriter writer;
+    private final Set<String> writtenKeys = new HashSet<String>();
+
+    Updater(IndexWriter writer) {
+      this.writer = writer;
+    }
+
+    IndexWriter getWriter() {
+      return writer;
+    }
+
+    /**
+     * Add the metadata of a video.
+     *
+     * @param videoId The video ID (nothing is added if empty, e.g. for channel discussions).
+     * @param videoInfo The video information.
+     * @throws IOException
+     */
+    void addVideo(String videoId, Video videoInfo) throws IOException {
+      if (videoId == null || videoId.isEmpty()) return;
+      Document doc = newEntry(VIDEO_KEY_PREFIX + videoId);
+      if (doc == null) return;
+      doc.add(new StoredField("videoTitle", videoInfo.getTitle()));
+      doc.add(new StoredField("videoThumbnail", videoInfo.getThumbnail()));
+      doc.add(new StoredField("channelId", videoInfo.getChannelId()));
+      doc.add(new StoredField("channelTitle", videoInfo.getChannelTitle()));
+      writer.updateDocument(new Term(KEY_FIELD, doc.get(KEY_FIELD)), doc);
+    }
+
+    /**
+     * Add the metadata of the author of a comment.
+     *
+     * @param comment The comment.
+     * @throws IOException
+     */
+    void addUser(Comment comment) throws IOException {
+      if (comment.getUserId() == null || comment.getUserId().isEmpty()) return;
+      Document doc = newEntry(USER_KEY_PREFIX + comment.getUserId());
+      if (doc == null) return;
+      doc.add(new StoredField("userName", comment.getUserName()));
+      doc.add(new StoredField("profilePicture", comment.getProfilePicture()));
+      writer.updateDocument(new Term(KEY_FIELD, doc.get(KEY_FIELD)), doc);
+    }
+
+    /**
+     * Make the document of an entry, or return null if the entry was already written.
+     */
+    private synchronized Document newEntry(String key) {
+      if (! writtenKeys.add(key)) return null;
+      Document doc = new Document();
+      doc.add(new StringField(KEY_FIELD, key, Field.Store.YES));
+      return doc;
+    }
+  }
+
+  /*
+   * Reading: one searcher per sub-index with metadata, and an LRU cache of the entries.
+   * Entries missing from the metadata are cached too, as empty documents.
+   */
+  private final List<SearcherManager> managers;
+  private final List<Directory> directories;
+  private final Map<String, Document> cache =
+      new LinkedHashMap<String, Document>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Document> eldest) {
+          return size() > MAX_CACHED_ENTRIES;
+        }
+      };
+
+  private MetadataStore(List<SearcherManager> managers, List<Directory> directories) {
+    this.managers = managers;
+    this.directories = directories;
+    for (SearcherManager manager : managers) {
+      manager.addListener(new ReferenceManager.RefreshListener() {
+        @Override
+        public void beforeRefresh() {
+        }
+
+        @Override
+        public void afterRefresh(boolean didRefresh) {
+          if (didRefresh) clearCache(); // entries may have been updated
+        }
+      });
+    }
+  }
+
+  /**
+   * Open the metadata of an index.
+   *
+   * @param indexDir The index directory.
+   * @param mode How the metadata files are accessed.
+   * @return The metadata, or null if the index is not compact.
+   * @throws IOException
+   */
+  static MetadataStore open(File indexDir, IndexShards.DirectoryMode mode) throws IOException {
+    List<SearcherManager> managers = new ArrayList<SearcherManager>();
+    List<Directory> directories = new ArrayList<Directory>();
+    try {
+      for (File dir : IndexShards.indexDirs(indexDir)) {
+        File metadataDir = metadataDir(dir);
+        if (! metadataDir.isDirectory()) continue;
+        Directory directory = mode.open(metadataDir.toPath());
+        directories.add(directory);
+        if (DirectoryReader.indexExists(directory)) {
+          managers.add(new SearcherManager(directory, null));
+        }
+      }
+    } catch (IOException e) {
+      IOUtils.closeWhileHandlingException(managers);
+      IOUtils.closeWhileHandlingException(directories);
+      throw e;
+    }
+    if (managers.isEmpty()) {
+      IOUtils.close(directories);
+      return null;
+    }
+    return new MetadataStore(managers, directories);
+  }
+
+  /**
+   * Pick up the latest commit of the metadata (e.g. for a long-running SearchNode).
+   *
+   * @throws IOException
+   */
+  void maybeRefresh() throws IOException {
+    for (SearcherManager manager : managers) {
+      manager.maybeRefresh();
+    }
+  }
+
+  /**
+   * Join the metadata of its video and user into the stored fields of a comment document.
+   *
+   * Fields the document already stores (e.g. documents indexed before the index became compact)
+   * are kept as they are.
+   *
+   * @param doc The stored fields of a comment.
+   * @throws IOException
+   */
+  void join(Document doc) throws IOException {
+    if (doc.get("videoTitle") == null) {
+      addMissingFields(doc, lookup(VIDEO_KEY_PREFIX + ResultRenderer.field(doc, "videoId")));
+    }
+    if (doc.get("userName") == null) {
+      addMissingFields(doc, lookup(USER_KEY_PREFIX + ResultRenderer.field(doc, "userId")));
+    }
+  }
+
+  private static void addMissingFields(Document doc, Document entry) {
+    for (IndexableField field : entry.getFields()) {
+      if (! field.name().equals(KEY_FIELD) && doc.getField(field.name()) == null) {
+        doc.add(field);
+      }
+    }
+  }
+
+  /**
+   * Get a metadata entry, from the cache or from the metadata index.
+   */
+  private Document lookup(String key) throws IOException {
+    synchronized (cache) {
+      Document entry = cache.get(key);
+      if (entry != null) return entry;
+    }
+    Metrics.counter("retriever.metadataLookups").increment();
+    Document entry = new Document();
+    TermQuery query = new TermQuery(new Term(KEY_FIELD, key));
+    for (SearcherManager manager : managers) {
+      IndexSearcher searcher = manager.acquire();
+      try {
+        ScoreDoc[] hits = searcher.search(query, 1).scoreDocs;
+        if (hits.length != 0) {
+          entry = searcher.doc(hits[0].doc);
+          break;
+        }
+      } finally {
+        manager.release(searcher);
+      }
+    }
+    synchronized (cache) {
+      cache.put(key, entry);
+    }
+    return entry;
+  }
+
+  private void clearCache() {
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      IOUtils.close(managers);
+    } finally {
+      IOUtils.close(directories);
+    }
+  }
+
+}
@@ -0,0 +1,270 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Process-wide timers and counters for the hot paths of the indexer and the retriever.
+ *
+ * Every timer and counter is registered in the platform MBean server under the domain
+ * "youtubesearcher" (e.g. youtubesearcher:type=Timer,name=retriever.search), so they can be
+ * watched with any JMX client. Per-request timings can also be appended to a structured log
+ * file, one JSON object per line.
+ */
+public class Metrics {
+
+  private static final String JMX_DOMAIN = "youtubesearcher";
+
+  /**
+   * JMX view of a timer
+   */
+  public interface TimerMBean {
+    long getCount();
+    double getTotalMillis();
+    double getMeanMillis();
+    double getMaxMillis();
+  }
+
+  /**
+   * JMX view of a counter
+   */
+  public interface CounterMBean {
+    long getCount();
+  }
+
+  /**
+   * Accumulated durations of one kind of operation
+   */
+  static class Timer implements TimerMBean {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      long max;
+      while (nanos > (max = maxNanos.get()) && ! maxNanos.compareAndSet(max, nanos)) {
+        // Retry
+      }
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+
+    @Override
+    public double getTotalMillis() {
+      return totalNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getMeanMillis() {
+      long n = count.sum();
+      return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+    }
+
+    @Override
+    public double getMaxMillis() {
+      return maxNanos.get() / 1e6;
+    }
+  }
+
+  /**
+   * Number of occurrences of an event (or a total amount, e.g. of bytes)
+   */
+  static class Counter implements CounterMBean {
+    private final LongAdder count = new LongAdder();
+
+    void add(long n) {
+      count.add(n);
+    }
+
+    void increment() {
+      count.increment();
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+  }
+
+  private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<String, Timer>();
+  private static final ConcurrentMap<String, Counter> COUNTERS =
+      new ConcurrentHashMap<String, Counter>();
+
+  /**
+   * Get (or create and register) a timer.
+   *
+   * @param name Name of the timer, e.g. "retriever.search".
+   * @return The timer.
+   */
+  static Timer timer(String name) {
+    Timer timer = TIMERS.get(name);
+    if (timer == null) {
+      Timer newTimer = new Timer();
+      timer = TIMERS.putIfAbsent(name, newTimer);
+      if (timer == null) {
+        timer = newTimer;
+        register("Timer", name, new StandardMBean(timer, TimerMBean.class, false));
+      }
+    }
+    return timer;
+  }
+
+  /**
+   * Get (or create and register) a counter.
+   *
+   * @param name Name of the counter, e.g. "indexer.retries".
+   * @return The counter.
+   */
+  static Counter counter(String name) {
+    Counter counter = COUNTERS.get(name);
+    if (counter == null) {
+      Counter newCounter = new Counter();
+      counter = COUNTERS.putIfAbsent(name, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+        register("Counter", name, new StandardMBean(counter, CounterMBean.class, false));
+      }
+    }
+    return counter;
+  }
+
+  private static void register(String type, String name, StandardMBean mbean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + name);
+      if (! server.isRegistered(objectName)) {
+        server.registerMBean(mbean, objectName);
+      }
+    } catch (JMException e) {
+      System.err.println("Error registering metric " + name + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Timings of the phases of one request (e.g. one search, or one indexed page).
+   *
+   * Every phase duration is also recorded in the process-wide timer "<component>.<phase>".
+   * A phase can be added several times; its durations are summed up.
+   */
+  static class Request {
+    private final String component;
+    private final long startTime = System.nanoTime();
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+    private final JsonObject attributes = new JsonObject();
+
+    Request(String component) {
+      this.component = component;
+    }
+
+    /**
+     * Record the duration of a phase.
+     *
+     * @param phase Name of the phase.
+     * @param startNanos Start time of the phase (from System.nanoTime()).
+     */
+    void phase(String phase, long startNanos) {
+      long nanos = System.nanoTime() - startNanos;
+      Long previous = phaseNanos.get(phase);
+      phaseNanos.put(phase, previous == null ? nanos : previous + nanos);
+      timer(component + "." + phase).record(nanos);
+    }
+
+    /**
+     * Add an attribute (e.g. number of hits) to the log entry of the request.
+     */
+    void attribute(String name, Number value) {
+      attributes.addProperty(name, value);
+    }
+
+    void attribute(String name, String value) {
+      attributes.addProperty(name, value);
+    }
+
+    void attribute(String name, boolean value) {
+      attributes.addProperty(name, value);
+    }
+
+    /**
+     * Finish the request: record its total duration and append it to the log file (if any).
+     *
+     * @param logFile The structured log file, or null to not log the request.
+     */
+    void finish(File logFile) {
+      long totalNanos = System.nanoTime() - startTime;
+      timer(component + ".total").record(totalNanos);
+      if (logFile == null) return;
+
+      JsonObject entry = new JsonObject();
+      entry.addProperty("time", System.currentTimeMillis());
+      entry.addProperty("component", component);
+      entry.addProperty("totalMs", totalNanos / 1e6);
+      JsonObject phases = new JsonObject();
+      for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+        phases.addProperty(phase.getKey(), phase.getValue() / 1e6);
+      }
+      entry.add("phasesMs", phases);
+      for (Map.Entry<String, JsonElement> attribute : attributes.entrySet()) {
+        entry.add(attribute.getKey(), attribute.getValue());
+      }
+      log(logFile, entry);
+    }
+  }
+
+  /**
+   * Append an entry to a structured log file.
+   *
+   * @param logFile The log file (created if it does not exist).
+   * @param entry The entry.
+   */
+  static void log(File logFile, JsonObject entry) {
+    byte[] line = (entry.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+    try {
+      Files.write(logFile.toPath(), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch (IOException e) {
+      System.err.println("Error writing to metrics log file " + logFile);
+    }
+  }
+
+  /**
+   * Snapshot of all timers and counters as a JSON object.
+   */
+  static JsonObject snapshot() {
+    JsonObject snapshot = new JsonObject();
+    for (Map.Entry<String, Timer> timer : TIMERS.entrySet()) {
+      JsonObject value = new JsonObject();
+      value.addProperty("count", timer.getValue().getCount());
+      value.addProperty("totalMs", timer.getValue().getTotalMillis());
+      value.addProperty("meanMs", timer.getValue().getMeanMillis());
+      value.addProperty("maxMs", timer.getValue().getMaxMillis());
+      snapshot.add(timer.getKey(), value);
+    }
+    for (Map.Entry<String, Counter> counter : COUNTERS.entrySet()) {
+      snapshot.addProperty(counter.getKey(), counter.getValue().getCount());
+    }
+    return snapshot;
+  }
+
+}
@@ -0,0 +1,160 @@
+package youtubesearcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Near-duplicate detection of the comments of one indexer run (copy-pasted and bot comments).
+ *
+ * Every comment gets a 64-bit SimHash of the words and word pairs of its text. Comments whose
+ * signatures differ by at most MAX_DISTANCE bits are near-duplicates. To find them without
+ * comparing every pair, the signatures are kept in an LSH table of NUM_BANDS bands of 16 bits:
+ * two signatures within MAX_DISTANCE bits agree on at least one whole band, so only the
+ * signatures sharing a band with the new one are compared.
+ *
+ * Every comment is stored with a cluster ID (field "clusterId", indexed and as sorted doc values
+ * for grouping): the ID of the first comment of its cluster, or its own ID if it is not a
+ * near-duplicate of an earlier comment of the run. Comments too short to tell copies from
+ * coincidences are always their own cluster.
+ */
+class NearDuplicates {
+
+  static final String CLUSTER_ID_FIELD = "clusterId";
+
+  private static final int MIN_WORDS = 3;
+  private static final int MAX_DISTANCE = 3;
+  private static final int NUM_BANDS = 4;    // MAX_DISTANCE + 1 bands, so one band is unchanged
+  private static final int BAND_BITS = 64 / NUM_BANDS;
+  private static final int MAX_ENTRIES = 1 << 20; // bound of the table (about 40 MB)
+
+  /*
+   * The table: the signatures and cluster IDs of the entries, and for every band value the
+   * entries having it.
+   */
+  private long[] signatures = new long[1024];
+  private String[] clusterIds = new String[1024];
+  private int numEntries = 0;
+  private final int[][] buckets = new int[NUM_BANDS << BAND_BITS][];
+  private final int[] bucketSizes = new int[NUM_BANDS << BAND_BITS];
+
+  /**
+   * Assign the cluster of a comment document and add the cluster ID field to it.
+   *
+   * @param doc The document of a comment, with the fields commentId and commentText.
+   * @return true if the comment is a near-duplicate of an earlier comment.
+   */
+  synchronized boolean addClusterId(Document doc) {
+    String commentId = doc.get("commentId");
+    String clusterId = commentId;
+    long signature = simHash(doc.get("commentText"));
+    if (signature != 0) {
+      int entry = find(signature);
+      if (entry >= 0) {
+        clusterId = clusterIds[entry];
+      } else if (numEntries < MAX_ENTRIES) {
+        add(signature, commentId);
+      }
+    }
+    doc.add(new StringField(CLUSTER_ID_FIELD, clusterId, Field.Store.NO));
+    doc.add(new SortedDocValuesField(CLUSTER_ID_FIELD, new BytesRef(clusterId)));
+    return ! clusterId.equals(commentId);
+  }
+
+  /**
+   * Find an entry within MAX_DISTANCE bits of a signature, or return -1.
+   */
+  private int find(long signature) {
+    for (int band = 0; band < NUM_BANDS; ++band) {
+      int bucket = bucket(signature, band);
+      for (int i = 0; i < bucketSizes[bucket]; ++i) {
+        int entry = buckets[bucket][i];
+        if (Long.bitCount(signatures[entry] ^ signature) <= MAX_DISTANCE) return entry;
+      }
+    }
+    return -1;
+  }
+
+  private void add(long signature, String clusterId) {
+    signatures = ArrayUtil.grow(signatures, numEntries + 1);
+    clusterIds = ArrayUtil.grow(clusterIds, numEntries + 1);
+    signatures[numEntries] = signature;
+    clusterIds[numEntries] = clusterId;
+    for (int band = 0; band < NUM_BANDS; ++band) {
+      int bucket = bucket(signature, band);
+      if (buckets[bucket] == null) buckets[bucket] = new int[2];
+      buckets[bucket] = ArrayUtil.grow(buckets[bucket], bucketSizes[bucket] + 1);
+      buckets[bucket][bucketSizes[bucket]++] = numEntries;
+    }
+    ++numEntries;
+  }
+
+  private static int bucket(long signature, int band) {
+    int bandValue = (int) (signature >>> (band * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+    return (band << BAND_BITS) | bandValue;
+  }
+
+  /**
+   * Compute the SimHash of a text over its (lowercased) words and pairs of consecutive words.
+   *
+   * @param text The text.
+   * @return The signature, or 0 if the text has less than MIN_WORDS words.
+   */
+  static long simHash(String text) {
+    List<String> words = words(text);
+    if (words.size() < MIN_WORDS) return 0;
+
+    int[] weights = new int[64];
+    for (int i = 0; i < words.size(); ++i) {
+      addFeature(weights, hash(words.get(i)));
+      if (i > 0) addFeature(weights, hash(words.get(i - 1) + ' ' + words.get(i)));
+    }
+    long signature = 0;
+    for (int bit = 0; bit < 64; ++bit) {
+      if (weights[bit] > 0) signature |= 1L << bit;
+    }
+    return signature == 0 ? 1 : signature; // 0 means "no signature"
+  }
+
+  /**
+   * Split a text into its lowercased words (runs of letters and digits).
+   */
+  static List<String> words(String text) {
+    List<String> words = new ArrayList<String>();
+    for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+      if (! word.isEmpty()) words.add(word);
+    }
+    return words;
+  }
+
+  private static void addFeature(int[] weights, long hash) {
+    for (int bit = 0; bit < 64; ++bit) {
+      weights[bit] += ((hash >>> bit) & 1) != 0 ? 1 : -1;
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a hash of a string, with the MurmurHash3 finalizer to spread the bits.
+   */
+  static long hash(String feature) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < feature.length(); ++i) {
+      hash ^= feature.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+}
@@ -0,0 +1,29 @@
+package youtubesearcher;
+
+import java.io.Writer;
+
+/**
+ * Writer discarding everything, for rendering results that are not needed (load tests and
+ * benchmarks of whole retriever requests).
+ */
+class NullWriter extends Writer {
+  @Override
+  public void write(char[] cbuf, int off, int len) {
+    // Discard
+  }
+
+  @Override
+  public void write(String str, int off, int len) {
+    // Discard
+  }
+
+  @Override
+  public void flush() {
+    // Nothing to flush
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close
+  }
+}
@@ -0,0 +1,159 @@
+package youtubesearcher;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+
+/**
+ * IndexSearcher that searches parts of the index in parallel on a shared, bounded thread pool.
+ *
+ * For a sharded index (a MultiReader over all shards, see IndexShards.openReader()) every shard
+ * is searched separately. The query weight, and hence the scores, are still computed with the
+ * statistics of the whole index, and the per-slice top hits are merged into the global top hits
+ * (including total hits and searchAfter() pagination) by IndexSearcher itself.
+ *
+ * With segment parallelism enabled, the segments of every shard (or of an unsharded index) are
+ * also split into several slices. Large segments get a slice of their own; small segments are
+ * grouped together, since searching a tiny segment costs less than handing it to another thread.
+ * This mostly helps expensive queries, e.g. filter-only queries matching most of the index.
+ */
+class ParallelIndexSearcher extends IndexSearcher {
+
+  /** Maximum number of documents in a slice, unless it is a single segment. */
+  static final int MAX_DOCS_PER_SLICE = 250000;
+  /** Maximum number of segments in a slice. */
+  static final int MAX_SEGMENTS_PER_SLICE = 5;
+
+  /*
+   * Executor shared by all searches in this JVM, so that concurrent requests share the same
+   * number of cores instead of each starting its own threads. The threads are daemons so that a
+   * one-shot retriever process exits without shutting it down.
+   */
+  private static final ExecutorService SEARCH_EXECUTOR = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "search-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /**
+   * Create a searcher.
+   *
+   * @param reader The reader (a MultiReader of the shards for a sharded index).
+   * @param splitSegments Whether to also search the segments of each shard in parallel.
+   * @return The searcher.
+   */
+  static ParallelIndexSearcher create(IndexReader reader, boolean splitSegments) {
+    return splitSegments ? new SegmentParallelIndexSearcher(reader)
+                         : new ParallelIndexSearcher(reader);
+  }
+
+  ParallelIndexSearcher(IndexReader reader) {
+    super(reader, SEARCH_EXECUTOR);
+  }
+
+  /**
+   * Make the slices searched in parallel.
+   */
+  @Override
+  protected LeafSlice[] slices(List<LeafReaderContext> leaves) {
+    // Note: called from the super constructor; only the top-level reader context can be used.
+    List<LeafSlice> slices = new ArrayList<LeafSlice>();
+    for (List<LeafReaderContext> shardLeaves : groupByShard(leaves)) {
+      slices.addAll(sliceShard(shardLeaves));
+    }
+    return slices.toArray(new LeafSlice[slices.size()]);
+  }
+
+  /**
+   * Make the slices of one shard: a single slice with all its segments.
+   */
+  List<LeafSlice> sliceShard(List<LeafReaderContext> shardLeaves) {
+    return Collections.singletonList(
+        new LeafSlice(shardLeaves.toArray(new LeafReaderContext[shardLeaves.size()])));
+  }
+
+  /**
+   * Searcher that also searches the segments of each shard in parallel
+   */
+  static class SegmentParallelIndexSearcher extends ParallelIndexSearcher {
+
+    SegmentParallelIndexSearcher(IndexReader reader) {
+      super(reader);
+    }
+
+    @Override
+    List<LeafSlice> sliceShard(List<LeafReaderContext> shardLeaves) {
+      return sliceSegments(shardLeaves);
+    }
+  }
+
+  /**
+   * Group the leaves by shard (i.e. by sub-reader of the top-level MultiReader).
+   */
+  private List<List<LeafReaderContext>> groupByShard(List<LeafReaderContext> leaves) {
+    if (! (getIndexReader() instanceof MultiReader)) {
+      // Not a reader of shards
+      return Collections.singletonList(leaves);
+    }
+    // The leaves are in shard order; a shard owns the leaves from its docBase to the next one's.
+    List<IndexReaderContext> shards = getTopReaderContext().children();
+    List<List<LeafReaderContext>> shardLeaves = new ArrayList<List<LeafReaderContext>>();
+    int leaf = 0;
+    for (int i = 0; i < shards.size(); ++i) {
+      int shardEnd = i + 1 < shards.size() ? shards.get(i + 1).docBaseInParent
+                                           : getIndexReader().maxDoc();
+      List<LeafReaderContext> currentShard = new ArrayList<LeafReaderContext>();
+      while (leaf < leaves.size() && (leaves.get(leaf).docBase < shardEnd
+                                      || leaves.get(leaf).reader().maxDoc() == 0)) {
+        currentShard.add(leaves.get(leaf++));
+      }
+      shardLeaves.add(currentShard);
+    }
+    return shardLeaves;
+  }
+
+  /**
+   * Split segments into slices of at most MAX_DOCS_PER_SLICE documents and
+   * MAX_SEGMENTS_PER_SLICE segments.
+   *
+   * The slices are kept in document ID order: IndexSearcher breaks score ties between slices by
+   * slice number, and searchAfter() pagination relies on ties being ordered by document ID.
+   */
+  static List<LeafSlice> sliceSegments(List<LeafReaderContext> leaves) {
+    List<LeafSlice> slices = new ArrayList<LeafSlice>();
+    List<LeafReaderContext> group = new ArrayList<LeafReaderContext>();
+    long groupDocs = 0;
+    for (LeafReaderContext leaf : leaves) {
+      int maxDoc = leaf.reader().maxDoc();
+      if (! group.isEmpty() && (groupDocs + maxDoc > MAX_DOCS_PER_SLICE
+                                || group.size() == MAX_SEGMENTS_PER_SLICE)) {
+        slices.add(new LeafSlice(group.toArray(new LeafReaderContext[group.size()])));
+        group.clear();
+        groupDocs = 0;
+      }
+      group.add(leaf);
+      groupDocs += maxDoc;
+    }
+    if (! group.isEmpty() || slices.isEmpty()) {
+      slices.add(new LeafSlice(group.toArray(new LeafReaderContext[group.size()])));
+    }
+    return slices;
+  }
+
+}
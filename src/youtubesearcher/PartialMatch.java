@@ -0,0 +1,177 @@
+package youtubesearcher;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.ngram.EdgeNGramTokenFilter;
+import org.apache.lucene.analysis.ngram.NGramTokenFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Partial matching of the names and titles (fields userName, videoTitle and channelTitle).
+ *
+ * Every word of these fields is also indexed as n-grams in two sub-fields: its prefixes of up to
+ * MAX_EDGE_GRAM characters in "FIELD.edge", and its substrings of MIN_INFIX_GRAM to MAX_INFIX_GRAM
+ * characters in "FIELD.infix". The retriever parses the filters of these fields with Parser,
+ * which turns a prefix query (pew*) into a lookup of one term of the edge field and an infix
+ * query (*die*) into a lookup of one term of the infix field, instead of expanding the pattern
+ * over the terms dictionary of the field. Patterns the n-grams don't cover (longer ones, other
+ * wildcards, several words) are left to the usual wildcard queries.
+ *
+ * The sub-fields are neither stored nor scored (the filters don't score), and only record which
+ * documents have a term.
+ */
+class PartialMatch {
+
+  static final String[] FIELDS = {"userName", "videoTitle", "channelTitle"};
+  static final String EDGE_SUFFIX = ".edge";
+  static final String INFIX_SUFFIX = ".infix";
+
+  static final int MAX_EDGE_GRAM = 20;
+  static final int MIN_INFIX_GRAM = 3;
+  static final int MAX_INFIX_GRAM = 10;
+
+  /* A single word, which the StandardTokenizer of the n-gram fields leaves whole */
+  private static final Pattern WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+  /* A query term matching words containing a word, e.g. *die* */
+  private static final Pattern INFIX_PATTERN = Pattern.compile("\\*([\\p{L}\\p{N}]+)\\*");
+
+  private static final FieldType GRAM_FIELD_TYPE = new FieldType();
+  static {
+    GRAM_FIELD_TYPE.setIndexOptions(IndexOptions.DOCS);
+    GRAM_FIELD_TYPE.setTokenized(true);
+    GRAM_FIELD_TYPE.setOmitNorms(true);
+    GRAM_FIELD_TYPE.freeze();
+  }
+
+  private PartialMatch() {
+  }
+
+  /**
+   * Add the n-gram sub-fields of a name or title to the document of a comment.
+   *
+   * @param doc The document.
+   * @param field One of FIELDS.
+   * @param value The name or title.
+   */
+  static void addFields(Document doc, String field, String value) {
+    doc.add(new Field(field + EDGE_SUFFIX, value, GRAM_FIELD_TYPE));
+    doc.add(new Field(field + INFIX_SUFFIX, value, GRAM_FIELD_TYPE));
+  }
+
+  /**
+   * Get the analyzer of the index: n-grams for the sub-fields, a given analyzer for the others.
+   *
+   * @param defaultAnalyzer The analyzer of all the other fields.
+   * @return The analyzer to configure the IndexWriter with.
+   */
+  static Analyzer indexAnalyzer(Analyzer defaultAnalyzer) {
+    Analyzer edgeAnalyzer = new GramAnalyzer(true);
+    Analyzer infixAnalyzer = new GramAnalyzer(false);
+    Map<String, Analyzer> fieldAnalyzers = new HashMap<String, Analyzer>();
+    for (String field : FIELDS) {
+      fieldAnalyzers.put(field + EDGE_SUFFIX, edgeAnalyzer);
+      fieldAnalyzers.put(field + INFIX_SUFFIX, infixAnalyzer);
+    }
+    return new PerFieldAnalyzerWrapper(defaultAnalyzer, fieldAnalyzers);
+  }
+
+  private static boolean hasGramFields(String field) {
+    for (String gramField : FIELDS) {
+      if (gramField.equals(field)) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Make the lookup of an n-gram term, or of the equivalent query on the field itself in indexes
+   * with comments indexed before the n-gram sub-fields existed.
+   *
+   * @param field The field (one of FIELDS).
+   * @param gramField The n-gram sub-field of the term.
+   * @param gram The n-gram.
+   * @param fallback The query on the field that the term stands for.
+   */
+  private static Query gramQuery(String field, String gramField, String gram, Query fallback) {
+    // The edge field has a term for every word of the field (the infix field misses short ones)
+    return new SubFieldQuery(new TermQuery(new Term(gramField, gram)), fallback,
+                             field + EDGE_SUFFIX, field);
+  }
+
+  /**
+   * Analyzer of the n-gram sub-fields: the words of the StandardAnalyzer (without removing stop
+   * words, which are names too), lowercased and cut into n-grams.
+   */
+  private static class GramAnalyzer extends Analyzer {
+    private final boolean edge;
+
+    GramAnalyzer(boolean edge) {
+      this.edge = edge;
+    }
+
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+      Tokenizer tokenizer = new StandardTokenizer();
+      TokenStream stream = new LowerCaseFilter(tokenizer);
+      stream = edge ? new EdgeNGramTokenFilter(stream, 1, MAX_EDGE_GRAM)
+                    : new NGramTokenFilter(stream, MIN_INFIX_GRAM, MAX_INFIX_GRAM);
+      return new TokenStreamComponents(tokenizer, stream);
+    }
+  }
+
+  /**
+   * Query parser of the filters on names and titles, which looks up the partial words covered by
+   * the n-gram sub-fields as single terms.
+   */
+  static class Parser extends org.apache.lucene.queryparser.classic.QueryParser {
+
+    /**
+     * @param field The field searched by default (one of FIELDS).
+     * @param analyzer The analyzer of the field (StandardAnalyzer).
+     */
+    Parser(String field, Analyzer analyzer) {
+      super(field, analyzer);
+    }
+
+    @Override
+    protected Query newPrefixQuery(Term prefix) {
+      Query prefixQuery = super.newPrefixQuery(prefix);
+      String text = prefix.text();
+      if (! hasGramFields(prefix.field()) || text.length() > MAX_EDGE_GRAM
+          || ! WORD.matcher(text).matches()) {
+        return prefixQuery;
+      }
+      return gramQuery(prefix.field(), prefix.field() + EDGE_SUFFIX, text, prefixQuery);
+    }
+
+    @Override
+    protected Query getWildcardQuery(String field, String termStr) throws ParseException {
+      Matcher infix = INFIX_PATTERN.matcher(termStr);
+      if (hasGramFields(field) && infix.matches()) {
+        String text = getAnalyzer().normalize(field, infix.group(1)).utf8ToString();
+        if (text.length() >= MIN_INFIX_GRAM && text.length() <= MAX_INFIX_GRAM) {
+          // Leading wildcards are only accepted here, where they cost a single term lookup
+          Query wildcardQuery = newWildcardQuery(new Term(field, "*" + text + "*"));
+          return gramQuery(field, field + INFIX_SUFFIX, text, wildcardQuery);
+        }
+      }
+      return super.getWildcardQuery(field, termStr);
+    }
+  }
+
+}
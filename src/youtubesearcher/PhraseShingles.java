@@ -0,0 +1,143 @@
+package youtubesearcher;
+
+import java.util.Collections;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.analysis.shingle.ShingleAnalyzerWrapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Phrase queries on the comment text through shingles (indexer option -shingles).
+ *
+ * The comment text can also be indexed as the pairs of its consecutive words ("this song",
+ * "song is", ...) in the sub-field "commentText.shingles", analyzed exactly like the text itself
+ * (stop words leave a filler "_" in the pairs). A phrase of common words is slow on the text, as
+ * the long position lists of all its words have to be intersected, while its pairs are rare:
+ * - a phrase of 2 words ("this song") becomes a lookup of one term of the sub-field, without
+ *   reading any position;
+ * - a longer phrase becomes a phrase of pairs on the sub-field ("this song" "is amazing" for
+ *   "this song is amazing"), which only reads the positions of these rare pairs;
+ * - a phrase with stop words ("love of my life") is still matched on the positions of the text,
+ *   but its adjacent words are required as pairs ("my life"), so that the rare pairs lead the
+ *   search and the positions are only read for the comments having them.
+ * Sloppy phrases ("love song"~2), and phrases on indexes or comments without the sub-field (see
+ * SubFieldQuery), are matched on the text as before.
+ */
+class PhraseShingles {
+
+  static final String TEXT_FIELD = "commentText";
+  static final String FIELD = TEXT_FIELD + ".shingles";
+
+  private static final String SEPARATOR = " ";
+
+  private PhraseShingles() {
+  }
+
+  /**
+   * Add the shingle sub-field of the comment text to the document of a comment.
+   *
+   * @param doc The document, with the field commentText.
+   */
+  static void addField(Document doc) {
+    doc.add(new TextField(FIELD, doc.get(TEXT_FIELD), Field.Store.NO));
+  }
+
+  /**
+   * Get the analyzer of the index: shingles of the text analysis for the sub-field, a given
+   * analyzer for the other fields.
+   *
+   * @param defaultAnalyzer The analyzer of the other fields, including commentText.
+   * @return The analyzer to configure the IndexWriter with.
+   */
+  static Analyzer indexAnalyzer(Analyzer defaultAnalyzer) {
+    // Texts of a single word get it as is, so that every comment with words has the sub-field
+    Analyzer shingleAnalyzer = new ShingleAnalyzerWrapper(defaultAnalyzer, 2, 2, SEPARATOR,
+                                                          false, true, "_");
+    return new PerFieldAnalyzerWrapper(defaultAnalyzer,
+                                       Collections.singletonMap(FIELD, shingleAnalyzer));
+  }
+
+  /**
+   * Query parser of the comment text, which turns the phrases into queries on the shingles.
+   */
+  static class Parser extends org.apache.lucene.queryparser.classic.QueryParser {
+
+    /**
+     * @param analyzer The analyzer of the comment text (StandardAnalyzer).
+     */
+    Parser(Analyzer analyzer) {
+      super(TEXT_FIELD, analyzer);
+    }
+
+    @Override
+    protected Query getFieldQuery(String field, String queryText, int slop)
+                                                                 throws ParseException {
+      Query query = super.getFieldQuery(field, queryText, slop);
+      if (! TEXT_FIELD.equals(field) || ! (query instanceof PhraseQuery)) return query;
+      return shingleQuery((PhraseQuery) query);
+    }
+  }
+
+  /**
+   * Make the query on the shingles of a phrase query on the comment text.
+   *
+   * @param phrase The phrase query.
+   * @return The equivalent query on the shingles (falling back to the phrase query on indexes
+   *         without them), or the phrase query itself if it is sloppy or has no adjacent words.
+   */
+  static Query shingleQuery(PhraseQuery phrase) {
+    if (phrase.getSlop() != 0) return phrase; // the words of a sloppy phrase need not be adjacent
+    Term[] terms = phrase.getTerms();
+    int[] positions = phrase.getPositions();
+    int numPairs = 0;
+    boolean gapless = true;
+    for (int i = 0; i + 1 < terms.length; ++i) {
+      if (positions[i + 1] == positions[i] + 1) {
+        ++numPairs;
+      } else {
+        gapless = false;
+      }
+    }
+    if (numPairs == 0) return phrase;
+
+    Query query;
+    if (gapless) {
+      if (terms.length == 2) {
+        query = new TermQuery(pair(terms, 0));
+      } else {
+        // Every other pair covers all the words, with the last pair for an odd number of words
+        PhraseQuery.Builder builder = new PhraseQuery.Builder();
+        for (int i = 0; i + 1 < terms.length; i += 2) {
+          builder.add(pair(terms, i), i);
+        }
+        if (terms.length % 2 == 1) builder.add(pair(terms, terms.length - 2), terms.length - 2);
+        query = builder.build();
+      }
+    } else {
+      BooleanQuery.Builder builder = new BooleanQuery.Builder();
+      builder.add(phrase, Occur.MUST);
+      for (int i = 0; i + 1 < terms.length; ++i) {
+        if (positions[i + 1] == positions[i] + 1) {
+          builder.add(new TermQuery(pair(terms, i)), Occur.FILTER);
+        }
+      }
+      query = builder.build();
+    }
+    return new SubFieldQuery(query, phrase, FIELD, TEXT_FIELD);
+  }
+
+  private static Term pair(Term[] terms, int i) {
+    return new Term(FIELD, terms[i].text() + SEPARATOR + terms[i + 1].text());
+  }
+
+}
@@ -0,0 +1,142 @@
+package youtubesearcher;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Log of the queries received by the retriever, one JSON object per line.
+ *
+ * Every entry holds all inputs of a search request (the comment and reply queries, the six
+ * filters, the date range, the page/max options, the sort order, the collapsing of
+ * near-duplicates and the grouping), so that the log can be replayed against an index by
+ * SearchLoadTester.
+ */
+class QueryLog {
+
+  private static final Gson GSON = new Gson();
+
+  /**
+   * One logged search request
+   */
+  static class Entry {
+    long time;           // when the query was received (milliseconds since the epoch)
+    String commentQuery;
+    String replyQuery;
+    String userName;
+    String userId;
+    String videoTitle;
+    String videoId;
+    String channelTitle;
+    String channelId;
+    String from;         // date range (YYYY-MM-DD), null if open
+    String to;
+    int page;
+    int max;
+    String sort;         // RECENT or LIKES, null for relevance
+    boolean collapseDuplicates;
+    String groupBy;      // VIDEO or THREAD, null if the hits are not grouped
+    int groupHits;
+
+    Entry(String commentQuery, String replyQuery, String userName, String userId, 
+          String videoTitle, String videoId, String channelTitle, String channelId, 
+          int page, int max) {
+      this.time = System.currentTimeMillis();
+      this.commentQuery = commentQuery;
+      this.replyQuery = replyQuery;
+      this.userName = userName;
+      this.userId = userId;
+      this.videoTitle = videoTitle;
+      this.videoId = videoId;
+      this.channelTitle = channelTitle;
+      this.channelId = channelId;
+      this.page = page;
+      this.max = max;
+    }
+
+    /**
+     * Make the retriever command-line arguments that reproduce this request.
+     *
+     * @param indexDir The index to search.
+     * @return The command-line arguments.
+     */
+    String[] toArgs(File indexDir) {
+      List<String> args = new ArrayList<String>();
+      args.add("-i");
+      args.add(indexDir.getPath());
+      addArg(args, "-q", commentQuery);
+      addArg(args, "-rq", replyQuery);
+      addArg(args, "-un", userName);
+      addArg(args, "-ui", userId);
+      addArg(args, "-vt", videoTitle);
+      addArg(args, "-vi", videoId);
+      addArg(args, "-ct", channelTitle);
+      addArg(args, "-ci", channelId);
+      addArg(args, "-from", from);
+      addArg(args, "-to", to);
+      if (page > 0) addArg(args, "-p", String.valueOf(page));
+      if (max > 0) addArg(args, "-m", String.valueOf(max));
+      addArg(args, "-s", sort);
+      if (collapseDuplicates) args.add("-cd");
+      addArg(args, "-g", groupBy);
+      if (groupBy != null && groupHits > 0) addArg(args, "-gh", String.valueOf(groupHits));
+      return args.toArray(new String[args.size()]);
+    }
+
+    private static void addArg(List<String> args, String option, String value) {
+      if (value != null && ! value.isEmpty()) {
+        args.add(option);
+        args.add(value);
+      }
+    }
+  }
+
+  /**
+   * Append an entry to a query log file.
+   *
+   * The line is written with a single append so that concurrent retriever processes (e.g. CGI
+   * requests) don't interleave their entries.
+   *
+   * @param logFile The query log file (created if it does not exist).
+   * @param entry The entry to append.
+   * @throws IOException
+   */
+  static void append(File logFile, Entry entry) throws IOException {
+    byte[] line = (GSON.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8);
+    Files.write(logFile.toPath(), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+  }
+
+  /**
+   * Read all entries of a query log file. Malformed lines are skipped.
+   *
+   * @param logFile The query log file.
+   * @return The entries in the order they were logged.
+   * @throws IOException
+   */
+  static List<Entry> read(File logFile) throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    try (BufferedReader reader = Files.newBufferedReader(logFile.toPath(),
+                                                         StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty()) continue;
+        try {
+          Entry entry = GSON.fromJson(line, Entry.class);
+          if (entry != null) entries.add(entry);
+        } catch (JsonParseException e) {
+          System.err.println("Skipping malformed query log line: " + line);
+        }
+      }
+    }
+    return entries;
+  }
+
+}
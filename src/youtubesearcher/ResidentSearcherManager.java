@@ -0,0 +1,206 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Searcher kept open by a long-running process (e.g. a SearchNode serving a replica) and
+ * switched atomically to the latest commit of every shard on refresh.
+ *
+ * Like SearcherManager, but for an index that may be sharded: the searcher runs over a
+ * MultiReader of one DirectoryReader per shard, and a refresh reopens only the shards that
+ * changed. The sub-index directories are listed again on every refresh, so shards the indexer
+ * creates lazily and new time partitions are searched once they have a commit, and the
+ * directories that disappeared are dropped. Searches acquire() the current searcher and
+ * release() it when done; the old readers are closed once the last search using them released
+ * them. A new searcher is warmed up (if a warmer is given) before it replaces the current one.
+ */
+class ResidentSearcherManager extends ReferenceManager<IndexSearcher> {
+
+  private final File indexDir;
+  private final IndexShards.DirectoryMode directoryMode;
+  private final boolean parallel;
+  private final IndexWarmer warmer;
+  // The open sub-index directories (only used by the constructor and by refreshes, which
+  // ReferenceManager runs one at a time)
+  private final Map<File, Directory> directories = new HashMap<File, Directory>();
+
+  /**
+   * Open the index.
+   *
+   * @param indexDir The index directory.
+   * @param directoryMode How the index files are accessed.
+   * @param parallel Whether to search the segments in parallel (retriever option -parallel).
+   * @param warmer The warmer of new searchers, or null to not warm them up.
+   * @throws IOException
+   */
+  ResidentSearcherManager(File indexDir, IndexShards.DirectoryMode directoryMode,
+                          boolean parallel, IndexWarmer warmer) throws IOException {
+    this.indexDir = indexDir;
+    this.directoryMode = directoryMode;
+    this.parallel = parallel;
+    this.warmer = warmer;
+    List<DirectoryReader> shardReaders = new ArrayList<DirectoryReader>();
+    try {
+      for (Directory directory : listDirectories()) {
+        shardReaders.add(DirectoryReader.open(directory));
+      }
+    } catch (IOException e) {
+      release(shardReaders);
+      IOUtils.closeWhileHandlingException(directories.values());
+      throw e;
+    }
+    current = newSearcher(shardReaders);
+  }
+
+  /**
+   * List the sub-index directories of the index that have a commit, in shard (or partition)
+   * order, opening the new ones and closing the ones that disappeared.
+   */
+  private List<Directory> listDirectories() throws IOException {
+    List<Directory> listed = new ArrayList<Directory>();
+    Set<File> dirs = new HashSet<File>();
+    for (File dir : IndexShards.indexDirs(indexDir)) {
+      Directory directory = directories.get(dir);
+      if (directory == null) {
+        directory = directoryMode.open(dir.toPath());
+        directories.put(dir, directory);
+      }
+      dirs.add(dir);
+      // A shard is created on the first comment routed to it, and committed later
+      if (DirectoryReader.indexExists(directory)) {
+        listed.add(directory);
+      }
+    }
+    List<Directory> removed = new ArrayList<Directory>();
+    for (Iterator<Map.Entry<File, Directory>> it = directories.entrySet().iterator();
+         it.hasNext();) {
+      Map.Entry<File, Directory> entry = it.next();
+      if (! dirs.contains(entry.getKey())) {
+        removed.add(entry.getValue());
+        it.remove();
+      }
+    }
+    // Closing a directory doesn't close the files the old readers already opened
+    IOUtils.close(removed);
+    return listed;
+  }
+
+  /**
+   * Make a (warmed up) searcher over the readers of all shards, taking over one reference of
+   * every reader.
+   */
+  private IndexSearcher newSearcher(List<DirectoryReader> shardReaders) throws IOException {
+    IndexReader reader;
+    if (shardReaders.size() == 1) {
+      reader = shardReaders.get(0);
+    } else {
+      // The MultiReader holds its own references to the shard readers
+      reader = new MultiReader(shardReaders.toArray(new IndexReader[shardReaders.size()]),
+                               false);
+      release(shardReaders);
+    }
+    IndexSearcher searcher = YoutubeRetriever.newSearcher(reader, shardReaders.size() > 1,
+                                                          parallel);
+    if (warmer != null) {
+      try {
+        warmer.warm(searcher);
+      } catch (IOException | RuntimeException e) {
+        reader.decRef();
+        throw e;
+      }
+    }
+    return searcher;
+  }
+
+  /**
+   * Get the reader of every shard of a searcher's reader, by the directory of the shard.
+   */
+  private static Map<Directory, DirectoryReader> shardReaders(IndexReader reader) {
+    if (reader instanceof DirectoryReader) {
+      DirectoryReader shardReader = (DirectoryReader) reader;
+      return Collections.singletonMap(shardReader.directory(), shardReader);
+    }
+    Map<Directory, DirectoryReader> shardReaders = new HashMap<Directory, DirectoryReader>();
+    for (IndexReaderContext shard : reader.getContext().children()) {
+      DirectoryReader shardReader = (DirectoryReader) shard.reader();
+      shardReaders.put(shardReader.directory(), shardReader);
+    }
+    return shardReaders;
+  }
+
+  @Override
+  protected IndexSearcher refreshIfNeeded(IndexSearcher referenceToRefresh) throws IOException {
+    Map<Directory, DirectoryReader> oldReaders =
+        shardReaders(referenceToRefresh.getIndexReader());
+    List<Directory> listed = listDirectories();
+    List<DirectoryReader> shardReaders = new ArrayList<DirectoryReader>();
+    // A shard that disappeared changes the searcher too (the new ones are counted below)
+    boolean changed = listed.size() != oldReaders.size();
+    try {
+      for (Directory directory : listed) {
+        DirectoryReader oldReader = oldReaders.get(directory);
+        if (oldReader == null) {
+          shardReaders.add(DirectoryReader.open(directory));
+          changed = true;
+          continue;
+        }
+        DirectoryReader shardReader = DirectoryReader.openIfChanged(oldReader);
+        if (shardReader != null) {
+          changed = true;
+        } else {
+          oldReader.incRef();
+          shardReader = oldReader;
+        }
+        shardReaders.add(shardReader);
+      }
+    } catch (IOException e) {
+      release(shardReaders);
+      throw e;
+    }
+    if (! changed) {
+      release(shardReaders);
+      return null;
+    }
+    return newSearcher(shardReaders);
+  }
+
+  private static void release(List<DirectoryReader> shardReaders) throws IOException {
+    for (DirectoryReader shardReader : shardReaders) {
+      shardReader.decRef();
+    }
+  }
+
+  @Override
+  protected boolean tryIncRef(IndexSearcher reference) {
+    return reference.getIndexReader().tryIncRef();
+  }
+
+  @Override
+  protected void decRef(IndexSearcher reference) throws IOException {
+    reference.getIndexReader().decRef();
+  }
+
+  @Override
+  protected int getRefCount(IndexSearcher reference) {
+    return reference.getIndexReader().getRefCount();
+  }
+
+}
@@ -0,0 +1,192 @@
+package youtubesearcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+
+/**
+ * Renderer that streams one page of search results to an output.
+ *
+ * A renderer writes straight into a single (buffered) Writer as the results are produced, instead
+ * of building a String for every hit. The call sequence for a page is:
+ * beginResults(), result() for each hit, then endResults().
+ * Grouped results (retriever option -group-by) have beginGroup(), result() for each hit of the
+ * group and endGroup() for each group between beginResults() and endResults().
+ * When searching remote nodes, partialResults() may be called before beginResults(), and
+ * timedOut() when the time budget of the search ran out, and totalHitsLowerBound() when the
+ * search stopped counting the hits early; maxDepth() limits the pagination to the reachable
+ * results.
+ */
+abstract class ResultRenderer implements Closeable {
+
+  /**
+   * Output formats supported by the retriever.
+   */
+  enum Format {
+    HTML, JSON;
+  }
+
+  protected final Writer out; // the output all results are written to
+  protected List<String> unavailableNodes = Collections.emptyList(); // nodes missing from results
+  protected boolean timedOut = false; // whether the search was cut by its time budget
+  protected boolean totalHitsLowerBound = false; // whether not all hits were counted
+  protected int maxDepth = 0; // deepest result reachable by pagination (0 for no limit)
+
+  protected ResultRenderer(Writer out) {
+    this.out = out;
+  }
+
+  /**
+   * Report that some search nodes did not answer, so the results are partial.
+   * Must be called before beginResults().
+   *
+   * @param unavailableNodes The shard groups (as given to the coordinator) that did not answer.
+   */
+  void partialResults(List<String> unavailableNodes) {
+    this.unavailableNodes = unavailableNodes;
+  }
+
+  /**
+   * Report that the search ran out of time (retriever option -time-budget), so the results are
+   * partial. Must be called before beginResults().
+   */
+  void timedOut() {
+    this.timedOut = true;
+  }
+
+  /**
+   * Report that the search stopped collecting hits after the page (the index is sorted in the
+   * order of the hits), so the total number of hits is a lower bound.
+   * Must be called before beginResults().
+   */
+  void totalHitsLowerBound() {
+    this.totalHitsLowerBound = true;
+  }
+
+  /**
+   * Limit the pagination to the results reachable (retriever option -max-depth).
+   * Must be called before beginResults().
+   *
+   * @param maxDepth The deepest result reachable, 0 for no limit.
+   */
+  void maxDepth(int maxDepth) {
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * Start a page of results.
+   *
+   * @param commentQuery The comment query string (may be null or empty).
+   * @param suggestion Spellchecker suggestion for the comment query (null if there is none).
+   * @param numTotalHits Total number of hits of the query.
+   * @param page The page number being rendered.
+   * @param hitsPerPage Number of hits per page.
+   * @throws IOException
+   */
+  abstract void beginResults(String commentQuery, String suggestion,
+                             int numTotalHits, int page, int hitsPerPage) throws IOException;
+
+  /**
+   * Render one hit.
+   *
+   * @param rank Rank of the hit in the whole result list (starting from 1).
+   * @param score Relevance score of the hit.
+   * @param doc The stored fields of the hit.
+   * @param highlightedText The comment text with highlights as escaped HTML,
+   *                        or null if the comment text is not highlighted.
+   * @param parentDoc The stored fields of the parent comment if the hit is a reply,
+   *                  or null if the hit is not a reply or the parent is not indexed.
+   * @throws IOException
+   */
+  abstract void result(int rank, float score, Document doc,
+                       String highlightedText, Document parentDoc) throws IOException;
+
+  /**
+   * Start a group of results.
+   *
+   * @param rank Rank of the group in the whole list of groups (starting from 1).
+   * @param groupBy What the hits are grouped by.
+   * @param groupValue The video ID or thread (top-level comment) ID shared by the hits.
+   * @param numHits Total number of hits in the group (more than rendered if the group is cut).
+   * @throws IOException
+   */
+  abstract void beginGroup(int rank, YoutubeRetriever.GroupBy groupBy, String groupValue, 
+                           int numHits) throws IOException;
+
+  /**
+   * Finish a group of results.
+   *
+   * @throws IOException
+   */
+  abstract void endGroup() throws IOException;
+
+  /**
+   * Finish the page of results.
+   *
+   * @throws IOException
+   */
+  abstract void endResults() throws IOException;
+
+  /**
+   * Flush everything rendered so far to the underlying output,
+   * e.g. to let the first results reach the client before the whole page is rendered.
+   *
+   * @throws IOException
+   */
+  void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Create a renderer for an output format.
+   *
+   * @param format The output format.
+   * @param out The output to render to.
+   * @param webpageUrl URL of the search engine webpage (used by HTML links).
+   * @param linkParameters URL-encoded filter parameters appended to re-search links.
+   * @return A renderer.
+   */
+  static ResultRenderer create(Format format, Writer out,
+                               String webpageUrl, String linkParameters) {
+    switch (format) {
+      case JSON:
+        return new JsonResultRenderer(out);
+      case HTML:
+      default:
+        return new HtmlResultRenderer(out, webpageUrl, linkParameters);
+    }
+  }
+
+  /**
+   * Get a stored field as a String; returns an empty string instead of null for missing fields.
+   */
+  static String field(Document doc, String fieldName) {
+    String value = doc.get(fieldName);
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Get a stored numeric field as an int; returns 0 for missing fields.
+   */
+  static int intField(Document doc, String fieldName) {
+    IndexableField field = doc.getField(fieldName);
+    if (field == null) return 0;
+    if (field.numericValue() != null) return field.numericValue().intValue();
+    try {
+      return Integer.parseInt(field.stringValue());
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+}
@@ -0,0 +1,176 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Time budget of a search request (retriever option -time-budget).
+ *
+ * The query searched is wrapped by wrap(), which collects the hits of every segment in windows
+ * of WINDOW_SIZE documents and checks the clock between windows. Once the deadline has passed,
+ * the rest of the segment and the following segments are skipped, so the search returns the
+ * hits found so far (partial results, reported by isExceeded()) instead of running to the end.
+ * This works for every kind of search (top hits, sorted, paginated, grouped), as they all
+ * collect through the bulk scorer of the query.
+ *
+ * The rewrite of the query (e.g. the expansion of a wildcard over the terms dictionary) happens
+ * before the collection and is not interrupted; see ExpansionLimit. The retriever also stops
+ * highlighting the hits once the budget has run out (hasRunOut()).
+ */
+class SearchBudget {
+
+  private static final int WINDOW_SIZE = 4096;
+
+  private final long deadline; // System.nanoTime() at the end of the budget
+  private volatile boolean exceeded = false;
+
+  /**
+   * Start the budget of a request.
+   *
+   * @param budgetMillis The budget, in milliseconds from now.
+   */
+  SearchBudget(long budgetMillis) {
+    deadline = System.nanoTime() + budgetMillis * 1000000L;
+  }
+
+  /**
+   * Check whether the budget ran out during a search, so its results are partial.
+   */
+  boolean isExceeded() {
+    return exceeded;
+  }
+
+  /**
+   * Check whether the budget has run out by now, e.g. to skip optional work after the search.
+   */
+  boolean hasRunOut() {
+    return System.nanoTime() - deadline >= 0;
+  }
+
+  private boolean checkExceeded() {
+    if (! exceeded && hasRunOut()) exceeded = true;
+    return exceeded;
+  }
+
+  /**
+   * Wrap a query to search it within the budget. The scores of the hits are unchanged.
+   *
+   * @param query The query.
+   * @return The query to search.
+   */
+  Query wrap(Query query) {
+    return new BudgetedQuery(query);
+  }
+
+  private class BudgetedQuery extends Query {
+    private final Query query;
+
+    BudgetedQuery(Query query) {
+      this.query = query;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+      Query rewritten = query.rewrite(reader);
+      return rewritten == query ? this : new BudgetedQuery(rewritten);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores) throws IOException {
+      return new BudgetedWeight(this, searcher.createWeight(query, needsScores));
+    }
+
+    @Override
+    public String toString(String field) {
+      return query.toString(field);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      // Only equal within one request, so that partial results are never reused
+      return sameClassAs(other) && budget() == ((BudgetedQuery) other).budget()
+             && query.equals(((BudgetedQuery) other).query);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * classHash() + System.identityHashCode(budget())) + query.hashCode();
+    }
+
+    private SearchBudget budget() {
+      return SearchBudget.this;
+    }
+  }
+
+  private class BudgetedWeight extends Weight {
+    private final Weight in;
+
+    BudgetedWeight(Query query, Weight in) {
+      super(query);
+      this.in = in;
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+      in.extractTerms(terms);
+    }
+
+    @Override
+    public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+      return in.explain(context, doc);
+    }
+
+    @Override
+    public float getValueForNormalization() throws IOException {
+      return in.getValueForNormalization();
+    }
+
+    @Override
+    public void normalize(float norm, float boost) {
+      in.normalize(norm, boost);
+    }
+
+    @Override
+    public Scorer scorer(LeafReaderContext context) throws IOException {
+      return in.scorer(context);
+    }
+
+    @Override
+    public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+      if (checkExceeded()) return null; // skip the segment
+      final BulkScorer bulkScorer = in.bulkScorer(context);
+      if (bulkScorer == null) return null;
+      return new BulkScorer() {
+        @Override
+        public int score(LeafCollector collector, Bits acceptDocs, int min, int max)
+                                                                     throws IOException {
+          while (min < max) {
+            if (checkExceeded()) return DocIdSetIterator.NO_MORE_DOCS;
+            min = bulkScorer.score(collector, acceptDocs, min,
+                                   (int) Math.min((long) min + WINDOW_SIZE, max));
+          }
+          return min;
+        }
+
+        @Override
+        public long cost() {
+          return bulkScorer.cost();
+        }
+      };
+    }
+  }
+
+}
@@ -0,0 +1,323 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Coordinator of a distributed search over several SearchNode servers.
+ *
+ * The index is split into shard groups, each served by one or more replica nodes. A node list
+ * is written as the shard groups separated by commas, with the replicas of a group separated by
+ * "|", e.g. "host1:8080|host2:8080,host3:8080" (two groups, the first one with two replicas).
+ *
+ * A query is sent to one replica of every group in parallel. Replicas are picked at random to
+ * spread the load, and the next replica is tried if one fails or is marked down after a recent
+ * failure. Groups that don't answer before the timeout are left out and reported as unavailable,
+ * so the results are partial instead of failing the whole search. The top hits of all groups are
+ * merged by score; the total hit counts are summed.
+ *
+ * Note that every node scores with the term statistics of its own shards only, so scores are
+ * comparable across groups only as long as the shards have similar term distributions (which
+ * routing by channel gives for large enough shards).
+ */
+class SearchCoordinator {
+
+  private static final String SEARCH_PATH = "/search";
+  private static final long DOWN_MILLIS = 10000; // how long a failed replica is avoided
+
+  /*
+   * Executor for the node requests, shared by all searches in this JVM.
+   * The threads are daemons so that a one-shot retriever process exits without shutting it down.
+   */
+  private static final ExecutorService NODE_EXECUTOR = Executors.newCachedThreadPool(
+      new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "node-" + threadNumber.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  /*
+   * Replicas that failed recently, with the time until which they are avoided
+   */
+  private static final ConcurrentMap<String, Long> DOWN_UNTIL = 
+      new ConcurrentHashMap<String, Long>();
+
+  private final List<List<String>> groups = new ArrayList<List<String>>(); // replicas of each group
+  private final List<String> groupSpecs = new ArrayList<String>();
+  private final int timeoutMillis;
+
+  /**
+   * One hit returned by a node
+   */
+  static class Hit {
+    final float score;
+    final int group;           // shard group the hit comes from
+    final int rank;            // rank of the hit in the results of its group
+    final Document doc;
+    final String highlightedText;
+    final Document parentDoc;
+
+    Hit(float score, int group, int rank, Document doc, String highlightedText,
+        Document parentDoc) {
+      this.score = score;
+      this.group = group;
+      this.rank = rank;
+      this.doc = doc;
+      this.highlightedText = highlightedText;
+      this.parentDoc = parentDoc;
+    }
+  }
+
+  /**
+   * Merged results of all nodes
+   */
+  static class Results {
+    int totalHits;
+    final List<Hit> hits = new ArrayList<Hit>();              // best first
+    final List<String> unavailableNodes = new ArrayList<String>();
+    boolean timedOut; // whether some node ran out of its time budget
+  }
+
+  /**
+   * Create a coordinator.
+   *
+   * @param nodeList The shard groups and their replicas, e.g. "host1:8080|host2:8080,host3:8080".
+   * @param timeoutMillis Time to wait for the nodes, in milliseconds.
+   */
+  SearchCoordinator(String nodeList, int timeoutMillis) {
+    for (String groupSpec : nodeList.split(",")) {
+      List<String> replicas = new ArrayList<String>();
+      for (String replica : groupSpec.split("\\|")) {
+        if (! replica.trim().isEmpty()) replicas.add(replica.trim());
+      }
+      if (! replicas.isEmpty()) {
+        groups.add(replicas);
+        groupSpecs.add(groupSpec.trim());
+      }
+    }
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Search all shard groups.
+   *
+   * @param parameters The search parameters sent to the nodes (see SearchNode).
+   * @param numHits Number of top hits to get from every group.
+   * @return The merged results.
+   */
+  Results search(Map<String, String> parameters, int numHits) {
+    final String queryString = queryString(parameters, numHits);
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    List<Future<JsonObject>> responses = new ArrayList<Future<JsonObject>>();
+    for (final List<String> replicas : groups) {
+      responses.add(NODE_EXECUTOR.submit(new Callable<JsonObject>() {
+        @Override
+        public JsonObject call() throws IOException {
+          return searchGroup(replicas, queryString, deadline);
+        }
+      }));
+    }
+
+    Results results = new Results();
+    for (int group = 0; group < groups.size(); ++group) {
+      JsonObject response = null;
+      try {
+        long remaining = Math.max(0, deadline - System.currentTimeMillis());
+        response = responses.get(group).get(remaining, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        responses.get(group).cancel(true);
+      } catch (ExecutionException e) {
+        // Reported below
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (response == null || ! addHits(results, group, response)) {
+        Metrics.counter("coordinator.unavailableGroups").increment();
+        results.unavailableNodes.add(groupSpecs.get(group));
+      }
+    }
+
+    Collections.sort(results.hits, new Comparator<Hit>() {
+      @Override
+      public int compare(Hit a, Hit b) {
+        // Ties are broken by group, then by rank in the group, so pages don't overlap
+        int result = Float.compare(b.score, a.score);
+        if (result == 0) result = Integer.compare(a.group, b.group);
+        if (result == 0) result = Integer.compare(a.rank, b.rank);
+        return result;
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Check whether no group answered at all.
+   */
+  boolean allUnavailable(Results results) {
+    return results.unavailableNodes.size() == groups.size();
+  }
+
+  /**
+   * Send a query to one replica of a shard group, failing over to the other replicas.
+   *
+   * @return The response of the first replica that answered.
+   * @throws IOException If no replica answered.
+   */
+  private static JsonObject searchGroup(List<String> replicas, String queryString, long deadline)
+                                                                            throws IOException {
+    // Start at a random replica to spread the load; replicas marked down are tried last.
+    List<String> order = new ArrayList<String>();
+    List<String> down = new ArrayList<String>();
+    int start = ThreadLocalRandom.current().nextInt(replicas.size());
+    for (int i = 0; i < replicas.size(); ++i) {
+      String replica = replicas.get((start + i) % replicas.size());
+      Long downUntil = DOWN_UNTIL.get(replica);
+      if (downUntil != null && downUntil > System.currentTimeMillis()) {
+        down.add(replica);
+      } else {
+        order.add(replica);
+      }
+    }
+    order.addAll(down);
+
+    IOException lastError = new IOException("No replica");
+    for (String replica : order) {
+      int remaining = (int) (deadline - System.currentTimeMillis());
+      if (remaining <= 0) break;
+      long startTime = System.nanoTime();
+      try {
+        JsonObject response = get(new URL("http://" + replica + SEARCH_PATH + "?" + queryString),
+                                  remaining);
+        Metrics.timer("coordinator.node").record(System.nanoTime() - startTime);
+        DOWN_UNTIL.remove(replica);
+        return response;
+      } catch (IOException | JsonParseException | IllegalStateException e) {
+        System.err.println("Search node " + replica + " failed: " + e);
+        Metrics.counter("coordinator.nodeErrors").increment();
+        DOWN_UNTIL.put(replica, System.currentTimeMillis() + DOWN_MILLIS);
+        lastError = e instanceof IOException ? (IOException) e : new IOException(e);
+      }
+    }
+    throw lastError;
+  }
+
+  private static JsonObject get(URL url, int timeoutMillis) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(timeoutMillis);
+    connection.setReadTimeout(timeoutMillis);
+    try {
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("HTTP status " + connection.getResponseCode());
+      }
+      try (InputStream in = connection.getInputStream();
+           Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+        return new JsonParser().parse(reader).getAsJsonObject();
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private static String queryString(Map<String, String> parameters, int numHits) {
+    Map<String, String> allParameters = new LinkedHashMap<String, String>(parameters);
+    allParameters.put("m", String.valueOf(numHits));
+    StringBuilder queryString = new StringBuilder();
+    for (Map.Entry<String, String> parameter : allParameters.entrySet()) {
+      if (parameter.getValue() == null || parameter.getValue().isEmpty()) continue;
+      if (queryString.length() != 0) queryString.append('&');
+      queryString.append(parameter.getKey()).append('=').append(urlEncode(parameter.getValue()));
+    }
+    return queryString.toString();
+  }
+
+  private static String urlEncode(String value) {
+    try {
+      return URLEncoder.encode(value, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e); // UTF-8 is always supported
+    }
+  }
+
+  /**
+   * Add the hits of a node response (a JSON page rendered by JsonResultRenderer) to the results.
+   *
+   * @return false if the response is malformed (nothing is added then).
+   */
+  private static boolean addHits(Results results, int group, JsonObject response) {
+    List<Hit> groupHits = new ArrayList<Hit>();
+    int totalHits;
+    try {
+      totalHits = response.get("totalHits").getAsInt();
+      JsonArray hits = response.getAsJsonArray("results");
+      for (int rank = 0; rank < hits.size(); ++rank) {
+        JsonObject hit = hits.get(rank).getAsJsonObject();
+        JsonElement highlightedText = hit.get("highlightedText");
+        groupHits.add(new Hit(hit.get("score").getAsFloat(), group, rank, toDocument(hit),
+                              highlightedText == null ? null : highlightedText.getAsString(),
+                              hit.has("parent") ? toDocument(hit.getAsJsonObject("parent"))
+                                                : null));
+      }
+    } catch (RuntimeException e) {
+      // Missing or mistyped member
+      System.err.println("Malformed response from search node: " + e);
+      return false;
+    }
+    results.totalHits += totalHits;
+    results.hits.addAll(groupHits);
+    if (response.has("timedOut")) results.timedOut = true;
+    return true;
+  }
+
+  /**
+   * Turn the stored fields of a hit back into a Document for the renderers.
+   */
+  private static Document toDocument(JsonObject fields) {
+    Document doc = new Document();
+    for (Map.Entry<String, JsonElement> field : fields.entrySet()) {
+      if (field.getValue().isJsonPrimitive()) {
+        doc.add(new StoredField(field.getKey(), field.getValue().getAsString()));
+      }
+    }
+    return doc;
+  }
+
+}
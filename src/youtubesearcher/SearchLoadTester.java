@@ -0,0 +1,380 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Load generator for the retriever.
+ *
+ * Replays a query log recorded by the retriever (option -query-log), or a synthetic mix of
+ * queries sampled from the index, against an index at a given rate and concurrency. Every
+ * request goes through the same code path as a real retriever request (open the index, search,
+ * render), with the rendered output discarded. At the end, latency percentiles, throughput and
+ * GC pauses are reported.
+ */
+public class SearchLoadTester {
+
+  /*
+   * command-line arguments for the entry point
+   */
+  @Option(name = "-index", aliases = "-i", required = true,
+          usage = "Path to the directory of the index files to be searched. Required option.")
+  private File indexDir;
+
+  @Option(name = "-query-log", aliases = "-ql", forbids = {"-synthetic"},
+          usage = "Query log to replay. The queries are replayed in order, repeatedly if needed.")
+  private File queryLogFile;
+
+  @Option(name = "-synthetic", aliases = "-s", forbids = {"-query-log"},
+          usage = "Replay a synthetic mix of this many distinct queries sampled from the index.")
+  private int numSyntheticQueries = 0;
+
+  @Option(name = "-requests", aliases = "-n",
+          usage = "Total number of requests to send.")
+  private int numRequests = 1000;
+
+  @Option(name = "-qps",
+          usage = "Target request rate (requests per second). "
+                  + "0 (default) sends requests back to back from every thread.")
+  private double qps = 0;
+
+  @Option(name = "-concurrency", aliases = "-c",
+          usage = "Number of requests executed concurrently.")
+  private int concurrency = 4;
+
+  @Option(name = "-warmup", aliases = "-w",
+          usage = "Number of requests sent before measuring.")
+  private int numWarmupRequests = 100;
+
+  @Option(name = "-parallel", aliases = "-par",
+          usage = "Search the segments of the index in parallel (retriever option -parallel).")
+  private boolean parallel = false;
+
+  @Option(name = "-directory", aliases = "-dir",
+          usage = "How the index files are accessed (retriever option -directory).")
+  private IndexShards.DirectoryMode directoryMode = IndexShards.DirectoryMode.AUTO;
+
+  @Option(name = "-seed",
+          usage = "Random seed of the synthetic query mix.")
+  private long seed = 42;
+
+  @Option(name = "-help", aliases = "-h", help = true,
+          usage = "Print help text.")
+  private boolean printHelp = false;
+
+  /*
+   * GC pauses observed during the measured run
+   */
+  private final AtomicInteger numGcPauses = new AtomicInteger();
+  private final AtomicLong totalGcPauseMillis = new AtomicLong();
+  private final AtomicLong maxGcPauseMillis = new AtomicLong();
+  private volatile boolean recordingGc = false;
+
+  @SuppressWarnings("deprecation")
+  private int parseArgs(String[] args) {
+    final CmdLineParser args4jCmdLineParser = new CmdLineParser(this);
+    try {
+      args4jCmdLineParser.parseArgument(args);
+      if (queryLogFile == null && numSyntheticQueries <= 0)
+        throw new CmdLineException("Must provide either a query log or a synthetic query count.");
+      if (numRequests < 1)
+        throw new CmdLineException("The number of requests must be at least 1.");
+      if (concurrency < 1)
+        throw new CmdLineException("The concurrency must be at least 1.");
+      if (numWarmupRequests < 0)
+        throw new CmdLineException("The number of warmup requests can't be negative.");
+    } catch (final CmdLineException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 2;
+    }
+
+    if (printHelp) {
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Make a synthetic mix of queries from comments sampled from the index.
+   *
+   * The mix contains keyword queries, phrase queries, queries restricted to a video and
+   * filter-only queries on a channel or a user, mostly on the first page.
+   *
+   * @param numQueries Number of queries to make.
+   * @return The queries.
+   * @throws IOException
+   */
+  private List<QueryLog.Entry> makeSyntheticQueries(int numQueries) throws IOException {
+    List<QueryLog.Entry> entries = new ArrayList<QueryLog.Entry>();
+    Random random = new Random(seed);
+    List<Directory> directories = IndexShards.openDirectories(indexDir);
+    try (IndexReader reader = IndexShards.openReader(directories)) {
+      if (reader.maxDoc() == 0) {
+        throw new IOException("No document in the index!");
+      }
+      while (entries.size() < numQueries) {
+        int docId = random.nextInt(reader.maxDoc());
+        Document doc = reader.document(docId);
+        String[] words = ResultRenderer.field(doc, "commentText").split("[^\\p{L}\\p{N}']+");
+        List<String> usableWords = new ArrayList<String>();
+        for (String word : words) {
+          if (word.length() >= 3) usableWords.add(word.toLowerCase());
+        }
+        if (usableWords.isEmpty()) continue;
+        String word = usableWords.get(random.nextInt(usableWords.size()));
+
+        int page = random.nextInt(100) < 80 ? 1
+                   : random.nextInt(100) < 75 ? 2 + random.nextInt(4) : 6 + random.nextInt(15);
+        int kind = random.nextInt(100);
+        QueryLog.Entry entry;
+        if (kind < 50) {
+          // Keyword query
+          String query = random.nextBoolean() || usableWords.size() < 2 ? word
+              : word + " " + usableWords.get(random.nextInt(usableWords.size()));
+          entry = new QueryLog.Entry(query, null, null, null, null, null, null, null,
+                                     page, 10);
+        } else if (kind < 65 && usableWords.size() >= 2) {
+          // Phrase query
+          int start = random.nextInt(usableWords.size() - 1);
+          int end = Math.min(usableWords.size(), start + 2 + random.nextInt(2));
+          String phrase = "\"" + String.join(" ", usableWords.subList(start, end)) + "\"";
+          entry = new QueryLog.Entry(phrase, null, null, null, null, null, null, null,
+                                     page, 10);
+        } else if (kind < 80) {
+          // Keyword query on one video
+          entry = new QueryLog.Entry(word, null, null, null, null, doc.get("videoId"), null, null,
+                                     page, 10);
+        } else if (kind < 90 && doc.get("channelId") != null) {
+          // All comments in a channel (the channel is not stored in compact indexes)
+          entry = new QueryLog.Entry(null, null, null, null, null, null, null, doc.get("channelId"),
+                                     page, 10);
+        } else {
+          // All comments of a user
+          entry = new QueryLog.Entry(null, null, null, doc.get("userId"), null, null, null, null,
+                                     page, 10);
+        }
+        entries.add(entry);
+      }
+    } finally {
+      IOUtils.close(directories);
+    }
+    return entries;
+  }
+
+  /**
+   * Listen to GC notifications to record the pause of every collection.
+   */
+  private void installGcListener() {
+    NotificationListener listener = new NotificationListener() {
+      @Override
+      public void handleNotification(Notification notification, Object handback) {
+        if (! recordingGc || ! GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                                  .equals(notification.getType())) {
+          return;
+        }
+        GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from(
+            (CompositeData) notification.getUserData());
+        long duration = info.getGcInfo().getDuration();
+        numGcPauses.incrementAndGet();
+        totalGcPauseMillis.addAndGet(duration);
+        long max;
+        while (duration > (max = maxGcPauseMillis.get())
+               && ! maxGcPauseMillis.compareAndSet(max, duration)) {
+          // Retry
+        }
+      }
+    };
+    for (GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      if (gcBean instanceof NotificationEmitter) {
+        ((NotificationEmitter) gcBean).addNotificationListener(listener, null, null);
+      }
+    }
+  }
+
+  /**
+   * Send requests and record the latency of each one.
+   *
+   * With a target rate, requests are scheduled at fixed intervals regardless of how long previous
+   * requests take, and the latency of a request is measured from its scheduled start; this way a
+   * stalled retriever shows up in the latencies instead of just lowering the request rate.
+   *
+   * @param queries The queries to send (in a loop).
+   * @param count Number of requests.
+   * @param latencies Latencies in microseconds (output; null to not record).
+   * @param numErrors Counter of failed requests.
+   * @return The elapsed time in nanoseconds.
+   * @throws InterruptedException
+   */
+  private long run(final List<QueryLog.Entry> queries, int count,
+                   final long[] latencies, final AtomicInteger numErrors)
+                                                           throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    final AtomicInteger nextRequest = new AtomicInteger();
+    final long startTime = System.nanoTime();
+
+    if (qps > 0) {
+      long interval = (long) (TimeUnit.SECONDS.toNanos(1) / qps);
+      for (int i = 0; i < count; ++i) {
+        final int request = i;
+        final long scheduledTime = startTime + i * interval;
+        long delay = scheduledTime - System.nanoTime();
+        if (delay > 0) {
+          TimeUnit.NANOSECONDS.sleep(delay);
+        }
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            sendRequest(queries.get(request % queries.size()), scheduledTime,
+                        latencies, request, numErrors);
+          }
+        });
+      }
+    } else {
+      for (int t = 0; t < concurrency; ++t) {
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            int request;
+            while ((request = nextRequest.getAndIncrement()) < latencies.length) {
+              sendRequest(queries.get(request % queries.size()), System.nanoTime(),
+                          latencies, request, numErrors);
+            }
+          }
+        });
+      }
+    }
+
+    executor.shutdown();
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    return System.nanoTime() - startTime;
+  }
+
+  private void sendRequest(QueryLog.Entry query, long startTime,
+                           long[] latencies, int request, AtomicInteger numErrors) {
+    YoutubeRetriever retriever = new YoutubeRetriever();
+    String[] args = query.toArgs(indexDir);
+    if (parallel) {
+      args = Arrays.copyOf(args, args.length + 1);
+      args[args.length - 1] = "-par";
+    }
+    if (directoryMode != IndexShards.DirectoryMode.AUTO) {
+      args = Arrays.copyOf(args, args.length + 2);
+      args[args.length - 2] = "-dir";
+      args[args.length - 1] = directoryMode.name();
+    }
+    int status = retriever.parseArgs(args);
+    if (status == 0) {
+      status = retriever.search(new NullWriter());
+    }
+    if (status != 0) {
+      numErrors.incrementAndGet();
+    }
+    latencies[request] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startTime);
+  }
+
+  private static long percentile(long[] sortedLatencies, double percentile) {
+    if (sortedLatencies.length == 0) return 0;
+    int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+    return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+  }
+
+  /**
+   * Run the load test and print the report.
+   *
+   * @return status code (0 for success).
+   */
+  private int loadTest() {
+    List<QueryLog.Entry> queries;
+    try {
+      if (queryLogFile != null) {
+        queries = QueryLog.read(queryLogFile);
+      } else {
+        queries = makeSyntheticQueries(numSyntheticQueries);
+      }
+    } catch (IOException e) {
+      System.err.println("Error loading the queries: " + e.getMessage());
+      return 2;
+    }
+    if (queries.isEmpty()) {
+      System.err.println("No query to replay.");
+      return 2;
+    }
+    installGcListener();
+
+    try {
+      System.out.println("Warming up with " + numWarmupRequests + " requests...");
+      run(queries, numWarmupRequests, new long[numWarmupRequests], new AtomicInteger());
+
+      System.out.println("Sending " + numRequests + " requests (" + queries.size()
+                         + " distinct queries, concurrency " + concurrency + ", "
+                         + (qps > 0 ? "target " + qps + " QPS" : "no rate limit") + ")...");
+      long[] latencies = new long[numRequests];
+      AtomicInteger numErrors = new AtomicInteger();
+      recordingGc = true;
+      long elapsed = run(queries, numRequests, latencies, numErrors);
+      recordingGc = false;
+
+      Arrays.sort(latencies);
+      double seconds = elapsed / 1e9;
+      System.out.printf("Requests:    %d (%d errors)%n", numRequests, numErrors.get());
+      System.out.printf("Elapsed:     %.2f s%n", seconds);
+      System.out.printf("Throughput:  %.1f requests/s%n", numRequests / seconds);
+      System.out.printf("Latency p50: %.2f ms%n", percentile(latencies, 50) / 1000.0);
+      System.out.printf("Latency p95: %.2f ms%n", percentile(latencies, 95) / 1000.0);
+      System.out.printf("Latency p99: %.2f ms%n", percentile(latencies, 99) / 1000.0);
+      System.out.printf("Latency max: %.2f ms%n", latencies[latencies.length - 1] / 1000.0);
+      System.out.printf("GC pauses:   %d (total %d ms, max %d ms)%n", numGcPauses.get(),
+                        totalGcPauseMillis.get(), maxGcPauseMillis.get());
+    } catch (InterruptedException e) {
+      System.err.println("Load test interrupted.");
+      return 1;
+    }
+    return 0;
+  }
+
+  /**
+   * Load tester Entry point.
+   *
+   * @param args command-line arguments
+   */
+  public static void main(String[] args) {
+    final SearchLoadTester loadTester = new SearchLoadTester();
+    int status;
+    status = loadTester.parseArgs(args);
+    if (status != 0) System.exit(status);
+    status = loadTester.loadTest();
+    System.exit(status);
+  }
+
+}
@@ -0,0 +1,314 @@
+package youtubesearcher;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.search.IndexSearcher;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Search node of a distributed search: serves the searches of one index (a subset of the
+ * shards) over HTTP, for a retriever running as coordinator (option -nodes).
+ *
+ * A search is a GET request on /search with the parameters
+ * q (comment query), rq (reply query), un (username), ui (user IDs), vt (video title),
+ * vi (video IDs), ct (channel title), ci (channel IDs), from and to (date range, YYYY-MM-DD)
+ * and m (number of top hits to return), all optional, and the flag cd (collapse near-duplicates;
+ * any value but empty).
+ * The answer is the first page of results in the JSON format of the retriever, including the
+ * score of every hit.
+ *
+ * Several nodes can run on one machine on different ports, e.g. one per shard directory.
+ *
+ * The index stays open between searches and is refreshed periodically, so a node can serve a
+ * replica kept up to date by IndexReplicator: new commits are picked up without a restart, and
+ * every search sees one commit of each shard as a whole. New searchers can be warmed up before
+ * they serve searches (options -warmup-queries and -warmup-segments), at startup as well as
+ * after a refresh, so that cold segments don't show up in the search latency.
+ *
+ * The load of a node is bounded (see AdmissionControl): searches beyond the threads and the
+ * queue, or waiting too long for a thread, get HTTP status 503 right away, and every search can
+ * be given a time budget after which it answers with the hits found so far ("timedOut": true).
+ */
+public class SearchNode {
+
+  /*
+   * command-line arguments for the entry point
+   */
+  @Option(name = "-index", aliases = "-i", required = true,
+          usage = "Path to the directory of the index files served by this node. Required option.")
+  private File indexDir;
+
+  @Option(name = "-port",
+          usage = "HTTP port to listen on.")
+  private int port = 8080;
+
+  @Option(name = "-threads", aliases = "-t",
+          usage = "Number of searches served concurrently.")
+  private int numThreads = Runtime.getRuntime().availableProcessors();
+
+  @Option(name = "-queue", aliases = "-qs",
+          usage = "Number of searches that can wait for a thread. Searches arriving when the queue "
+                  + "is full are rejected (HTTP status 503).")
+  private int queueSize = 64;
+
+  @Option(name = "-queue-timeout", aliases = "-qt",
+          usage = "Longest wait of a search for a thread, in milliseconds. Searches that waited "
+                  + "longer are rejected (HTTP status 503).")
+  private int queueTimeoutMillis = 500;
+
+  @Option(name = "-time-budget", aliases = "-tb",
+          usage = "Time budget of a search, in milliseconds (retriever option -tb, 0 for none).")
+  private int timeBudgetMillis = 0;
+
+  @Option(name = "-parallel", aliases = "-par",
+          usage = "Search the segments of the index in parallel (retriever option -par).")
+  private boolean parallel = false;
+
+  @Option(name = "-directory", aliases = "-dir",
+          usage = "How the index files are accessed: AUTO (default), MMAP, NIO or PRELOAD "
+                  + "(memory-mapped and loaded into memory when opened, for small indexes).")
+  private IndexShards.DirectoryMode directoryMode = IndexShards.DirectoryMode.AUTO;
+
+  @Option(name = "-warmup-queries", aliases = "-wq",
+          usage = "Query log (retriever option -query-log) of representative queries, replayed on "
+                  + "every new searcher before it serves searches.")
+  private File warmupQueryFile;
+
+  @Option(name = "-warmup-segments", aliases = "-ws",
+          usage = "Read the terms dictionary and doc values of every new segment before the "
+                  + "searcher serves searches.")
+  private boolean warmupSegments = false;
+
+  @Option(name = "-refresh", aliases = "-r",
+          usage = "Check the index for new commits every this many seconds.")
+  private int refreshSeconds = 5;
+
+  @Option(name = "-metrics-log", aliases = "-ml",
+          usage = "Append the per-phase timings of every search to this log file.")
+  private File metricsLogFile;
+
+  @Option(name = "-help", aliases = "-h", help = true,
+          usage = "Print help text.")
+  private boolean printHelp = false;
+
+  private ResidentSearcherManager searcherManager; // the index, kept open between searches
+  private volatile MetadataStore metadata;         // metadata of a compact index (else null)
+  private AdmissionControl admissionControl;       // the threads serving the searches
+
+  /*
+   * Request parameters and the retriever options they are passed to
+   */
+  private static final String[][] PARAMETER_OPTIONS = {
+    {"q", "-q"}, {"rq", "-rq"}, {"un", "-un"}, {"ui", "-ui"}, {"vt", "-vt"},
+    {"vi", "-vi"}, {"ct", "-ct"}, {"ci", "-ci"}, {"from", "-from"}, {"to", "-to"}, {"m", "-m"}
+  };
+  /* Flag request parameters and the retriever options they turn on */
+  private static final String[][] FLAG_PARAMETER_OPTIONS = {
+    {"cd", "-cd"}
+  };
+
+  @SuppressWarnings("deprecation")
+  private int parseArgs(String[] args) {
+    final CmdLineParser args4jCmdLineParser = new CmdLineParser(this);
+    try {
+      args4jCmdLineParser.parseArgument(args);
+      if (numThreads < 1)
+        throw new CmdLineException("The number of threads must be at least 1.");
+      if (queueSize < 1)
+        throw new CmdLineException("The queue size must be at least 1.");
+      if (queueTimeoutMillis < 0 || timeBudgetMillis < 0)
+        throw new CmdLineException("The queue timeout and the time budget can't be negative.");
+      if (refreshSeconds < 1)
+        throw new CmdLineException("The refresh interval must be at least 1 second.");
+    } catch (final CmdLineException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 2;
+    }
+
+    if (printHelp) {
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Start serving searches.
+   *
+   * @return status code (0 for success).
+   */
+  private int serve() {
+    try {
+      long startTime = System.nanoTime();
+      IndexWarmer warmer = warmupQueryFile == null && ! warmupSegments ? null 
+          : new IndexWarmer(indexDir, warmupQueryFile, warmupSegments);
+      metadata = MetadataStore.open(indexDir, directoryMode);
+      searcherManager = new ResidentSearcherManager(indexDir, directoryMode, parallel, warmer);
+      System.err.printf("Opened index %s in %.1f s%n", indexDir, 
+                        (System.nanoTime() - startTime) / 1e9);
+    } catch (IOException e) {
+      System.err.println("Error opening index " + indexDir);
+      e.printStackTrace();
+      return 2;
+    }
+    Executors.newSingleThreadScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // Refresh the metadata first, so new comments find their metadata
+          if (metadata == null) {
+            metadata = MetadataStore.open(indexDir, directoryMode); // the index became compact
+          } else {
+            metadata.maybeRefresh();
+          }
+          searcherManager.maybeRefresh();
+        } catch (IOException e) {
+          System.err.println("Error refreshing index " + indexDir + ": " + e);
+        }
+      }
+    }, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+
+    HttpServer server;
+    try {
+      server = HttpServer.create(new InetSocketAddress(port), 0);
+    } catch (IOException e) {
+      System.err.println("Error listening on port " + port);
+      e.printStackTrace();
+      return 2;
+    }
+    server.createContext("/search", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        handleSearch(exchange);
+      }
+    });
+    admissionControl = new AdmissionControl(numThreads, queueSize, queueTimeoutMillis);
+    server.setExecutor(admissionControl);
+    server.start();
+    System.err.println("Serving index " + indexDir + " on port " + port);
+    return 0;
+  }
+
+  private void handleSearch(HttpExchange exchange) throws IOException {
+    String rejection = admissionControl.rejection();
+    if (rejection != null) {
+      // Overloaded: the coordinator tries another replica
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      respond(exchange, 503, "{\"error\":\"" + rejection + "\"}");
+      return;
+    }
+
+    int httpStatus = 200;
+    String body;
+    try {
+      YoutubeRetriever retriever = new YoutubeRetriever();
+      int status = retriever.parseArgs(toArgs(exchange.getRequestURI().getRawQuery()));
+      StringWriter output = new StringWriter();
+      if (status == 0) {
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+          status = retriever.search(output, searcher, metadata);
+        } finally {
+          searcherManager.release(searcher);
+        }
+      }
+      // Status 1 is a bad query (parse error, page too deep, pattern too broad), anything else
+      // an error of the node
+      httpStatus = status == 0 ? 200 : status == 1 ? 400 : 500;
+      body = status == 0 ? output.toString() : "{\"error\":" + status + "}";
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      httpStatus = 500;
+      body = "{\"error\":\"" + e.getClass().getSimpleName() + "\"}";
+    }
+    respond(exchange, httpStatus, body);
+  }
+
+  private static void respond(HttpExchange exchange, int httpStatus, String body)
+                                                                   throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(httpStatus, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * Turn the parameters of a search request into retriever command-line arguments.
+   *
+   * @param rawQuery The URL-encoded query string of the request (may be null).
+   * @return The retriever arguments.
+   */
+  private String[] toArgs(String rawQuery) throws UnsupportedEncodingException {
+    List<String> args = new ArrayList<String>();
+    args.add("-i");
+    args.add(indexDir.getPath());
+    args.add("-f");
+    args.add("JSON");
+    if (metricsLogFile != null) {
+      args.add("-ml");
+      args.add(metricsLogFile.getPath());
+    }
+    if (timeBudgetMillis != 0) {
+      args.add("-tb");
+      args.add(String.valueOf(timeBudgetMillis));
+    }
+    if (rawQuery == null) rawQuery = "";
+    for (String parameter : rawQuery.split("&")) {
+      int equals = parameter.indexOf('=');
+      if (equals < 0) continue;
+      String name = URLDecoder.decode(parameter.substring(0, equals), "UTF-8");
+      String value = URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+      for (String[] parameterOption : PARAMETER_OPTIONS) {
+        if (parameterOption[0].equals(name) && ! value.isEmpty()) {
+          args.add(parameterOption[1]);
+          args.add(value);
+        }
+      }
+      for (String[] parameterOption : FLAG_PARAMETER_OPTIONS) {
+        if (parameterOption[0].equals(name) && ! value.isEmpty()) {
+          args.add(parameterOption[1]);
+        }
+      }
+    }
+    return args.toArray(new String[args.size()]);
+  }
+
+  /**
+   * Search node entry point.
+   *
+   * @param args command-line arguments
+   */
+  public static void main(String[] args) {
+    final SearchNode searchNode = new SearchNode();
+    int status;
+    status = searchNode.parseArgs(args);
+    if (status != 0) System.exit(status);
+    status = searchNode.serve();
+    if (status != 0) System.exit(status);
+  }
+
+}
@@ -0,0 +1,865 @@
+package youtubesearcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.Lock;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.NumericUtils;
+
+/**
+ * Approximate nearest-neighbor index of the comment texts, for "similar comments" searches
+ * (indexer option -similar, retriever option -similar-to).
+ *
+ * Every comment is embedded as a hashed vector of DIMENSIONS components: each of its words and
+ * pairs of consecutive words adds its IDF weight to two components picked (with a sign) by its
+ * hash, and the vector is normalized, so that the dot product of two vectors is the cosine
+ * similarity of the weighted words of two texts. The document frequencies are counted in a
+ * table of hashed buckets stored with the vectors, so a query is embedded the same way as the
+ * comments, without a vocabulary. The vectors are stored with 8 bits per component.
+ *
+ * The vectors are the nodes of a hierarchical navigable small world graph (HNSW): every node is
+ * linked to its nearest (and diverse) neighbors on the bottom level and on the levels above up
+ * to its own, each level holding a fraction 1/MAX_LINKS of the nodes of the level below. A
+ * search descends greedily from the top level and then explores the bottom level best-first,
+ * so it compares the query with a few thousand vectors whatever the number of comments.
+ *
+ * The graph of a sub-index is stored in the sub-directory "similar" of the sub-index, keyed by
+ * comment ID, so the merges of the Lucene segments don't touch it. The indexer adds the
+ * comments missing from the graph at the end of a run; comments edited since they were added
+ * keep their first vector.
+ */
+class SimilarComments implements Closeable {
+
+  static final String DIR_NAME = "similar";
+  static final String FILE_NAME = "comments.hnsw";
+
+  static final int DIMENSIONS = 256;
+
+  private static final String CODEC = "YoutubeSimilarComments";
+  private static final int VERSION = 0;
+
+  private static final int DF_BUCKETS = 1 << 16;
+  private static final float PAIR_WEIGHT = 0.5f; // of a word pair, relative to its words
+  private static final int MAX_LINKS = 16;       // links of a node on the upper levels
+  private static final int MAX_LINKS_0 = 2 * MAX_LINKS; // links of a node on the bottom level
+  private static final int MAX_LEVEL = 15;
+  private static final double LEVEL_FACTOR = 1 / Math.log(MAX_LINKS);
+  private static final int BUILD_BEAM = 100;     // candidates kept when linking a new node
+  private static final int SEARCH_BEAM = 100;    // least candidates kept by a search
+
+  /**
+   * A comment found by a search, with the cosine similarity of its text to the query.
+   */
+  static class Neighbor {
+    final String commentId;
+    final float similarity;
+
+    Neighbor(String commentId, float similarity) {
+      this.commentId = commentId;
+      this.similarity = similarity;
+    }
+  }
+
+  private final List<FileGraph> graphs;
+  private final List<Directory> directories;
+
+  private SimilarComments(List<FileGraph> graphs, List<Directory> directories) {
+    this.graphs = graphs;
+    this.directories = directories;
+  }
+
+  /**
+   * Get the directory of the graph of a sub-index.
+   *
+   * @param subIndexDir The directory of an unsharded index, a shard or a partition.
+   * @return The graph directory.
+   */
+  static File graphDir(File subIndexDir) {
+    return new File(subIndexDir, DIR_NAME);
+  }
+
+  /**
+   * Open the graphs of some sub-indexes.
+   *
+   * @param subIndexDirs The sub-index directories (e.g. the partitions of a time range).
+   * @param mode How the graph files are accessed.
+   * @return The graphs, or null if none of the sub-indexes has one.
+   * @throws IOException
+   */
+  static SimilarComments open(List<File> subIndexDirs, IndexShards.DirectoryMode mode)
+                                                                          throws IOException {
+    List<FileGraph> graphs = new ArrayList<FileGraph>();
+    List<Directory> directories = new ArrayList<Directory>();
+    try {
+      for (File dir : subIndexDirs) {
+        File graphDir = graphDir(dir);
+        if (! new File(graphDir, FILE_NAME).isFile()) continue;
+        Directory directory = mode.open(graphDir.toPath());
+        directories.add(directory);
+        graphs.add(new FileGraph(directory.openInput(FILE_NAME, IOContext.READ)));
+      }
+    } catch (IOException e) {
+      IOUtils.closeWhileHandlingException(graphs);
+      IOUtils.closeWhileHandlingException(directories);
+      throw e;
+    }
+    if (graphs.isEmpty()) {
+      IOUtils.close(directories);
+      return null;
+    }
+    return new SimilarComments(graphs, directories);
+  }
+
+  /**
+   * Find the comments most similar to a text, in the graphs of all sub-indexes.
+   *
+   * @param text The text (e.g. of a comment).
+   * @param numNeighbors Number of comments to find.
+   * @return The comments found, most similar first (empty if the text has no words).
+   * @throws IOException
+   */
+  List<Neighbor> search(String text, int numNeighbors) throws IOException {
+    List<Neighbor> neighbors = new ArrayList<Neighbor>();
+    byte[] query = new byte[DIMENSIONS];
+    for (FileGraph graph : graphs) {
+      float[] vector = embed(text, graph.docFreqs, graph.numDocs);
+      if (vector == null || graph.size == 0) continue;
+      float queryScale = quantize(vector, query, 0);
+      long[] found = graph.search(query, Math.max(numNeighbors, SEARCH_BEAM));
+      for (int i = 0; i < found.length && i < numNeighbors; ++i) {
+        neighbors.add(new Neighbor(graph.id(nodeOf(found[i])),
+                                   similarityOf(found[i]) * queryScale));
+      }
+    }
+    sortBySimilarity(neighbors);
+    return neighbors.size() > numNeighbors ? neighbors.subList(0, numNeighbors) : neighbors;
+  }
+
+  /**
+   * Find the comments most similar to a text by comparing it with every vector: the exact
+   * answer that search() approximates, for measuring its recall.
+   *
+   * @see #search(String, int)
+   */
+  List<Neighbor> searchExact(String text, int numNeighbors) throws IOException {
+    List<Neighbor> neighbors = new ArrayList<Neighbor>();
+    byte[] query = new byte[DIMENSIONS];
+    for (FileGraph graph : graphs) {
+      float[] vector = embed(text, graph.docFreqs, graph.numDocs);
+      if (vector == null) continue;
+      float queryScale = quantize(vector, query, 0);
+      LongHeap best = new LongHeap();
+      for (int node = 0; node < graph.size; ++node) {
+        best.push(pack(graph.similarity(query, node), node));
+        if (best.size() > numNeighbors) best.pop();
+      }
+      while (best.size() > 0) {
+        long entry = best.pop();
+        neighbors.add(new Neighbor(graph.id(nodeOf(entry)), similarityOf(entry) * queryScale));
+      }
+    }
+    sortBySimilarity(neighbors);
+    return neighbors.size() > numNeighbors ? neighbors.subList(0, numNeighbors) : neighbors;
+  }
+
+  private static void sortBySimilarity(List<Neighbor> neighbors) {
+    Collections.sort(neighbors, new Comparator<Neighbor>() {
+      @Override
+      public int compare(Neighbor a, Neighbor b) {
+        return Float.compare(b.similarity, a.similarity);
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      IOUtils.close(graphs);
+    } finally {
+      IOUtils.close(directories);
+    }
+  }
+
+  /**
+   * Add the comments of a sub-index missing from its graph (all of them if it has none yet),
+   * and write the new graph in place of the old one.
+   *
+   * The document frequencies are counted over the new comments first, so that the first
+   * comments added get the weights of the whole batch. The graph is locked while it is
+   * updated, so concurrent updates of the same graph fail instead of losing each other's
+   * comments.
+   *
+   * @param subIndexDir The directory of an unsharded index, a shard or a partition.
+   * @return The number of comments added.
+   * @throws IOException Error updating the graph (LockObtainFailedException if it is being
+   *                     updated by another indexer).
+   */
+  static int update(File subIndexDir) throws IOException {
+    File graphDir = graphDir(subIndexDir);
+    try (Directory indexDirectory = FSDirectory.open(subIndexDir.toPath());
+         DirectoryReader reader = DirectoryReader.open(indexDirectory);
+         Directory directory = FSDirectory.open(graphDir.toPath());
+         Lock lock = directory.obtainLock(IndexWriter.WRITE_LOCK_NAME)) {
+      GraphBuilder graph = new GraphBuilder();
+      if (new File(graphDir, FILE_NAME).isFile()) {
+        try (FileGraph existing = new FileGraph(directory.openInput(FILE_NAME, IOContext.READ))) {
+          graph.load(existing);
+        }
+      }
+      Set<String> known = new HashSet<String>(Arrays.asList(graph.ids).subList(0, graph.size));
+      known.addAll(graph.skippedIds);
+
+      // The live documents of the comments missing from the graph (once per comment ID)
+      int[] newDocs = new int[0];
+      int numNewDocs = 0;
+      for (LeafReaderContext context : reader.leaves()) {
+        LeafReader leaf = context.reader();
+        Terms terms = leaf.terms("commentId");
+        if (terms == null) continue;
+        Bits liveDocs = leaf.getLiveDocs();
+        TermsEnum termsEnum = terms.iterator();
+        PostingsEnum postings = null;
+        for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+          String commentId = term.utf8ToString();
+          if (known.contains(commentId)) continue;
+          postings = termsEnum.postings(postings, PostingsEnum.NONE);
+          for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS;
+               doc = postings.nextDoc()) {
+            if (liveDocs == null || liveDocs.get(doc)) {
+              newDocs = ArrayUtil.grow(newDocs, numNewDocs + 1);
+              newDocs[numNewDocs++] = context.docBase + doc;
+              known.add(commentId);
+              break;
+            }
+          }
+        }
+      }
+      if (numNewDocs == 0) return 0;
+
+      Set<String> textField = Collections.singleton("commentText");
+      for (int i = 0; i < numNewDocs; ++i) {
+        String text = reader.document(newDocs[i], textField).get("commentText");
+        if (text != null) graph.countDocFreqs(text);
+      }
+      int numAdded = 0;
+      Set<String> fields = new HashSet<String>(Arrays.asList("commentId", "commentText"));
+      for (int i = 0; i < numNewDocs; ++i) {
+        Document stored = reader.document(newDocs[i], fields);
+        String text = stored.get("commentText");
+        float[] vector = text == null ? null : embed(text, graph.docFreqs, graph.numDocs);
+        if (vector == null) {
+          graph.skippedIds.add(stored.get("commentId")); // not searched for again
+        } else {
+          graph.add(stored.get("commentId"), vector);
+          ++numAdded;
+        }
+      }
+
+      IndexOutput output = directory.createTempOutput(FILE_NAME, "new", IOContext.DEFAULT);
+      String tempName = output.getName();
+      boolean renamed = false;
+      try {
+        try {
+          graph.write(output);
+        } finally {
+          output.close();
+        }
+        directory.sync(Collections.singleton(tempName));
+        lock.ensureValid();
+        directory.rename(tempName, FILE_NAME);
+        renamed = true;
+      } finally {
+        if (! renamed) IOUtils.deleteFilesIgnoringExceptions(directory, tempName);
+      }
+      directory.syncMetaData();
+      return numAdded;
+    }
+  }
+
+  /**
+   * Embed a text.
+   *
+   * @param text The text.
+   * @param docFreqs Document frequencies of the hash buckets of the words.
+   * @param numDocs Number of documents counted in docFreqs.
+   * @return The unit vector of DIMENSIONS components, or null if the text has no words.
+   */
+  static float[] embed(String text, int[] docFreqs, int numDocs) {
+    List<String> words = NearDuplicates.words(text);
+    if (words.isEmpty()) return null;
+    float[] vector = new float[DIMENSIONS];
+    float previousWeight = 0;
+    for (int i = 0; i < words.size(); ++i) {
+      long hash = NearDuplicates.hash(words.get(i));
+      // Smoothed IDF: never 0, so a text of common words still has a direction
+      int docFreq = docFreqs[docFreqBucket(hash)];
+      float weight = (float) Math.log(1 + (numDocs - docFreq + 0.5) / (docFreq + 0.5));
+      addFeature(vector, hash, weight);
+      if (i > 0) {
+        addFeature(vector, NearDuplicates.hash(words.get(i - 1) + ' ' + words.get(i)),
+                   PAIR_WEIGHT * (previousWeight + weight) / 2);
+      }
+      previousWeight = weight;
+    }
+    double norm = 0;
+    for (float component : vector) {
+      norm += component * component;
+    }
+    if (norm == 0) return null;
+    float scale = (float) (1 / Math.sqrt(norm));
+    for (int i = 0; i < DIMENSIONS; ++i) {
+      vector[i] *= scale;
+    }
+    return vector;
+  }
+
+  private static void addFeature(float[] vector, long hash, float weight) {
+    vector[(int) hash & (DIMENSIONS - 1)] += ((hash >>> 8) & 1) != 0 ? weight : -weight;
+    vector[(int) (hash >>> 9) & (DIMENSIONS - 1)] += ((hash >>> 17) & 1) != 0 ? weight : -weight;
+  }
+
+  /**
+   * Quantize a vector to 8 bits per component.
+   *
+   * @param quantized The array to write the quantized components to.
+   * @param offset The offset of the first component in quantized.
+   * @return The scale of the quantized components.
+   */
+  private static float quantize(float[] vector, byte[] quantized, int offset) {
+    float max = 0;
+    for (float component : vector) {
+      max = Math.max(max, Math.abs(component));
+    }
+    float scale = max / 127;
+    for (int i = 0; i < DIMENSIONS; ++i) {
+      quantized[offset + i] = (byte) Math.round(vector[i] / scale);
+    }
+    return scale;
+  }
+
+  /**
+   * Compute the dot product of two quantized vectors (integer products are about twice as fast
+   * as products with a float query).
+   */
+  private static int dot(byte[] a, int offsetA, byte[] b, int offsetB) {
+    int dot = 0;
+    for (int i = 0; i < DIMENSIONS; ++i) {
+      dot += a[offsetA + i] * b[offsetB + i];
+    }
+    return dot;
+  }
+
+  private static int docFreqBucket(long hash) {
+    return (int) (hash >>> 48);
+  }
+
+  /*
+   * Graph entries (a node and its similarity to a query) packed in a long ordered by similarity
+   */
+  private static long pack(float similarity, int node) {
+    return ((long) NumericUtils.floatToSortableInt(similarity) << 32) | node;
+  }
+
+  private static int nodeOf(long entry) {
+    return (int) entry;
+  }
+
+  private static float similarityOf(long entry) {
+    return NumericUtils.sortableIntToFloat((int) (entry >> 32));
+  }
+
+  /**
+   * Min-heap of packed entries (a max-heap when the entries are complemented).
+   */
+  private static class LongHeap {
+    private long[] heap = new long[16];
+    private int size = 0;
+
+    int size() {
+      return size;
+    }
+
+    long top() {
+      return heap[0];
+    }
+
+    void push(long value) {
+      heap = ArrayUtil.grow(heap, size + 1);
+      int i = size++;
+      while (i > 0 && heap[(i - 1) / 2] > value) {
+        heap[i] = heap[(i - 1) / 2];
+        i = (i - 1) / 2;
+      }
+      heap[i] = value;
+    }
+
+    long pop() {
+      long top = heap[0];
+      long last = heap[--size];
+      int i = 0;
+      while (2 * i + 1 < size) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && heap[child + 1] < heap[child]) ++child;
+        if (heap[child] >= last) break;
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = last;
+      return top;
+    }
+  }
+
+  /**
+   * The search of a graph, over the storage of its vectors and links.
+   */
+  private abstract static class Graph {
+    int size = 0;
+    int entryPoint = -1;
+    int maxLevel = -1;
+    int[] docFreqs = new int[DF_BUCKETS];
+    int numDocs = 0;
+
+    private int[] visited = new int[0]; // the number of the search that last visited each node
+    private int searchNumber = 0;
+
+    /**
+     * Compute the similarity of a quantized query to the vector of a node, up to the scale of
+     * the query.
+     */
+    abstract float similarity(byte[] query, int node) throws IOException;
+
+    /**
+     * Copy the links of a node on a level into an array (of at least MAX_LINKS_0 entries).
+     *
+     * @return The number of links.
+     */
+    abstract int links(int node, int level, int[] links) throws IOException;
+
+    /**
+     * Find the nearest nodes of a query.
+     *
+     * @param beam Number of candidates kept on the bottom level.
+     * @return The entries of the nodes found (at most beam), most similar first.
+     */
+    long[] search(byte[] query, int beam) throws IOException {
+      int node = entryPoint;
+      for (int level = maxLevel; level > 0; --level) {
+        node = nodeOf(searchLevel(query, node, 1, level).top());
+      }
+      return sortedDescending(searchLevel(query, node, beam, 0));
+    }
+
+    /**
+     * Explore a level best-first from a node, keeping the beam best nodes seen.
+     *
+     * @return The beam best entries, as a min-heap.
+     */
+    LongHeap searchLevel(byte[] query, int start, int beam, int level) throws IOException {
+      if (visited.length < size) visited = ArrayUtil.grow(visited, size);
+      if (++searchNumber == 0) {
+        Arrays.fill(visited, 0);
+        searchNumber = 1;
+      }
+      int[] links = new int[MAX_LINKS_0];
+      LongHeap candidates = new LongHeap(); // complemented: the best candidate on top
+      LongHeap results = new LongHeap();
+      long entry = pack(similarity(query, start), start);
+      visited[start] = searchNumber;
+      candidates.push(~entry);
+      results.push(entry);
+      while (candidates.size() > 0) {
+        long candidate = ~candidates.pop();
+        if (results.size() >= beam && candidate < results.top()) break;
+        int numLinks = links(nodeOf(candidate), level, links);
+        for (int i = 0; i < numLinks; ++i) {
+          int neighbor = links[i];
+          if (visited[neighbor] == searchNumber) continue;
+          visited[neighbor] = searchNumber;
+          long neighborEntry = pack(similarity(query, neighbor), neighbor);
+          if (results.size() < beam || neighborEntry > results.top()) {
+            candidates.push(~neighborEntry);
+            results.push(neighborEntry);
+            if (results.size() > beam) results.pop();
+          }
+        }
+      }
+      return results;
+    }
+
+    static long[] sortedDescending(LongHeap results) {
+      long[] sorted = new long[results.size()];
+      for (int i = sorted.length - 1; i >= 0; --i) {
+        sorted[i] = results.pop();
+      }
+      return sorted;
+    }
+  }
+
+  /**
+   * A graph read from its file: the links and vectors are read as the search visits them.
+   *
+   * The file has a header, the counts (dimensions, links per node, number of nodes, entry
+   * point, top level, number of documents counted and of comments without words), the
+   * document frequency table, the scales and the quantized vectors of the nodes, their levels,
+   * their bottom-level links (a count and MAX_LINKS_0 slots per node), the offsets of their
+   * upper-level links (-1 for nodes of the bottom level only) and the upper-level links, the
+   * offsets of the comment IDs (of the nodes, then of the comments without words) and the IDs
+   * in UTF-8, and a footer.
+   */
+  private static class FileGraph extends Graph implements Closeable {
+    private final IndexInput input;
+    private final int numSkipped;
+    private final long scalesStart;
+    private final long vectorsStart;
+    private final long levelsStart;
+    private final long links0Start;
+    private final long upperOffsetsStart;
+    private final long upperLinksStart;
+    private final long idOffsetsStart;
+    private final long idsStart;
+    private final byte[] vector = new byte[DIMENSIONS];
+
+    FileGraph(IndexInput input) throws IOException {
+      this.input = input;
+      try {
+        CodecUtil.checkHeader(input, CODEC, VERSION, VERSION);
+        if (input.readInt() != DIMENSIONS || input.readInt() != MAX_LINKS
+            || input.readInt() != MAX_LINKS_0) {
+          throw new IOException("Similarity graph " + input + " has another layout");
+        }
+        size = input.readInt();
+        entryPoint = input.readInt();
+        maxLevel = input.readInt();
+        numDocs = input.readInt();
+        numSkipped = input.readInt();
+        for (int i = 0; i < DF_BUCKETS; ++i) {
+          docFreqs[i] = input.readInt();
+        }
+        scalesStart = input.getFilePointer();
+        vectorsStart = scalesStart + 4L * size;
+        levelsStart = vectorsStart + (long) DIMENSIONS * size;
+        links0Start = levelsStart + size;
+        upperOffsetsStart = links0Start + 4L * (MAX_LINKS_0 + 1) * size;
+        input.seek(upperOffsetsStart + 4L * size);
+        int numUpperLinks = input.readInt();
+        upperLinksStart = input.getFilePointer();
+        idOffsetsStart = upperLinksStart + 4L * numUpperLinks;
+        idsStart = idOffsetsStart + 4L * (size + numSkipped + 1);
+        CodecUtil.retrieveChecksum(input); // checks that the file is complete
+      } catch (IOException e) {
+        IOUtils.closeWhileHandlingException(input);
+        throw e;
+      }
+    }
+
+    @Override
+    float similarity(byte[] query, int node) throws IOException {
+      input.seek(scalesStart + 4L * node);
+      float scale = Float.intBitsToFloat(input.readInt());
+      input.seek(vectorsStart + (long) DIMENSIONS * node);
+      input.readBytes(vector, 0, DIMENSIONS);
+      return dot(query, 0, vector, 0) * scale;
+    }
+
+    @Override
+    int links(int node, int level, int[] links) throws IOException {
+      if (level == 0) {
+        input.seek(links0Start + 4L * (MAX_LINKS_0 + 1) * node);
+      } else {
+        input.seek(upperOffsetsStart + 4L * node);
+        int offset = input.readInt();
+        input.seek(upperLinksStart + 4L * (offset + (level - 1) * (MAX_LINKS + 1)));
+      }
+      int numLinks = input.readInt();
+      for (int i = 0; i < numLinks; ++i) {
+        links[i] = input.readInt();
+      }
+      return numLinks;
+    }
+
+    /**
+     * Read the comment ID of a node (or of a comment without words, after the nodes).
+     */
+    String id(int index) throws IOException {
+      input.seek(idOffsetsStart + 4L * index);
+      int start = input.readInt();
+      int end = input.readInt();
+      byte[] bytes = new byte[end - start];
+      input.seek(idsStart + start);
+      input.readBytes(bytes, 0, bytes.length);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+  }
+
+  /**
+   * A graph in memory, loaded from its file to add nodes and written back.
+   */
+  private static class GraphBuilder extends Graph {
+    private byte[] vectors = new byte[0];
+    private float[] scales = new float[0];
+    private byte[] levels = new byte[0];
+    private int[] links0 = new int[0];       // a count and MAX_LINKS_0 slots per node
+    private int[][] upperLinks = new int[0][]; // a count and MAX_LINKS slots per upper level
+    String[] ids = new String[0];
+    final List<String> skippedIds = new ArrayList<String>(); // comments without words
+
+    private void grow(int newSize) {
+      if (newSize <= ids.length) return;
+      ids = ArrayUtil.grow(ids, newSize);
+      int capacity = ids.length;
+      vectors = Arrays.copyOf(vectors, capacity * DIMENSIONS);
+      scales = Arrays.copyOf(scales, capacity);
+      levels = Arrays.copyOf(levels, capacity);
+      links0 = Arrays.copyOf(links0, capacity * (MAX_LINKS_0 + 1));
+      upperLinks = Arrays.copyOf(upperLinks, capacity);
+    }
+
+    void load(FileGraph graph) throws IOException {
+      grow(graph.size);
+      size = graph.size;
+      entryPoint = graph.entryPoint;
+      maxLevel = graph.maxLevel;
+      numDocs = graph.numDocs;
+      System.arraycopy(graph.docFreqs, 0, docFreqs, 0, DF_BUCKETS);
+      IndexInput input = graph.input;
+      input.seek(graph.scalesStart);
+      for (int node = 0; node < size; ++node) {
+        scales[node] = Float.intBitsToFloat(input.readInt());
+      }
+      input.readBytes(vectors, 0, size * DIMENSIONS);
+      input.readBytes(levels, 0, size);
+      for (int i = 0; i < size * (MAX_LINKS_0 + 1); ++i) {
+        links0[i] = input.readInt();
+      }
+      int[] links = new int[MAX_LINKS_0];
+      for (int node = 0; node < size; ++node) {
+        if (levels[node] == 0) continue;
+        upperLinks[node] = new int[levels[node] * (MAX_LINKS + 1)];
+        for (int level = 1; level <= levels[node]; ++level) {
+          int numLinks = graph.links(node, level, links);
+          int base = (level - 1) * (MAX_LINKS + 1);
+          upperLinks[node][base] = numLinks;
+          System.arraycopy(links, 0, upperLinks[node], base + 1, numLinks);
+        }
+      }
+      for (int i = 0; i < size; ++i) {
+        ids[i] = graph.id(i);
+      }
+      for (int i = 0; i < graph.numSkipped; ++i) {
+        skippedIds.add(graph.id(size + i));
+      }
+    }
+
+    /**
+     * Count a text in the document frequencies of its words.
+     */
+    void countDocFreqs(String text) {
+      List<String> words = NearDuplicates.words(text);
+      int[] buckets = new int[words.size()];
+      for (int i = 0; i < buckets.length; ++i) {
+        buckets[i] = docFreqBucket(NearDuplicates.hash(words.get(i)));
+      }
+      Arrays.sort(buckets);
+      for (int i = 0; i < buckets.length; ++i) {
+        if (i == 0 || buckets[i] != buckets[i - 1]) ++docFreqs[buckets[i]];
+      }
+      ++numDocs;
+    }
+
+    /**
+     * Add a node: link it to the nearest nodes found on each of its levels, from the top level
+     * down, and link them back to it.
+     */
+    void add(String commentId, float[] vector) throws IOException {
+      int node = size;
+      grow(size + 1);
+      ++size;
+      ids[node] = commentId;
+      scales[node] = quantize(vector, vectors, node * DIMENSIONS);
+      byte[] query = Arrays.copyOfRange(vectors, node * DIMENSIONS, size * DIMENSIONS);
+      // The level is drawn from the ID, so a rebuilt graph has the same levels
+      double uniform = ((NearDuplicates.hash(commentId) >>> 11) + 1) * 0x1.0p-53;
+      int level = Math.min((int) (-Math.log(uniform) * LEVEL_FACTOR), MAX_LEVEL);
+      levels[node] = (byte) level;
+      if (level > 0) upperLinks[node] = new int[level * (MAX_LINKS + 1)];
+      if (entryPoint < 0) {
+        entryPoint = node;
+        maxLevel = level;
+        return;
+      }
+
+      int start = entryPoint;
+      for (int l = maxLevel; l > level; --l) {
+        start = nodeOf(searchLevel(query, start, 1, l).top());
+      }
+      for (int l = Math.min(level, maxLevel); l >= 0; --l) {
+        long[] found = sortedDescending(searchLevel(query, start, BUILD_BEAM, l));
+        start = nodeOf(found[0]);
+        int[] neighbors = selectNeighbors(found, maxLinks(l), scales[node]);
+        setLinks(node, l, neighbors, neighbors.length);
+        for (int neighbor : neighbors) {
+          linkBack(neighbor, node, l);
+        }
+      }
+      if (level > maxLevel) {
+        entryPoint = node;
+        maxLevel = level;
+      }
+    }
+
+    private static int maxLinks(int level) {
+      return level == 0 ? MAX_LINKS_0 : MAX_LINKS;
+    }
+
+    /**
+     * Select the links of a node among candidates, most similar first: a candidate is skipped
+     * when it is more similar to a selected node than to the node, so the links point in
+     * different directions and the graph stays navigable between clusters.
+     *
+     * @param candidates The entries of the candidates (similarity to the node), most similar
+     *                   first.
+     * @param scale The scale of the similarities of the entries.
+     */
+    private int[] selectNeighbors(long[] candidates, int maxLinks, float scale) {
+      int[] selected = new int[Math.min(maxLinks, candidates.length)];
+      int numSelected = 0;
+      for (int i = 0; i < candidates.length && numSelected < selected.length; ++i) {
+        int candidate = nodeOf(candidates[i]);
+        float similarity = similarityOf(candidates[i]) * scale;
+        boolean diverse = true;
+        for (int j = 0; j < numSelected && diverse; ++j) {
+          diverse = similarity(candidate, selected[j]) <= similarity;
+        }
+        if (diverse) selected[numSelected++] = candidate;
+      }
+      return Arrays.copyOf(selected, numSelected);
+    }
+
+    /**
+     * Add a link to a node, selecting its links again when it has too many.
+     */
+    private void linkBack(int node, int newNeighbor, int level) {
+      int[] links = level == 0 ? links0 : upperLinks[node];
+      int base = level == 0 ? node * (MAX_LINKS_0 + 1) : (level - 1) * (MAX_LINKS + 1);
+      int numLinks = links[base];
+      if (numLinks < maxLinks(level)) {
+        links[base + 1 + numLinks] = newNeighbor;
+        links[base] = numLinks + 1;
+        return;
+      }
+      LongHeap candidates = new LongHeap();
+      candidates.push(pack(similarity(node, newNeighbor), newNeighbor));
+      for (int i = 0; i < numLinks; ++i) {
+        int neighbor = links[base + 1 + i];
+        candidates.push(pack(similarity(node, neighbor), neighbor));
+      }
+      int[] selected = selectNeighbors(sortedDescending(candidates), maxLinks(level), 1);
+      setLinks(node, level, selected, selected.length);
+    }
+
+    private void setLinks(int node, int level, int[] neighbors, int numNeighbors) {
+      int[] links = level == 0 ? links0 : upperLinks[node];
+      int base = level == 0 ? node * (MAX_LINKS_0 + 1) : (level - 1) * (MAX_LINKS + 1);
+      links[base] = numNeighbors;
+      System.arraycopy(neighbors, 0, links, base + 1, numNeighbors);
+    }
+
+    @Override
+    float similarity(byte[] query, int node) {
+      return dot(query, 0, vectors, node * DIMENSIONS) * scales[node];
+    }
+
+    private float similarity(int a, int b) {
+      return dot(vectors, a * DIMENSIONS, vectors, b * DIMENSIONS) * scales[a] * scales[b];
+    }
+
+    @Override
+    int links(int node, int level, int[] links) {
+      int[] source = level == 0 ? links0 : upperLinks[node];
+      int base = level == 0 ? node * (MAX_LINKS_0 + 1) : (level - 1) * (MAX_LINKS + 1);
+      System.arraycopy(source, base + 1, links, 0, source[base]);
+      return source[base];
+    }
+
+    /**
+     * Write the graph in the layout read by FileGraph.
+     */
+    void write(IndexOutput output) throws IOException {
+      CodecUtil.writeHeader(output, CODEC, VERSION);
+      output.writeInt(DIMENSIONS);
+      output.writeInt(MAX_LINKS);
+      output.writeInt(MAX_LINKS_0);
+      output.writeInt(size);
+      output.writeInt(entryPoint);
+      output.writeInt(maxLevel);
+      output.writeInt(numDocs);
+      output.writeInt(skippedIds.size());
+      for (int docFreq : docFreqs) {
+        output.writeInt(docFreq);
+      }
+      for (int node = 0; node < size; ++node) {
+        output.writeInt(Float.floatToIntBits(scales[node]));
+      }
+      output.writeBytes(vectors, 0, size * DIMENSIONS);
+      output.writeBytes(levels, 0, size);
+      for (int i = 0; i < size * (MAX_LINKS_0 + 1); ++i) {
+        output.writeInt(links0[i]);
+      }
+      int numUpperLinks = 0;
+      for (int node = 0; node < size; ++node) {
+        output.writeInt(upperLinks[node] == null ? -1 : numUpperLinks);
+        if (upperLinks[node] != null) numUpperLinks += upperLinks[node].length;
+      }
+      output.writeInt(numUpperLinks);
+      for (int node = 0; node < size; ++node) {
+        if (upperLinks[node] == null) continue;
+        for (int link : upperLinks[node]) {
+          output.writeInt(link);
+        }
+      }
+      BytesRefBuilder idBytes = new BytesRefBuilder();
+      output.writeInt(0);
+      for (int i = 0; i < size + skippedIds.size(); ++i) {
+        idBytes.append(new BytesRef(i < size ? ids[i] : skippedIds.get(i - size)));
+        output.writeInt(idBytes.length());
+      }
+      output.writeBytes(idBytes.bytes(), 0, idBytes.length());
+      CodecUtil.writeFooter(output);
+    }
+  }
+
+}
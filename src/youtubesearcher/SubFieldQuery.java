@@ -0,0 +1,81 @@
+package youtubesearcher;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.Query;
+
+/**
+ * A query on an optional sub-field of a field (n-grams of names, shingles of the comment text),
+ * standing for an equivalent but slower query on the field itself.
+ *
+ * The sub-field query is only used when every segment of the index has the sub-field for all its
+ * documents with the field, which is checked when the query is rewritten (from the document
+ * counts of the terms of both fields, a quick lookup per segment). Otherwise, e.g. for an index
+ * built before the sub-field existed, or with comments indexed without it, the query rewrites to
+ * the query on the field, so the results are the same either way.
+ *
+ * The highlighter of the retriever highlights the query on the field, as the terms of the
+ * sub-field are not words of the field.
+ */
+class SubFieldQuery extends Query {
+
+  private final Query query;
+  private final Query fallback;
+  private final String subField;
+  private final String field;
+
+  /**
+   * @param query The query on the sub-field.
+   * @param fallback The equivalent query on the field.
+   * @param subField A sub-field written for every document with at least one term in the field
+   *                 (the sub-field of the query or one always written along with it).
+   * @param field The field.
+   */
+  SubFieldQuery(Query query, Query fallback, String subField, String field) {
+    this.query = query;
+    this.fallback = fallback;
+    this.subField = subField;
+    this.field = field;
+  }
+
+  /**
+   * Get the equivalent query on the field.
+   */
+  Query getFallback() {
+    return fallback;
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    for (LeafReaderContext context : reader.leaves()) {
+      Terms fieldTerms = context.reader().terms(field);
+      if (fieldTerms == null) continue;
+      Terms subFieldTerms = context.reader().terms(subField);
+      if (subFieldTerms == null || subFieldTerms.getDocCount() < fieldTerms.getDocCount()) {
+        return fallback;
+      }
+    }
+    return query;
+  }
+
+  @Override
+  public String toString(String defaultField) {
+    return query.toString(defaultField);
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    return sameClassAs(other) && query.equals(((SubFieldQuery) other).query)
+           && fallback.equals(((SubFieldQuery) other).fallback)
+           && subField.equals(((SubFieldQuery) other).subField);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (31 * classHash() + query.hashCode()) + fallback.hashCode();
+  }
+
+}
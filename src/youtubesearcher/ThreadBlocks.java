@@ -0,0 +1,139 @@
+package youtubesearcher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.join.BitSetProducer;
+import org.apache.lucene.search.join.QueryBitSetProducer;
+import org.apache.lucene.search.join.ScoreMode;
+import org.apache.lucene.search.join.ToParentBlockJoinQuery;
+import org.apache.lucene.util.BitSet;
+
+/**
+ * Comment threads indexed as document blocks (indexer option -blocks).
+ *
+ * A thread is written as one contiguous block: its replies first, then the top-level comment,
+ * which is marked as the parent of the block. All documents of the block carry the ID of the
+ * top-level comment in the field "threadId". Since a block stays contiguous in every segment,
+ * the top-level comment of a reply, and all the documents of a thread, are found from a doc ID
+ * with a bitset lookup instead of a search, and block-join queries can match threads by their
+ * replies.
+ */
+class ThreadBlocks {
+
+  static final String THREAD_ID_FIELD = "threadId";
+  static final String TYPE_FIELD = "commentType";
+  static final String THREAD_TYPE = "thread"; // top-level comment (the parent of a block)
+  static final String REPLY_TYPE = "reply";
+
+  /*
+   * Top-level comments of the blocks. The bitsets are cached per segment, shared by all searches.
+   */
+  private static final BitSetProducer THREADS =
+      new QueryBitSetProducer(new TermQuery(new Term(TYPE_FIELD, THREAD_TYPE)));
+
+  /**
+   * Write a thread as one block, replacing any previous version of the thread.
+   *
+   * @param indexWriter The writer.
+   * @param threadDoc The document of the top-level comment.
+   * @param replyDocs The documents of the replies.
+   * @throws IOException
+   */
+  static void addThread(IndexWriter indexWriter, Document threadDoc, List<Document> replyDocs)
+                                                                         throws IOException {
+    String threadId = threadDoc.get("commentId");
+    List<Document> block = new ArrayList<Document>(replyDocs.size() + 1);
+    for (Document replyDoc : replyDocs) {
+      replyDoc.add(new StringField(THREAD_ID_FIELD, threadId, Field.Store.YES));
+      replyDoc.add(new StringField(TYPE_FIELD, REPLY_TYPE, Field.Store.NO));
+      block.add(replyDoc);
+    }
+    threadDoc.add(new StringField(THREAD_ID_FIELD, threadId, Field.Store.YES));
+    threadDoc.add(new StringField(TYPE_FIELD, THREAD_TYPE, Field.Store.NO));
+    block.add(threadDoc); // the parent must be the last document of the block
+    indexWriter.updateDocuments(new Term(THREAD_ID_FIELD, threadId), block);
+  }
+
+  /**
+   * Check whether an index is made of thread blocks.
+   */
+  static boolean isBlockIndex(IndexReader reader) {
+    return MultiFields.getMergedFieldInfos(reader).fieldInfo(THREAD_ID_FIELD) != null;
+  }
+
+  /**
+   * Make a query matching the threads (top-level comments) with any reply matching a query.
+   * Threads are scored by their best matching reply.
+   *
+   * @param replyQuery The query on the replies.
+   * @return The block-join query.
+   */
+  static Query threadsWithReply(Query replyQuery) {
+    Query replies = new BooleanQuery.Builder()
+        .add(replyQuery, Occur.MUST)
+        .add(new TermQuery(new Term(TYPE_FIELD, REPLY_TYPE)), Occur.FILTER)
+        .build();
+    return new ToParentBlockJoinQuery(replies, THREADS, ScoreMode.Max);
+  }
+
+  /**
+   * Get the top-level comment of the thread a document belongs to.
+   *
+   * @param reader The top-level reader of a block index.
+   * @param docId The doc ID of a comment.
+   * @return The doc ID of the top-level comment of its thread (docId itself for a top-level
+   *         comment), or -1 if the document is not part of a block.
+   * @throws IOException
+   */
+  static int threadDoc(IndexReader reader, int docId) throws IOException {
+    LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(docId, reader.leaves()));
+    BitSet threads = THREADS.getBitSet(leaf);
+    int localDocId = docId - leaf.docBase;
+    if (threads == null || localDocId >= threads.length()) return -1;
+    int threadDoc = threads.nextSetBit(localDocId);
+    return threadDoc == DocIdSetIterator.NO_MORE_DOCS ? -1 : leaf.docBase + threadDoc;
+  }
+
+  /**
+   * Get all the documents of the thread a document belongs to.
+   *
+   * @param reader The top-level reader of a block index.
+   * @param docId The doc ID of a comment of the thread.
+   * @return The doc IDs of the thread: the top-level comment first, then the replies in
+   *         indexing order. Empty if the document is not part of a block.
+   * @throws IOException
+   */
+  static int[] threadDocs(IndexReader reader, int docId) throws IOException {
+    LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(docId, reader.leaves()));
+    BitSet threads = THREADS.getBitSet(leaf);
+    int localDocId = docId - leaf.docBase;
+    if (threads == null || localDocId >= threads.length()) return new int[0];
+    int threadDoc = threads.nextSetBit(localDocId);
+    if (threadDoc == DocIdSetIterator.NO_MORE_DOCS) return new int[0];
+    int firstReply = threadDoc == 0 ? 0 : threads.prevSetBit(threadDoc - 1) + 1;
+
+    int[] docIds = new int[threadDoc - firstReply + 1];
+    docIds[0] = leaf.docBase + threadDoc;
+    for (int i = 1; i < docIds.length; ++i) {
+      docIds[i] = leaf.docBase + firstReply + i - 1;
+    }
+    return docIds;
+  }
+
+}
@@ -0,0 +1,573 @@
+package youtubesearcher;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PointValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IOUtils;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Analytics over a Youtube comments index: counts and like sums of the comments grouped by
+ * user, video, channel or day, e.g. the top commenters of a channel, the most liked comments of
+ * every video, or the number of comments per day.
+ *
+ * The aggregation is a single pass over the comments matching the filters, reading only the
+ * doc values columns of the keys (userId, videoId, channelId, publishTime) and of likeCount,
+ * never the stored documents. The segments are split into slices aggregated in parallel (see
+ * ParallelIndexSearcher), each into per-segment arrays indexed by the ordinal of the key (or the
+ * day), which are merged into the groups of the slice at the end of the segment; the groups of
+ * the slices are merged at the end. Only the IDs of the top comments shown (-top-comments) are
+ * read from the stored fields.
+ *
+ * The results are written to the standard output as JSON:
+ * {"groupBy": ..., "comments": ..., "likes": ..., "groups": ...,
+ *  "results": [{"key": ..., "comments": ..., "likes": ...,
+ *               "topComments": [{"commentId": ..., "likeCount": ...}, ...]}, ...]}
+ * where comments, likes and groups are the totals over all matching comments.
+ */
+public class YoutubeAnalytics {
+
+  /*
+   * command-line arguments for the entry point
+   */
+  @Option(name = "-index", aliases = "-i", required = true,
+          usage = "Path to the directory of the index files to be analyzed. Required option.")
+  private File indexDir;
+
+  @Option(name = "-group-by", aliases = "-g",
+          usage = "Group the comments by USER, VIDEO, CHANNEL or DAY (of publication, UTC). "
+                  + "Without it, only the totals are computed.")
+  private Key groupBy;
+
+  @Option(name = "-sort", aliases = "-s",
+          usage = "Order of the groups: COUNT (most comments first, default), LIKES (most likes "
+                  + "first) or KEY (e.g. chronological for DAY).")
+  private Order order = Order.COUNT;
+
+  @Option(name = "-max", aliases = "-m",
+          usage = "Number of groups to output (0 for all).")
+  private int maxGroups = 10;
+
+  @Option(name = "-top-comments", aliases = "-tc",
+          usage = "Also output the IDs of this many most liked comments of every group.")
+  private int numTopComments = 0;
+
+  @Option(name = "-userId", aliases = "-ui",
+          usage = "Only count the comments of these users (IDs separated by space).")
+  private String userIdString;
+
+  @Option(name = "-videoId", aliases = "-vi",
+          usage = "Only count the comments of these videos (IDs separated by space).")
+  private String videoIdString;
+
+  @Option(name = "-channelId", aliases = "-ci",
+          usage = "Only count the comments of these channels (IDs separated by space).")
+  private String channelIdString;
+
+  @Option(name = "-from",
+          usage = "Only count comments published on or after this day (YYYY-MM-DD, UTC).")
+  private String fromDate;
+
+  @Option(name = "-to",
+          usage = "Only count comments published on or before this day (YYYY-MM-DD, UTC).")
+  private String toDate;
+
+  @Option(name = "-directory", aliases = "-dir",
+          usage = "How the index files are accessed (retriever option -directory).")
+  private IndexShards.DirectoryMode directoryMode = IndexShards.DirectoryMode.AUTO;
+
+  @Option(name = "-metrics-log", aliases = "-ml",
+          usage = "Append the per-phase timings of the analysis to this log file (as JSON lines).")
+  private File metricsLogFile;
+
+  @Option(name = "-help", aliases = "-h", help = true,
+          usage = "Print help text.")
+  private boolean printHelp = false;
+
+  private long fromTime = Long.MIN_VALUE; // publish time range (-from and -to), in milliseconds
+  private long toTime = Long.MAX_VALUE;
+
+  private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+  private static final String LIKE_FIELD = "likeCount";
+  private static final String TIME_FIELD = "publishTime";
+  private static final Set<String> COMMENT_ID_FIELDS = Collections.singleton("commentId");
+
+  /**
+   * Keys the comments can be grouped by.
+   */
+  enum Key {
+    USER("userId"),
+    VIDEO("videoId"),
+    CHANNEL("channelId"),
+    DAY(TIME_FIELD); // from the numeric doc values of the publish time
+
+    final String field; // doc values field holding the key of every comment
+
+    Key(String field) {
+      this.field = field;
+    }
+
+    DocValuesType docValuesType() {
+      return this == DAY ? DocValuesType.NUMERIC : DocValuesType.SORTED;
+    }
+  }
+
+  /**
+   * Orders of the groups.
+   */
+  enum Order {
+    COUNT, LIKES, KEY;
+  }
+
+  /**
+   * The comments of one key (or all comments, for the totals).
+   */
+  static class Group {
+    final String key;
+    long count;
+    long likes;
+    TopComments topComments; // null if not asked for
+
+    Group(String key) {
+      this.key = key;
+    }
+
+    void add(long count, long likes, TopComments topComments) {
+      this.count += count;
+      this.likes += likes;
+      if (topComments != null) {
+        if (this.topComments == null) {
+          this.topComments = topComments;
+        } else {
+          this.topComments.addAll(topComments);
+        }
+      }
+    }
+  }
+
+  /**
+   * Result of an aggregation: the totals and the groups by key.
+   */
+  static class Result {
+    final Group total = new Group(null);
+    final Map<String, Group> groups = new HashMap<String, Group>();
+
+    void add(Result other) {
+      total.add(other.total.count, other.total.likes, null);
+      for (Group group : other.groups.values()) {
+        group(group.key).add(group.count, group.likes, group.topComments);
+      }
+    }
+
+    Group group(String key) {
+      Group group = groups.get(key);
+      if (group == null) {
+        group = new Group(key);
+        groups.put(key, group);
+      }
+      return group;
+    }
+  }
+
+  /**
+   * The most liked comments of a group, as (like count, doc ID) pairs packed in longs.
+   */
+  static class TopComments {
+    private final long[] entries; // best first
+    private int size = 0;
+
+    TopComments(int maxSize) {
+      entries = new long[maxSize];
+    }
+
+    void add(long likeCount, int doc) {
+      add(likeCount << 32 | doc);
+    }
+
+    private void add(long entry) {
+      if (size == entries.length && entry <= entries[size - 1]) return;
+      int i = size == entries.length ? size - 1 : size++;
+      for (; i > 0 && entries[i - 1] < entry; --i) {
+        entries[i] = entries[i - 1];
+      }
+      entries[i] = entry;
+    }
+
+    void addAll(TopComments other) {
+      for (int i = 0; i < other.size; ++i) {
+        add(other.entries[i]);
+      }
+    }
+
+    int size() {
+      return size;
+    }
+
+    long likeCount(int i) {
+      return entries[i] >>> 32;
+    }
+
+    int doc(int i) {
+      return (int) entries[i];
+    }
+  }
+
+  /**
+   * Collector aggregating the comments of one slice of segments.
+   */
+  private static class SliceCollector extends SimpleCollector {
+    private final Key key;
+    private final int numTopComments;
+    final Result result = new Result();
+
+    // State of the current segment
+    private LeafReaderContext context;
+    private NumericDocValues likeCounts;
+    private SortedDocValues ords;     // keys of an ID field
+    private NumericDocValues times;   // keys of DAY
+    private Bits hasTime;
+    private long minDay;
+    private int[] counts;             // count of every key of the segment, by ordinal (or day)
+    private long[] likes;
+    private TopComments[] topComments;
+
+    SliceCollector(Key key, int numTopComments) {
+      this.key = key;
+      this.numTopComments = numTopComments;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+      finishSegment();
+      this.context = context;
+      LeafReader reader = context.reader();
+      likeCounts = DocValues.getNumeric(reader, LIKE_FIELD);
+      if (key == null) return;
+      int numKeys;
+      if (key == Key.DAY) {
+        times = DocValues.getNumeric(reader, TIME_FIELD);
+        hasTime = DocValues.getDocsWithField(reader, TIME_FIELD);
+        // The days of the segment span the range of its publish time points
+        PointValues points = reader.getPointValues();
+        byte[] min = points == null ? null : points.getMinPackedValue(TIME_FIELD);
+        byte[] max = points == null ? null : points.getMaxPackedValue(TIME_FIELD);
+        if (min == null || max == null) {
+          hasTime = new Bits.MatchNoBits(reader.maxDoc());
+          numKeys = 0;
+        } else {
+          minDay = Math.floorDiv(LongPoint.decodeDimension(min, 0), DAY_MILLIS);
+          numKeys = (int) (Math.floorDiv(LongPoint.decodeDimension(max, 0), DAY_MILLIS)
+                           - minDay + 1);
+        }
+      } else {
+        ords = DocValues.getSorted(reader, key.field);
+        numKeys = ords.getValueCount();
+      }
+      counts = new int[numKeys];
+      likes = new long[numKeys];
+      topComments = numTopComments > 0 ? new TopComments[numKeys] : null;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      long likeCount = likeCounts.get(doc);
+      ++result.total.count;
+      result.total.likes += likeCount;
+      if (key == null) return;
+      int slot;
+      if (key == Key.DAY) {
+        if (! hasTime.get(doc)) return;
+        slot = (int) (Math.floorDiv(times.get(doc), DAY_MILLIS) - minDay);
+      } else {
+        slot = ords.getOrd(doc);
+        if (slot < 0) return; // no key
+      }
+      ++counts[slot];
+      likes[slot] += likeCount;
+      if (topComments != null) {
+        if (topComments[slot] == null) topComments[slot] = new TopComments(numTopComments);
+        topComments[slot].add(likeCount, context.docBase + doc);
+      }
+    }
+
+    /**
+     * Merge the keys of the current segment into the groups of the slice.
+     */
+    void finishSegment() {
+      if (context == null || key == null) return;
+      for (int slot = 0; slot < counts.length; ++slot) {
+        if (counts[slot] == 0) continue;
+        String value = key == Key.DAY ? LocalDate.ofEpochDay(minDay + slot).toString()
+                                      : ords.lookupOrd(slot).utf8ToString();
+        result.group(value).add(counts[slot], likes[slot],
+                                topComments == null ? null : topComments[slot]);
+      }
+      context = null;
+    }
+
+    @Override
+    public boolean needsScores() {
+      return false;
+    }
+  }
+
+  /**
+   * Aggregate the comments matching a filter, in parallel over the slices of the searcher.
+   *
+   * @param searcher The searcher (a ParallelIndexSearcher to aggregate in parallel).
+   * @param filter The comments to aggregate.
+   * @param key What the comments are grouped by (null for the totals only).
+   * @param numTopComments Number of most liked comments kept for every group (0 for none).
+   * @return The result (the doc IDs of the top comments are those of the searcher).
+   * @throws IOException
+   */
+  static Result aggregate(IndexSearcher searcher, Query filter, final Key key,
+                          final int numTopComments) throws IOException {
+    return searcher.search(filter, new CollectorManager<SliceCollector, Result>() {
+      @Override
+      public SliceCollector newCollector() {
+        return new SliceCollector(key, numTopComments);
+      }
+
+      @Override
+      public Result reduce(Collection<SliceCollector> collectors) {
+        Result result = new Result();
+        for (SliceCollector collector : collectors) {
+          collector.finishSegment();
+          result.add(collector.result);
+        }
+        return result;
+      }
+    });
+  }
+
+  /**
+   * Find the first segment of an index missing the doc values of a field.
+   *
+   * @return A description of the segment, or null if every segment with documents has them.
+   */
+  private static String missingDocValues(IndexReader reader, String field, DocValuesType type) {
+    for (LeafReaderContext context : reader.leaves()) {
+      FieldInfo fieldInfo = context.reader().getFieldInfos().fieldInfo(field);
+      if (context.reader().numDocs() != 0
+          && (fieldInfo == null || fieldInfo.getDocValuesType() != type)) {
+        return context.reader().toString();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Build the filter of the comments to aggregate.
+   */
+  private Query buildFilter() {
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    if (userIdString != null && ! userIdString.isEmpty()) {
+      builder.add(YoutubeRetriever.buildIdFilter("userId", userIdString), Occur.FILTER);
+    }
+    if (videoIdString != null && ! videoIdString.isEmpty()) {
+      builder.add(YoutubeRetriever.buildIdFilter("videoId", videoIdString), Occur.FILTER);
+    }
+    if (channelIdString != null && ! channelIdString.isEmpty()) {
+      builder.add(YoutubeRetriever.buildIdFilter("channelId", channelIdString), Occur.FILTER);
+    }
+    if (fromTime != Long.MIN_VALUE || toTime != Long.MAX_VALUE) {
+      builder.add(LongPoint.newRangeQuery(TIME_FIELD, fromTime, toTime), Occur.FILTER);
+    }
+    BooleanQuery filter = builder.build();
+    return filter.clauses().isEmpty() ? new MatchAllDocsQuery() : filter;
+  }
+
+  /**
+   * Sort the groups and keep the first -max of them.
+   */
+  private List<Group> topGroups(Result result) {
+    List<Group> groups = new ArrayList<Group>(result.groups.values());
+    Collections.sort(groups, new Comparator<Group>() {
+      @Override
+      public int compare(Group a, Group b) {
+        int compare = 0;
+        if (order == Order.COUNT) {
+          compare = Long.compare(b.count, a.count);
+        } else if (order == Order.LIKES) {
+          compare = Long.compare(b.likes, a.likes);
+        }
+        // Days are ISO dates, so the key order is chronological
+        return compare != 0 ? compare : a.key.compareTo(b.key);
+      }
+    });
+    return maxGroups == 0 || groups.size() <= maxGroups ? groups
+                                                         : groups.subList(0, maxGroups);
+  }
+
+  /**
+   * Aggregate the index and write the result to the standard output.
+   *
+   * @return status code (0 for success).
+   */
+  private int analyze() {
+    Metrics.Request timings = new Metrics.Request("analytics");
+    List<Directory> indexes = null;
+    IndexReader reader = null;
+    try {
+      long startTime = System.nanoTime();
+      List<File> dirs = IndexShards.partitioning(indexDir) != null
+                        ? IndexShards.partitionDirs(indexDir, fromTime, toTime)
+                        : IndexShards.indexDirs(indexDir);
+      indexes = IndexShards.openDirectories(dirs, directoryMode);
+      reader = IndexShards.openReader(indexes);
+      IndexSearcher searcher = ParallelIndexSearcher.create(reader, true);
+      timings.phase("open", startTime);
+
+      String segment = missingDocValues(reader, LIKE_FIELD, DocValuesType.NUMERIC);
+      if (segment == null && groupBy != null) {
+        segment = missingDocValues(reader, groupBy.field, groupBy.docValuesType());
+      }
+      if (segment != null) {
+        System.err.println("The segment " + segment + " has no doc values for the analysis; "
+                           + "reindex the comments.");
+        return 1;
+      }
+
+      startTime = System.nanoTime();
+      Result result = aggregate(searcher, buildFilter(), groupBy, numTopComments);
+      timings.phase("aggregate", startTime);
+      timings.attribute("comments", result.total.count);
+      timings.attribute("groups", result.groups.size());
+
+      startTime = System.nanoTime();
+      try (Writer output = new BufferedWriter(new OutputStreamWriter(System.out,
+                                                                     StandardCharsets.UTF_8))) {
+        writeResult(new JsonWriter(output), searcher, result);
+      }
+      timings.phase("output", startTime);
+    } catch (IOException e) {
+      System.err.println("Error analyzing index " + indexDir);
+      e.printStackTrace();
+      return 2;
+    } finally {
+      try {
+        IOUtils.close(reader);
+        if (indexes != null) IOUtils.close(indexes);
+      } catch (IOException e) {
+        System.err.println("Error closing index " + indexDir + ": " + e);
+      }
+      timings.finish(metricsLogFile);
+    }
+    return 0;
+  }
+
+  private void writeResult(JsonWriter json, IndexSearcher searcher, Result result)
+                                                                    throws IOException {
+    json.beginObject();
+    if (groupBy != null) {
+      json.name("groupBy").value(groupBy.name().toLowerCase(Locale.ROOT));
+    }
+    json.name("comments").value(result.total.count);
+    json.name("likes").value(result.total.likes);
+    if (groupBy != null) {
+      json.name("groups").value(result.groups.size());
+      json.name("results").beginArray();
+      for (Group group : topGroups(result)) {
+        json.beginObject();
+        json.name("key").value(group.key);
+        json.name("comments").value(group.count);
+        json.name("likes").value(group.likes);
+        if (group.topComments != null) {
+          json.name("topComments").beginArray();
+          for (int i = 0; i < group.topComments.size(); ++i) {
+            json.beginObject();
+            json.name("commentId").value(searcher.doc(group.topComments.doc(i),
+                                                      COMMENT_ID_FIELDS).get("commentId"));
+            json.name("likeCount").value(group.topComments.likeCount(i));
+            json.endObject();
+          }
+          json.endArray();
+        }
+        json.endObject();
+      }
+      json.endArray();
+    }
+    json.endObject();
+    json.flush();
+  }
+
+  @SuppressWarnings("deprecation")
+  private int parseArgs(String[] args) {
+    final CmdLineParser args4jCmdLineParser = new CmdLineParser(this);
+    try {
+      args4jCmdLineParser.parseArgument(args);
+      if (maxGroups < 0 || numTopComments < 0)
+        throw new CmdLineException("The numbers of groups and top comments can't be negative.");
+      if (numTopComments > 0 && groupBy == null)
+        throw new CmdLineException("The top comments (-tc) are per group (-g).");
+      if (fromDate != null) fromTime = YoutubeRetriever.parseDay(fromDate, 0);
+      if (toDate != null) toTime = YoutubeRetriever.parseDay(toDate, 1) - 1;
+    } catch (final CmdLineException e) {
+      System.err.println(e.getMessage());
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 2;
+    }
+
+    if (printHelp) {
+      System.err.println("Usage:");
+      args4jCmdLineParser.printUsage(System.err);
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Analytics entry point.
+   *
+   * @param args command-line arguments
+   */
+  public static void main(String[] args) {
+    YoutubeAnalytics analytics = new YoutubeAnalytics();
+    int status = analytics.parseArgs(args);
+    if (status != 0) System.exit(status);
+    status = analytics.analyze();
+    if (status != 0) System.exit(status);
+  }
+
+}
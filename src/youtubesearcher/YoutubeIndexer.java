@@ -1,37 +1,65 @@
 package youtubesearcher;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.codecs.lucene50.Lucene50StoredFieldsFormat;
+import org.apache.lucene.codecs.lucene62.Lucene62Codec;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Sort;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.LockObtainFailedException;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 import org.jsoup.Connection;
+import org.jsoup.HttpStatusException;
 import org.jsoup.Jsoup;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
 import com.google.gson.JsonParser;
 
 /**
@@ -65,6 +93,73 @@ public class YoutubeIndexer {
       usage = "Specify an API key to use. A built-in default one is used if not specified.")
   private String apiKey;
   
+  @Option(name = "-shards", aliases = "-s", 
+      usage = "Number of shards of the index; comments are routed to shards by channel ID. "
+              + "Default is 1 (not sharded). Must stay the same for every update of an index.")
+  private int numShards = 1;
+  
+  @Option(name = "-blocks", aliases = "-b", 
+      usage = "Index every comment thread (top-level comment and replies) as a document block, "
+              + "for thread queries in the retriever. Must be used for every update of an index.")
+  private boolean indexThreadBlocks = false;
+  
+  @Option(name = "-snapshot", aliases = "-sn", 
+      usage = "Publish a snapshot of the index at the end of the run, for read replicas to copy "
+              + "(see IndexReplicator). Always done for an index that already published one.")
+  private boolean publishSnapshot = false;
+  
+  @Option(name = "-compact", aliases = "-cm", 
+      usage = "Store the metadata of videos and users once in a metadata index instead of in "
+              + "every comment, and compress stored fields harder. Shrinks big indexes.")
+  private boolean compact = false;
+  
+  @Option(name = "-shingles", aliases = "-sh", 
+      usage = "Also index the comment text as pairs of consecutive words, which makes phrase "
+              + "queries much faster. Must be used for every update of an index.")
+  private boolean indexShingles = false;
+  
+  @Option(name = "-similar", aliases = "-sim", 
+      usage = "At the end of the run, add the comments missing from the similarity graph of the "
+              + "index, for the retriever option -similar-to. A later run with the option brings "
+              + "the graph up to date.")
+  private boolean updateSimilarComments = false;
+  
+  @Option(name = "-index-sort", aliases = "-is", forbids = {"-blocks"},
+      usage = "Sort the comments of every segment by LIKES (most liked first) or RECENT (newest "
+              + "first), so that retriever searches in that order (option -sort) stop after the "
+              + "first hits of every segment. Must be used for every update of an index.")
+  private YoutubeRetriever.SortOrder indexSort;
+  
+  @Option(name = "-time-partition", aliases = "-tp", forbids = {"-shards", "-blocks"}, 
+      usage = "Partition the index by publish time, MONTHLY or YEARLY: every comment goes to the "
+              + "sub-index of its period, so that date ranges and recent comments are searched "
+              + "in a few partitions. Must be used for every update of an index.")
+  private IndexShards.TimePartitioning timePartitioning;
+  
+  @Option(name = "-freeze-after", aliases = "-fa", depends = {"-time-partition"}, 
+      usage = "At the end of the run, merge every partition whose period ended more than this "
+              + "many months ago into one segment and freeze it: later runs skip its comments.")
+  private Integer freezeAfterMonths;
+  
+  @Option(name = "-threads", aliases = "-t", depends = {"-channel"}, 
+      usage = "Crawl the channel by partitions (each of its videos, and its discussion), this "
+              + "many partitions at a time, instead of one page of the channel after the other.")
+  private int numThreads = 1;
+  
+  @Option(name = "-checkpoint", aliases = "-ck", depends = {"-channel"}, 
+      usage = "Crawl the channel by partitions and record the partitions done in this file, so "
+              + "that an interrupted crawl resumes with the partitions not done yet.")
+  private File checkpointFile;
+  
+  @Option(name = "-dead-letter-log", aliases = "-dl", 
+      usage = "Append the records of the API that can't be parsed to this file, one JSON object "
+              + "per line, to be re-ingested later. They are skipped by the crawl.")
+  private File deadLetterFile = new File(ERROR_LOG_FILE);
+  
+  @Option(name = "-metrics-log", aliases = "-ml", 
+      usage = "Append the timings of every indexed page and a final summary to this log file.")
+  private File metricsLogFile;
+  
   @Option(name = "-help", aliases = "-h", help = true, 
           usage = "Print help text.")
   private boolean printHelp = false;
@@ -76,6 +171,14 @@ public class YoutubeIndexer {
       args4jCmdLineParser.parseArgument(args);
       if (isVideo == false && isChannel == false) 
         throw new CmdLineException("Must provide a source scope specifier option.");
+      if (numShards < 1) 
+        throw new CmdLineException("The number of shards must be at least 1.");
+      if (indexSort != null && indexSort.sort == null) 
+        throw new CmdLineException("The index can only be sorted by LIKES or RECENT.");
+      if (numThreads < 1) 
+        throw new CmdLineException("The number of threads must be at least 1.");
+      if (freezeAfterMonths != null && freezeAfterMonths < 0) 
+        throw new CmdLineException("The number of months before freezing must be at least 0.");
     } catch (final CmdLineException e) {
       System.err.println(e.getMessage());
       System.err.println("Usage:");
@@ -105,17 +208,27 @@ public class YoutubeIndexer {
    * Lucene indexer internal objects
    */
   private StandardAnalyzer analyzer; // analyzer for tokenizing text
-  private IndexWriterConfig config;  // config for IndexWriter
-  private Directory index;           // the index
+  
+  /*
+   * State of a run, shared by the threads crawling the partitions of a channel
+   */
+  private ShardWriters indexWriters;                            // the index being written
+  private DeadLetterLog deadLetters;                            // records that can't be parsed
+  private final Map<String, Video> videoCache =                 // information of seen videos
+      new ConcurrentHashMap<String, Video>();
+  private final NearDuplicates nearDuplicates = new NearDuplicates(); // clusters of the run
+  private final Metrics.Counter duplicateCounter = Metrics.counter("indexer.nearDuplicates");
+  private final Metrics.Counter docCounter = Metrics.counter("indexer.docs");
   
   enum Scope {
-    VIDEO, CHANNEL;
+    VIDEO, CHANNEL, 
+    DISCUSSION; // comments on a channel itself, without a video (partition of a channel crawl)
   }
   
   /**
    * This class stores all needed information from one downloaded page
    */
-  private static class CommentsPage {
+  static class CommentsPage {
     private JsonArray comments;     // the JSON object containing all comments on the page
     private String nextPageToken;   // token for retrieving the next page
     
@@ -133,17 +246,116 @@ public class YoutubeIndexer {
     }
   }
   
+  /**
+   * A request refused by the API, with the reason of its error response (e.g. "commentsDisabled"
+   * or "quotaExceeded"; null if the response doesn't give one).
+   */
+  static class ApiException extends HttpStatusException {
+    private static final long serialVersionUID = 1L;
+
+    private final String reason;
+    
+    public ApiException(String reason, int statusCode, String url) {
+      super("HTTP error fetching URL" + (reason != null ? " (" + reason + ")" : ""), 
+            statusCode, url);
+      this.reason = reason;
+    }
+    
+    public final String getReason() {
+      return reason;
+    }
+  }
+  
+  /**
+   * Parse the JSON response body of a comment page request.
+   * 
+   * @param body The response body.
+   * @return an object containing information of all comments in the page and a nextPageToken
+   */
+  static CommentsPage parseCommentsPage(String body) {
+    long startTime = System.nanoTime();
+    JsonParser parser = new JsonParser();
+    JsonObject rootObj = parser.parse(body).getAsJsonObject();
+    JsonArray commentsArrayObj = rootObj.getAsJsonArray("items");
+    
+    String nextPageToken = null;
+    try {
+      nextPageToken = rootObj.get("nextPageToken").getAsString();
+    } catch (NullPointerException e) {
+      // Do nothing
+    }
+    
+    Metrics.timer("indexer.parsePage").record(System.nanoTime() - startTime);
+    return new CommentsPage(commentsArrayObj, nextPageToken);
+  }
+  
+  /**
+   * Send a GET request to the Youtube Data API.
+   * 
+   * The latency, the size of the response and failed requests are recorded in the metrics.
+   * 
+   * @param urlStr The request URL.
+   * @return The response.
+   * @throws IOException Network error (ApiException if the request was refused).
+   */
+  private static Connection.Response httpGet(String urlStr) throws IOException {
+    long startTime = System.nanoTime();
+    try {
+      Connection.Response response = Jsoup.connect(urlStr)
+                                          .method(Connection.Method.GET)
+                                          .referrer("https://cs.nyu.edu")
+                                          .ignoreContentType(true)
+                                          .ignoreHttpErrors(true)
+                                          .maxBodySize(Integer.MAX_VALUE)
+                                          .execute();
+      Metrics.counter("indexer.httpBytes").add(response.bodyAsBytes().length);
+      if (response.statusCode() < 200 || response.statusCode() >= 400) {
+        throw new ApiException(parseErrorReason(response.body()), response.statusCode(), urlStr);
+      }
+      return response;
+    } catch (IOException e) {
+      Metrics.counter("indexer.httpErrors").increment();
+      throw e;
+    } finally {
+      Metrics.timer("indexer.http").record(System.nanoTime() - startTime);
+    }
+  }
+  
+  /**
+   * Parse the reason of an error response of the API, 
+   * e.g. {"error": {"code": 403, "errors": [{"reason": "commentsDisabled", ...}], ...}}.
+   * 
+   * @param body The response body.
+   * @return The reason of the first error, or null if the body doesn't give one.
+   */
+  private static String parseErrorReason(String body) {
+    try {
+      JsonElement error = new JsonParser().parse(body).getAsJsonObject().get("error");
+      if (error == null || ! error.isJsonObject()) return null;
+      JsonArray errors = error.getAsJsonObject().getAsJsonArray("errors");
+      if (errors == null || errors.size() == 0) return null;
+      JsonElement reason = errors.get(0).getAsJsonObject().get("reason");
+      return reason != null ? reason.getAsString() : null;
+    } catch (JsonParseException | IllegalStateException | ClassCastException e) {
+      return null;
+    }
+  }
+  
   /**
    * Download one page of the top-level comments within a "scope" 
    * (e.g. a "scope" can be a video or a channel).
    * 
+   * Every comment thread of the page comes with its first replies inline (part "replies"), which
+   * are all the replies of most threads.
+   * 
    * @param scope type of the scope
    * @param scopeId ID of scope (e.g. VideoId for VIDEO scope, ChannelId for CHANNEL scope)
    * @param pageToken pageToken of the page (provide null for the first page)
    * @return an object containing information of all comments in the page and a nextPageToken
+   * @throws IOException Network error (ApiException if the request was refused).
    */
   private static CommentsPage downloadTopLevelCommentsPage(Scope scope, String scopeId, 
-                                                           String pageToken) {
+                                                           String pageToken) throws IOException {
     final String SCOPE_FILTER;
     switch (scope) {
       case VIDEO:
@@ -152,6 +364,9 @@ public class YoutubeIndexer {
       case CHANNEL:
         SCOPE_FILTER = "&allThreadsRelatedToChannelId=" + scopeId;
         break;
+      case DISCUSSION:
+        SCOPE_FILTER = "&channelId=" + scopeId;
+        break;
       default:
         System.err.println("Invalid Scope.");
         return null;
@@ -160,33 +375,10 @@ public class YoutubeIndexer {
     final String PAGE_TOKEN = pageToken == null ? "" : "&pageToken=" + pageToken;
     
     String urlStr = URL_BASE + "/commentThreads" + "?key=" + API_KEY 
-                    + "&textFormat=plainText&part=snippet" + "&maxResults=100"
+                    + "&textFormat=plainText&part=snippet,replies" + "&maxResults=100"
                     + SCOPE_FILTER + PAGE_TOKEN;
     
-    Connection.Response response;
-    try {
-       response = Jsoup.connect(urlStr)
-                       .method(Connection.Method.GET)
-                       .referrer("https://cs.nyu.edu")
-                       .ignoreContentType(true)
-                       .maxBodySize(Integer.MAX_VALUE)
-                       .execute();
-    } catch (IOException e) {
-      return null;
-    }
-    
-    JsonParser parser = new JsonParser();
-    JsonObject rootObj = parser.parse(response.body()).getAsJsonObject();
-    JsonArray commentsArrayObj = rootObj.getAsJsonArray("items");
-    
-    String nextPageToken = null;
-    try {
-      nextPageToken = rootObj.get("nextPageToken").getAsString();
-    } catch (NullPointerException e) {
-      // Do nothing
-    }
-    
-    return new CommentsPage(commentsArrayObj, nextPageToken);
+    return parseCommentsPage(httpGet(urlStr).body());
   }
   
   /**
@@ -206,12 +398,7 @@ public class YoutubeIndexer {
     
     Connection.Response response;
     try {
-       response = Jsoup.connect(urlStr)
-                       .method(Connection.Method.GET)
-                       .referrer("https://cs.nyu.edu")
-                       .ignoreContentType(true)
-                       .maxBodySize(Integer.MAX_VALUE)
-                       .execute();
+      response = httpGet(urlStr);
     } catch (IOException e) {
       System.err.println(
           "Network error when retrieving the page: " + urlStr + ".");
@@ -219,18 +406,112 @@ public class YoutubeIndexer {
       return null;
     }
     
-    JsonParser parser = new JsonParser();
-    JsonObject rootObj = parser.parse(response.body()).getAsJsonObject();
-    JsonArray commentsArrayObj = rootObj.getAsJsonArray("items");
-    
-    String nextPageToken = null;
+    return parseCommentsPage(response.body());
+  }
+  
+  /**
+   * Get the replies returned inline with a comment thread.
+   * 
+   * @param threadJson JSON object of a comment thread (with part "replies").
+   * @return The inline replies (empty if there are none).
+   */
+  static JsonArray inlineReplies(JsonObject threadJson) {
+    JsonObject replies = threadJson.getAsJsonObject("replies");
+    if (replies == null || replies.getAsJsonArray("comments") == null) return new JsonArray();
+    return replies.getAsJsonArray("comments");
+  }
+  
+  /**
+   * Download all replies of a comment thread, page by page. Failed page requests are retried.
+   * 
+   * @param parentId The ID of the top-level comment (a.k.a. the thread ID)
+   * @return The replies, or null if a page could not be downloaded.
+   */
+  private static JsonArray downloadAllReplies(String parentId) {
+    JsonArray replies = new JsonArray();
+    String replyPageToken = null;
+    int numRetry = 0;
+    do {
+      CommentsPage replyPage = downloadReplyCommentsPage(parentId, replyPageToken);
+      if (replyPage == null) {
+        if (numRetry == MAX_NETWORK_ERROR_RETRY) return null;
+        ++numRetry;
+        Metrics.counter("indexer.retries").increment();
+        try {
+          TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException e) {
+          return null;
+        }
+        continue;
+      }
+      numRetry = 0;
+      replies.addAll(replyPage.getComments());
+      replyPageToken = replyPage.getNextPageToken();
+    } while (replyPageToken != null || numRetry != 0);
+    return replies;
+  }
+  
+  /**
+   * List the videos of a channel: the items of its uploads playlist.
+   * 
+   * @param channelId The channel ID.
+   * @return The video IDs, newest first, or null if they could not be downloaded.
+   */
+  private static List<String> downloadChannelVideoIds(String channelId) {
+    JsonObject channelJson = downloadJsonWithRetry(URL_BASE + "/channels" + "?key=" + API_KEY 
+                                                   + "&part=contentDetails" + "&id=" + channelId);
+    String uploadsPlaylistId;
     try {
-      nextPageToken = rootObj.get("nextPageToken").getAsString();
-    } catch (NullPointerException e) {
-      // Do nothing
+      uploadsPlaylistId = channelJson.getAsJsonArray("items").get(0).getAsJsonObject()
+                                     .getAsJsonObject("contentDetails")
+                                     .getAsJsonObject("relatedPlaylists")
+                                     .get("uploads").getAsString();
+    } catch (NullPointerException | IndexOutOfBoundsException e) {
+      return null;
     }
     
-    return new CommentsPage(commentsArrayObj, nextPageToken);
+    List<String> videoIds = new ArrayList<String>();
+    String pageToken = null;
+    do {
+      JsonObject pageJson = downloadJsonWithRetry(
+          URL_BASE + "/playlistItems" + "?key=" + API_KEY 
+          + "&part=contentDetails" + "&maxResults=50"
+          + "&playlistId=" + uploadsPlaylistId
+          + (pageToken == null ? "" : "&pageToken=" + pageToken));
+      if (pageJson == null || pageJson.getAsJsonArray("items") == null) return null;
+      for (JsonElement item : pageJson.getAsJsonArray("items")) {
+        JsonObject contentDetails = item.getAsJsonObject().getAsJsonObject("contentDetails");
+        if (contentDetails != null && contentDetails.has("videoId")) {
+          videoIds.add(contentDetails.get("videoId").getAsString());
+        }
+      }
+      pageToken = pageJson.has("nextPageToken") ? pageJson.get("nextPageToken").getAsString() 
+                                                : null;
+    } while (pageToken != null);
+    return videoIds;
+  }
+  
+  /**
+   * Send a GET request to the Youtube Data API and parse the JSON response, retrying on network
+   * errors.
+   * 
+   * @param urlStr The request URL.
+   * @return The JSON response, or null if all retries failed.
+   */
+  private static JsonObject downloadJsonWithRetry(String urlStr) {
+    for (int numRetry = 0; ; ++numRetry) {
+      try {
+        return new JsonParser().parse(httpGet(urlStr).body()).getAsJsonObject();
+      } catch (IOException e) {
+        if (numRetry == MAX_NETWORK_ERROR_RETRY) return null;
+        Metrics.counter("indexer.retries").increment();
+        try {
+          TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException ie) {
+          return null;
+        }
+      }
+    }
   }
   
   static class Comment {
@@ -240,8 +521,10 @@ public class YoutubeIndexer {
     private String userName;
     private String profilePicture;
     private String videoId;
+    private String channelId; // the channel of the video or discussion (top-level comments)
     private String commentText;
     private String publishTime;
+    private long publishTimeMillis; // publishTime in milliseconds since the epoch
     private String updateTime;
     private int likeCount;
     private int replyCount;
@@ -253,8 +536,10 @@ public class YoutubeIndexer {
       userName = "";
       profilePicture = "";
       videoId = "";
+      channelId = "";
       commentText = "";
       publishTime = "";
+      publishTimeMillis = 0;
       updateTime = "";
       likeCount = 0;
       replyCount = 0;
@@ -287,6 +572,10 @@ public class YoutubeIndexer {
     public final String getVideoId() {
       return videoId;
     }
+
+    public final String getChannelId() {
+      return channelId;
+    }
     
     public final String getCommentText() {
       return commentText;
@@ -296,6 +585,10 @@ public class YoutubeIndexer {
       return publishTime;
     }
 
+    public final long getPublishTimeMillis() {
+      return publishTimeMillis;
+    }
+
     public final String getUpdateTime() {
       return updateTime;
     }
@@ -313,6 +606,7 @@ public class YoutubeIndexer {
      * 
      * @param jsonObj JSON object for a top-level comment
      * @return a Comment object
+     * @throws JsonParseException A required field is missing or of the wrong type.
      */
     public static Comment parseTopLevelComment(JsonObject jsonObj) {
       Comment ret = new Comment();
@@ -340,6 +634,7 @@ public class YoutubeIndexer {
                                  .get("topLevelComment").getAsJsonObject()
                                  .get("snippet").getAsJsonObject()
                                  .get("publishedAt").getAsString();
+        ret.publishTimeMillis = Instant.parse(ret.publishTime).toEpochMilli();
         ret.updateTime = jsonObj.get("snippet").getAsJsonObject()
                                 .get("topLevelComment").getAsJsonObject()
                                 .get("snippet").getAsJsonObject()
@@ -350,19 +645,9 @@ public class YoutubeIndexer {
                                .get("likeCount").getAsInt();
         ret.replyCount = jsonObj.get("snippet").getAsJsonObject()
                                 .get("totalReplyCount").getAsInt();
-      } catch (NullPointerException e) {
-        try {
-          File file = new File(ERROR_LOG_FILE);
-          file.getParentFile().mkdirs();
-          PrintWriter printWriter = new PrintWriter(new FileOutputStream(file, true)); 
-                                                                               // append = true
-          printWriter.println("NullPointerException parsing JSON: \n" + jsonObj.toString());
-          e.printStackTrace(printWriter);
-          printWriter.println("=========================================");
-          printWriter.close();
-        } catch (IOException ee) {
-          System.err.println("Error occured when writing to error log file.");
-        }
+      } catch (NullPointerException | IllegalStateException | UnsupportedOperationException
+               | NumberFormatException | DateTimeParseException e) {
+        throw new JsonParseException("Malformed top-level comment", e);
       }
       // Optional Fields
       // If a comment is on a channel instead of a video, there would be no videoId.
@@ -373,6 +658,12 @@ public class YoutubeIndexer {
         // Do nothing
         // It is expected to have comments without videoId (comments on channel)
       }
+      try {
+        ret.channelId = jsonObj.get("snippet").getAsJsonObject()
+                               .get("channelId").getAsString();
+      } catch (NullPointerException e) {
+        // Do nothing
+      }
       
       return ret;
     }
@@ -382,6 +673,7 @@ public class YoutubeIndexer {
      * 
      * @param jsonObj JSON object for a reply comment
      * @return a Comment object
+     * @throws JsonParseException A required field is missing or of the wrong type.
      */
     public static Comment parseReplyComment(JsonObject jsonObj) {
       Comment ret = new Comment();
@@ -399,21 +691,16 @@ public class YoutubeIndexer {
                                  .get("textDisplay").getAsString();
         ret.publishTime = jsonObj.get("snippet").getAsJsonObject()
                                  .get("publishedAt").getAsString();
+        ret.publishTimeMillis = Instant.parse(ret.publishTime).toEpochMilli();
         ret.updateTime = jsonObj.get("snippet").getAsJsonObject()
                                 .get("updatedAt").getAsString();
         ret.likeCount = jsonObj.get("snippet").getAsJsonObject()
                                .get("likeCount").getAsInt();
         ret.parentId = jsonObj.get("snippet").getAsJsonObject()
                               .get("parentId").getAsString();
-      } catch (NullPointerException e) {
-        try {
-          String errorLog = "NullPointerException parsing JSON: \n" + jsonObj.getAsString();
-          errorLog += e.getMessage();
-          errorLog += "=========================================\n";
-          Files.write(Paths.get(ERROR_LOG_FILE), errorLog.getBytes(), StandardOpenOption.APPEND);
-        } catch (IOException ee) {
-          System.err.println("Error occured when writing to error log file.");
-        }
+      } catch (NullPointerException | IllegalStateException | UnsupportedOperationException
+               | NumberFormatException | DateTimeParseException e) {
+        throw new JsonParseException("Malformed reply comment", e);
       }
       
       return ret;
@@ -437,12 +724,7 @@ public class YoutubeIndexer {
     
     Connection.Response response;
     try {
-       response = Jsoup.connect(urlStr)
-                       .method(Connection.Method.GET)
-                       .referrer("https://cs.nyu.edu")
-                       .ignoreContentType(true)
-                       .maxBodySize(Integer.MAX_VALUE)
-                       .execute();
+      response = httpGet(urlStr);
     } catch (IOException e) {
       System.err.println(e);
       return null;
@@ -585,40 +867,443 @@ public class YoutubeIndexer {
     return videoInfo;
   }
   
-  private static void addDoc(IndexWriter indexWriter, Comment comment, Video videoInfo)
+  static void addDoc(IndexWriter indexWriter, Comment comment, Video videoInfo)
                                                                          throws IOException {
+    addDoc(indexWriter, makeDoc(comment, videoInfo));
+  }
+  
+  /**
+   * Add a comment document, replacing any previous version of the comment.
+   */
+  static void addDoc(IndexWriter indexWriter, Document doc) throws IOException {
+    Term key = new Term("commentId", doc.get("commentId"));
+    indexWriter.updateDocument(key, doc); // This method checks for the key first to avoid duplicate
+  }
+  
+  /**
+   * Make the document of a comment.
+   */
+  static Document makeDoc(Comment comment, Video videoInfo) {
+    return makeDoc(comment, videoInfo, false);
+  }
+  
+  /**
+   * Make the document of a comment.
+   * 
+   * @param compact Whether to leave the video and user metadata out of the stored fields
+   *                (they are kept in the MetadataStore of a compact index).
+   */
+  static Document makeDoc(Comment comment, Video videoInfo, boolean compact) {
+    // The metadata fields are still indexed for the filters of the retriever
+    Field.Store metadataStore = compact ? Field.Store.NO : Field.Store.YES;
     Document doc = new Document();
     doc.add(new StringField("commentId", comment.getCommentId(), Field.Store.YES));
     doc.add(new StringField("parentId", comment.getParentId(), Field.Store.YES));
     doc.add(new StringField("userId", comment.getUserId(), Field.Store.YES));
     doc.add(new StringField("videoId", comment.getVideoId(), Field.Store.YES));
-    doc.add(new TextField("userName", comment.getUserName(), Field.Store.YES));
+    // Group keys of the retriever option -group-by (not "threadId", which marks block indexes)
+    doc.add(new SortedDocValuesField("videoId", new BytesRef(comment.getVideoId())));
+    String threadKey = comment.getParentId().isEmpty() ? comment.getCommentId() 
+                                                       : comment.getParentId();
+    doc.add(new SortedDocValuesField("threadKey", new BytesRef(threadKey)));
+    // Keys of the analytics (YoutubeAnalytics option -group-by)
+    doc.add(new SortedDocValuesField("userId", new BytesRef(comment.getUserId())));
+    doc.add(new SortedDocValuesField("channelId", new BytesRef(videoInfo.getChannelId())));
+    doc.add(new TextField("userName", comment.getUserName(), metadataStore));
+    PartialMatch.addFields(doc, "userName", comment.getUserName());
     doc.add(new TextField("commentText", comment.getCommentText(), Field.Store.YES));
-    doc.add(new StoredField("profilePicture", comment.getProfilePicture()));
+    if (! compact) doc.add(new StoredField("profilePicture", comment.getProfilePicture()));
     doc.add(new StoredField("likeCount", comment.getLikeCount()));
+    doc.add(new NumericDocValuesField("likeCount", comment.getLikeCount()));
     doc.add(new StoredField("replyCount", comment.getReplyCount()));
-    // TODO add String publishTime, String updateTime
-    doc.add(new TextField("videoTitle", videoInfo.getTitle(), Field.Store.YES));
-    doc.add(new StoredField("videoThumbnail", videoInfo.getThumbnail()));
-    doc.add(new StringField("channelId", videoInfo.getChannelId(), Field.Store.YES));
-    doc.add(new TextField("channelTitle", videoInfo.getChannelTitle(), Field.Store.YES));
+    doc.add(new NumericDocValuesField("replyCount", comment.getReplyCount()));
+    // Publish time, for the date ranges (points) and the recency sort (doc values) of the 
+    // retriever
+    doc.add(new LongPoint("publishTime", comment.getPublishTimeMillis()));
+    doc.add(new NumericDocValuesField("publishTime", comment.getPublishTimeMillis()));
+    // TODO add String updateTime
+    doc.add(new TextField("videoTitle", videoInfo.getTitle(), metadataStore));
+    PartialMatch.addFields(doc, "videoTitle", videoInfo.getTitle());
+    if (! compact) doc.add(new StoredField("videoThumbnail", videoInfo.getThumbnail()));
+    doc.add(new StringField("channelId", videoInfo.getChannelId(), metadataStore));
+    doc.add(new TextField("channelTitle", videoInfo.getChannelTitle(), metadataStore));
+    PartialMatch.addFields(doc, "channelTitle", videoInfo.getChannelTitle());
+    return doc;
+  }
+  
+  /**
+   * IndexWriter recording the time spent in (full) flushes in the metrics
+   */
+  private static class MeteredIndexWriter extends IndexWriter {
+    private long flushStartTime;
     
-
-    Term key = new Term("commentId", comment.getCommentId());
-    indexWriter.updateDocument(key, doc); // This method checks for the key first to avoid duplicate
+    MeteredIndexWriter(Directory directory, IndexWriterConfig config) throws IOException {
+      super(directory, config);
+    }
+    
+    @Override
+    protected void doBeforeFlush() {
+      flushStartTime = System.nanoTime();
+    }
+    
+    @Override
+    protected void doAfterFlush() {
+      Metrics.timer("indexer.flush").record(System.nanoTime() - flushStartTime);
+    }
+  }
+  
+  /**
+   * Merge scheduler recording the time spent in segment merges in the metrics
+   */
+  private static class MeteredMergeScheduler extends ConcurrentMergeScheduler {
+    @Override
+    protected void doMerge(IndexWriter writer, MergePolicy.OneMerge merge) throws IOException {
+      long startTime = System.nanoTime();
+      try {
+        super.doMerge(writer, merge);
+      } finally {
+        Metrics.timer("indexer.merge").record(System.nanoTime() - startTime);
+        Metrics.counter("indexer.mergedDocs").add(merge.totalMaxDoc);
+      }
+    }
+  }
+  
+  /**
+   * The IndexWriters of the index, one per shard or time partition (or a single one if the index
+   * is a plain index).
+   * 
+   * Writers are opened on first use, so an indexer only holds the write locks of the shards it 
+   * actually writes to, and indexers crawling channels in different shards don't block each other.
+   * With -compact every sub-index also has a writer for its metadata index.
+   */
+  private class ShardWriters implements Closeable {
+    private final Map<File, IndexWriter> writers = new LinkedHashMap<File, IndexWriter>();
+    private final Map<File, MetadataStore.Updater> metadataUpdaters = 
+        new LinkedHashMap<File, MetadataStore.Updater>();
+    private final Map<File, Boolean> frozen = new HashMap<File, Boolean>();
+    private final List<IndexWriter> publishing = new ArrayList<IndexWriter>();
+    private final List<Directory> directories = new ArrayList<Directory>();
+    
+    /**
+     * Get the writer of the sub-index owning a comment.
+     * 
+     * @param channelId The channel ID of the comment (the routing key of shards).
+     * @param publishTime The publish time of the comment (the routing key of time partitions).
+     * @return The IndexWriter of the sub-index, or null if it is a frozen partition.
+     * @throws IOException Error opening the sub-index (e.g. LockObtainFailedException).
+     */
+    synchronized IndexWriter get(String channelId, long publishTime) throws IOException {
+      File dir = subIndexDir(channelId, publishTime);
+      if (isFrozen(dir)) return null;
+      return writer(dir);
+    }
+    
+    /**
+     * Get the metadata writer of the sub-index owning a comment (compact indexes only).
+     * 
+     * @param channelId The channel ID of the comment (the routing key of shards).
+     * @param publishTime The publish time of the comment (the routing key of time partitions).
+     * @return The metadata writer of the sub-index.
+     * @throws IOException Error opening the metadata index.
+     */
+    synchronized MetadataStore.Updater metadata(String channelId, long publishTime) 
+                                                                       throws IOException {
+      File dir = subIndexDir(channelId, publishTime);
+      MetadataStore.Updater updater = metadataUpdaters.get(dir);
+      if (updater == null) {
+        updater = new MetadataStore.Updater(open(MetadataStore.metadataDir(dir), false));
+        metadataUpdaters.put(dir, updater);
+      }
+      return updater;
+    }
+    
+    private File subIndexDir(String channelId, long publishTime) {
+      if (timePartitioning != null) {
+        return IndexShards.partitionDir(indexDir, timePartitioning.partitionOf(publishTime));
+      }
+      if (numShards == 1) return indexDir;
+      return IndexShards.shardDir(indexDir, IndexShards.shardOf(channelId, numShards));
+    }
+    
+    private IndexWriter writer(File dir) throws IOException {
+      IndexWriter writer = writers.get(dir);
+      if (writer == null) {
+        writer = open(dir, true);
+        writers.put(dir, writer);
+      }
+      return writer;
+    }
+    
+    private boolean isFrozen(File dir) throws IOException {
+      if (timePartitioning == null) return false;
+      Boolean isFrozen = frozen.get(dir);
+      if (isFrozen == null) {
+        isFrozen = false;
+        if (containsIndex(dir)) {
+          try (Directory directory = FSDirectory.open(dir.toPath())) {
+            isFrozen = IndexShards.isFrozen(directory);
+          }
+        }
+        frozen.put(dir, isFrozen);
+      }
+      return isFrozen;
+    }
+    
+    private IndexWriter open(File dir, boolean comments) throws IOException {
+      Directory directory = FSDirectory.open(dir.toPath());
+      directories.add(directory);
+      IndexWriterConfig config = newIndexWriterConfig();
+      // Merged segments are sorted too; the metadata index is looked up by key only
+      if (comments && indexSort != null) config.setIndexSort(indexSort.sort);
+      boolean publish = publishSnapshot || IndexSnapshots.readPublished(directory) != null;
+      if (publish) {
+        IndexSnapshots.enableSnapshots(config, directory);
+      }
+      IndexWriter writer = new MeteredIndexWriter(directory, config);
+      if (publish) publishing.add(writer);
+      return writer;
+    }
+    
+    /**
+     * Freeze the partitions whose period ended before a time: merge each into a single segment,
+     * and mark it frozen in its next commit, so no later run writes to it.
+     * 
+     * @param before The time (milliseconds since the epoch).
+     * @throws IOException
+     */
+    synchronized void freezePartitions(long before) throws IOException {
+      for (File dir : IndexShards.partitionDirs(indexDir)) {
+        if (IndexShards.partitionEnd(dir) > before || ! containsIndex(dir) || isFrozen(dir)) {
+          continue;
+        }
+        long startTime = System.nanoTime();
+        IndexWriter writer = writer(dir);
+        IndexShards.freeze(writer);
+        frozen.put(dir, true);
+        Metrics.counter("indexer.frozenPartitions").increment();
+        System.out.printf("Froze partition %s (%d comments) in %.1f s%n", dir.getName(), 
+                          writer.numDocs(), (System.nanoTime() - startTime) / 1e9);
+      }
+    }
+    
+    /**
+     * Get the directories of the sub-indexes written to (opened) so far.
+     */
+    synchronized List<File> writtenDirs() {
+      return new ArrayList<File>(writers.keySet());
+    }
+    
+    /**
+     * Commit all open writers, the metadata first.
+     * 
+     * @throws IOException
+     */
+    synchronized void commit() throws IOException {
+      for (MetadataStore.Updater updater : metadataUpdaters.values()) {
+        updater.getWriter().commit();
+      }
+      for (IndexWriter writer : writers.values()) {
+        writer.commit();
+      }
+    }
+    
+    /**
+     * Publish the snapshots (if enabled) and close the writers.
+     * 
+     * The metadata is published first, so replicas never have comments without their metadata.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      List<Closeable> closeables = new ArrayList<Closeable>();
+      try {
+        List<IndexWriter> publishOrder = new ArrayList<IndexWriter>();
+        for (MetadataStore.Updater updater : metadataUpdaters.values()) {
+          if (publishing.contains(updater.getWriter())) publishOrder.add(updater.getWriter());
+        }
+        for (IndexWriter writer : writers.values()) {
+          if (publishing.contains(writer)) publishOrder.add(writer);
+        }
+        for (IndexWriter writer : publishOrder) {
+          IndexCommit commit = IndexSnapshots.publish(writer);
+          System.out.println("Published commit " + commit.getSegmentsFileName() 
+                             + " of " + writer.getDirectory());
+        }
+      } finally {
+        closeables.addAll(writers.values());
+        for (MetadataStore.Updater updater : metadataUpdaters.values()) {
+          closeables.add(updater.getWriter());
+        }
+        closeables.addAll(directories);
+        IOUtils.close(closeables);
+      }
+    }
   }
   
   private void initialize() {
+    analyzer = new StandardAnalyzer();
+  }
+  
+  /**
+   * Make a new config for an IndexWriter (a config cannot be shared between writers).
+   */
+  private IndexWriterConfig newIndexWriterConfig() {
+    // n-grams and shingles for the sub-fields of the names and titles and of the comment text
+    IndexWriterConfig config = new IndexWriterConfig(
+        PhraseShingles.indexAnalyzer(PartialMatch.indexAnalyzer(analyzer)));
+    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND); // Append to existing index
+    config.setMergeScheduler(new MeteredMergeScheduler());
+    if (compact) {
+      // Deflate bigger blocks of stored fields: smaller index, slightly slower document fetches
+      config.setCodec(new Lucene62Codec(Lucene50StoredFieldsFormat.Mode.BEST_COMPRESSION));
+    }
+    return config;
+  }
+  
+  private static boolean containsIndex(File dir) {
+    String[] files = dir.list();
+    if (files == null) return false;
+    for (String file : files) {
+      if (file.startsWith(IndexFileNames.SEGMENTS)) return true;
+    }
+    return false;
+  }
+  
+  /**
+   * Check that the -blocks option matches the layout of an existing index; plain comment
+   * documents in a block index would be taken as replies of the next thread.
+   * 
+   * @return true if the index can be written with the configured layout.
+   */
+  private boolean checkBlockLayout() {
+    for (File dir : IndexShards.indexDirs(indexDir)) {
+      if (! containsIndex(dir)) continue;
+      try (Directory directory = FSDirectory.open(dir.toPath());
+           DirectoryReader reader = DirectoryReader.open(directory)) {
+        if (reader.numDocs() == 0 || ThreadBlocks.isBlockIndex(reader) == indexThreadBlocks) {
+          continue;
+        }
+        System.err.println(indexThreadBlocks 
+            ? "The index " + dir + " is not indexed by thread blocks; "
+              + "index into a new directory to use -blocks."
+            : "The index " + dir + " is indexed by thread blocks; use -blocks to update it.");
+        return false;
+      } catch (IOException e) {
+        System.err.println("Error reading index " + dir);
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Check that the -index-sort option matches the sort of an existing index; IndexWriter can't
+   * change the sort of the segments already written.
+   * 
+   * @return true if the index can be written with the configured sort.
+   */
+  private boolean checkIndexSort() {
+    Sort sort = indexSort == null ? null : indexSort.sort;
+    for (File dir : IndexShards.indexDirs(indexDir)) {
+      if (! containsIndex(dir)) continue;
+      try (Directory directory = FSDirectory.open(dir.toPath())) {
+        for (SegmentCommitInfo segment : SegmentInfos.readLatestCommit(directory)) {
+          Sort segmentSort = segment.info.getIndexSort();
+          if (segment.info.maxDoc() == 0 
+              || (segmentSort == null ? sort == null : segmentSort.equals(sort))) {
+            continue;
+          }
+          String existing = "another order";
+          for (YoutubeRetriever.SortOrder order : YoutubeRetriever.SortOrder.values()) {
+            if (segmentSort != null && segmentSort.equals(order.sort)) existing = order.name();
+          }
+          System.err.println(segmentSort == null
+              ? "The index " + dir + " is not sorted; "
+                + "index into a new directory to use -index-sort."
+              : "The index " + dir + " is sorted by " + existing + "; use the same -index-sort "
+                + "to update it.");
+          return false;
+        }
+      } catch (IOException e) {
+        System.err.println("Error reading index " + dir);
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Check that the -time-partition option matches the layout of an existing index.
+   * 
+   * @return true if the index can be written with the configured partitioning.
+   */
+  private boolean checkPartitionLayout() {
+    IndexShards.TimePartitioning existing = IndexShards.partitioning(indexDir);
+    if (existing != null && existing != timePartitioning) {
+      System.err.println("The index " + indexDir + " is partitioned by time; "
+                         + "use -time-partition " + existing + " to update it.");
+      return false;
+    }
+    // A sharded or plain index can't take partitions
+    if (existing == null && timePartitioning != null
+        && (! IndexShards.indexDirs(indexDir).get(0).equals(indexDir)
+            || containsIndex(indexDir))) {
+      System.err.println("The index " + indexDir + " is not partitioned by time; "
+                         + "index into a new directory to make a time-partitioned index.");
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Check that the number of shards matches the layout of an existing index, and record the
+   * number of shards of a new sharded index.
+   * 
+   * The recorded number is checked rather than the shard directories, which only exist once a
+   * comment was written to them.
+   * 
+   * @return true if the index can be written with the configured number of shards.
+   */
+  private boolean checkShardLayout() {
+    if (timePartitioning != null) return true; // not sharded, see checkPartitionLayout()
+    List<File> existingDirs = IndexShards.indexDirs(indexDir);
+    int existingShards;
     try {
-      index = FSDirectory.open(indexDir.toPath());
+      existingShards = IndexShards.readNumShards(indexDir);
     } catch (IOException e) {
-      System.err.println("Error opening index directory " + indexDir);
-      e.printStackTrace();
+      System.err.println("Error reading the number of shards of the index " + indexDir + ".");
+      return false;
     }
-
-    analyzer = new StandardAnalyzer();
-    config = new IndexWriterConfig(analyzer);
-    config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND); // Append to existing index
+    boolean isSharded = existingShards > 0 || ! existingDirs.get(0).equals(indexDir);
+    if (existingShards > 0 && existingShards != numShards) {
+      System.err.println("The index " + indexDir + " has " + existingShards + " shards; "
+                         + "use the same number of shards (-shards " + existingShards 
+                         + ") to update it.");
+      return false;
+    }
+    if (existingShards == 0 && isSharded) {
+      // Sharded before the number was recorded: only the shards written so far are known
+      int minShards = IndexShards.shardNumber(existingDirs.get(existingDirs.size() - 1)) + 1;
+      if (numShards < Math.max(minShards, 2)) {
+        System.err.println("The index " + indexDir + " has at least " + Math.max(minShards, 2) 
+                           + " shards; use the number of shards it was made with (-shards) "
+                           + "to update it.");
+        return false;
+      }
+    }
+    if (! isSharded && numShards > 1 && containsIndex(indexDir)) {
+      System.err.println("The index " + indexDir + " is not sharded; "
+                         + "index into a new directory to make a sharded index.");
+      return false;
+    }
+    if (numShards > 1 && existingShards == 0) {
+      try {
+        IndexShards.writeNumShards(indexDir, numShards);
+      } catch (IOException e) {
+        System.err.println("Error recording the number of shards of the index " + indexDir + ".");
+        return false;
+      }
+    }
+    return true;
   }
   
   /**
@@ -629,89 +1314,37 @@ public class YoutubeIndexer {
    * for each downloaded top-level comment and reply comment, parse their content as well as
    * other attributes and add/update to the index.
    * 
+   * A channel crawled with several threads or a checkpoint file is crawled by partitions instead
+   * (see crawlChannelByVideo()).
+   * 
    * @param scope type of the scope
    * @param scopeId ID of scope (e.g. VideoId for VIDEO scope, ChannelId for CHANNEL scope)
    */
   public void buildCommentIndex(Scope scope, String scopeId) {
     initialize();
+    if (! checkPartitionLayout() || ! checkShardLayout() || ! checkBlockLayout() 
+        || ! checkIndexSort()) {
+      return;
+    }
     
-    // Make a hash map cache for video information
-    Map<String, Video> videoCache = new HashMap<String, Video>();
-    
-    // Record number of retry times on network error
-    int numRetry = 0;
+    final long indexingStartTime = System.nanoTime();
+    final long initialDocCount = docCounter.getCount();
+    List<File> writtenDirs;
     
-    // Main indexer loop
-    try (IndexWriter indexWriter = new IndexWriter(index, config)) {
-      int pageNum = 1;
-      String topLevelPageToken = null;
-      do {
-        // Loop top-level pages
-        if (numRetry == 0) {
-          System.out.print("Indexing top-level page " + pageNum + "...");
-        }
-        
-        CommentsPage topLevelPage = downloadTopLevelCommentsPage(scope, scopeId, topLevelPageToken);
-        
-        // Handling network error (retry up to a certain times).
-        if (topLevelPage == null) {
-          if (numRetry == 0) {
-            System.err.println("\nPage request failed. Please check that the ID is valid "
-                               + "(if the problem persists, please contact me).");
-            System.err.print("  Number of retries: 0");
-          }
-          if (numRetry == MAX_NETWORK_ERROR_RETRY) {
-            System.err.println("\nReached max retry times. Terminating.");
-            return;
-          }
-          ++numRetry;
-          System.err.print("\b" + numRetry);
-          try {
-            TimeUnit.SECONDS.sleep(1);
-          } catch (InterruptedException e) {
-            continue;
-          }
-          continue;
-        }
-        // If the program successfully moved pass this point, it means error is resolved.
-        if (numRetry != 0) {
-          System.err.print("\n");
-          numRetry = 0; // Reset number of retries 
-        }
-        
-        JsonArray topLevelComments = topLevelPage.getComments();
-        for (int i = 0; i < topLevelComments.size(); ++i) {
-          // Loop comment threads (top-level comments)
-          
-          System.out.printf("%2d%%", (int)((float) i / (topLevelComments.size()) * 100));
-          Comment comment = Comment.parseTopLevelComment(topLevelComments.get(i).getAsJsonObject());
-          String videoId = comment.getVideoId();
-          Video videoInfo = getVideoInfo(videoId, videoCache); 
-          addDoc(indexWriter, comment, videoInfo);
-          String parentId = comment.getCommentId();
-          
-          if (comment.getReplyCount() > 0) {
-            String replyPageToken = null;
-            do {
-              // Loop reply pages
-              CommentsPage replyPage = downloadReplyCommentsPage(parentId, replyPageToken);
-              JsonArray replyComments = replyPage.getComments();
-              for (int j = 0; j < replyComments.size(); ++j) {
-                // Loop replies
-                comment = Comment.parseReplyComment(replyComments.get(j).getAsJsonObject());
-                comment.setVideoId(videoId);
-                addDoc(indexWriter, comment, videoInfo);
-              } // END FOR (loop replies)
-              replyPageToken = replyPage.getNextPageToken();
-            } while (replyPageToken != null);
-          }
-          System.out.print("\b\b\b");
-        } // END FOR (loop comment threads)
-        topLevelPageToken = topLevelPage.getNextPageToken();
-        ++pageNum;
-        System.out.println("DONE");
-      } while (topLevelPageToken != null || numRetry != 0);
-      
+    try (ShardWriters writers = new ShardWriters();
+         DeadLetterLog deadLetterLog = new DeadLetterLog(deadLetterFile)) {
+      indexWriters = writers;
+      deadLetters = deadLetterLog;
+      if (scope == Scope.CHANNEL && (numThreads > 1 || checkpointFile != null)) {
+        if (! crawlChannelByVideo(scopeId)) return;
+      } else {
+        if (crawlThreads(scope, scopeId, false) < 0) return;
+      }
+      if (freezeAfterMonths != null) {
+        writers.freezePartitions(ZonedDateTime.now(ZoneOffset.UTC).minusMonths(freezeAfterMonths)
+                                              .toInstant().toEpochMilli());
+      }
+      writtenDirs = writers.writtenDirs();
     } catch (LockObtainFailedException e) {
       System.err.println("The index you are writing to is currently busy "
                          + "(i.e. the write lock is being held by another indexer thread). \n"
@@ -724,9 +1357,385 @@ public class YoutubeIndexer {
     } catch (IOException e) {
       System.err.println("Error making index.");
       return;
+    } finally {
+      indexWriters = null;
+      deadLetters = null;
     }
     
+    if (updateSimilarComments) updateSimilarComments(writtenDirs);
     System.out.println("Indexing all finished.");
+    reportMetrics(indexingStartTime, docCounter.getCount() - initialDocCount);
+  }
+  
+  /**
+   * Add the comments missing from the similarity graphs of the sub-indexes written by the run
+   * (see SimilarComments), from their last commit. The graphs of other sub-indexes are left to
+   * the indexers writing to them.
+   * 
+   * @param writtenDirs The directories of the sub-indexes written by the run.
+   */
+  private void updateSimilarComments(List<File> writtenDirs) {
+    for (File dir : writtenDirs) {
+      if (! containsIndex(dir)) continue;
+      long startTime = System.nanoTime();
+      try {
+        int numAdded = SimilarComments.update(dir);
+        Metrics.counter("indexer.similarComments").add(numAdded);
+        System.out.printf("Added %d comments to the similarity graph of %s in %.1f s%n", 
+                          numAdded, dir, (System.nanoTime() - startTime) / 1e9);
+      } catch (LockObtainFailedException e) {
+        System.err.println("The similarity graph of " + dir + " is being updated by another "
+                           + "indexer; its new comments are added by the next run with -similar.");
+      } catch (IOException e) {
+        System.err.println("Error updating the similarity graph of " + dir);
+        e.printStackTrace();
+      }
+    }
+  }
+  
+  /**
+   * Crawl the comment threads of a scope page by page (one chain of page tokens) into the index.
+   * 
+   * @param scope type of the scope
+   * @param scopeId ID of scope
+   * @param partition Whether the scope is one partition of a parallel channel crawl: the 
+   *                  progress is not printed page by page, and a scope the API refuses (e.g. 
+   *                  when the quota is exceeded) is given up at once instead of retried.
+   * @return The number of comments indexed (0 for a video with comments disabled), or -1 if 
+   *         the crawl was given up.
+   * @throws IOException Error writing the index.
+   */
+  private long crawlThreads(Scope scope, String scopeId, boolean partition) throws IOException {
+    // Record number of retry times on network error
+    int numRetry = 0;
+    long numDocs = 0;
+    
+    int pageNum = 1;
+    String topLevelPageToken = null;
+    do {
+      // Loop top-level pages
+      if (numRetry == 0 && ! partition) {
+        System.out.print("Indexing top-level page " + pageNum + "...");
+      }
+      
+      Metrics.Request pageTimings = new Metrics.Request("indexer.page");
+      long startTime = System.nanoTime();
+      CommentsPage topLevelPage;
+      try {
+        topLevelPage = downloadTopLevelCommentsPage(scope, scopeId, topLevelPageToken);
+      } catch (ApiException e) {
+        if ("commentsDisabled".equals(e.getReason())) {
+          // Nothing to crawl: the scope is done, not failed
+          System.err.println("\nComments of " + scopeId + " are disabled.");
+          return numDocs;
+        }
+        if (partition && e.getStatusCode() == 403) {
+          System.err.println("\nComments of " + scopeId + " are not available" 
+                             + (e.getReason() != null ? " (" + e.getReason() + ")" : "") 
+                             + ".");
+          return -1;
+        }
+        topLevelPage = null;
+      } catch (IOException e) {
+        topLevelPage = null;
+      }
+      pageTimings.phase("download", startTime);
+      
+      // Handling network error (retry up to a certain times).
+      if (topLevelPage == null) {
+        if (numRetry == 0 && ! partition) {
+          System.err.println("\nPage request failed. Please check that the ID is valid "
+                             + "(if the problem persists, please contact me).");
+          System.err.print("  Number of retries: 0");
+        }
+        if (numRetry == MAX_NETWORK_ERROR_RETRY) {
+          System.err.println(partition ? "\nReached max retry times on " + scopeId + "." 
+                                       : "\nReached max retry times. Terminating.");
+          return -1;
+        }
+        ++numRetry;
+        Metrics.counter("indexer.retries").increment();
+        if (! partition) System.err.print("\b" + numRetry);
+        try {
+          TimeUnit.SECONDS.sleep(1);
+        } catch (InterruptedException e) {
+          continue;
+        }
+        continue;
+      }
+      // If the program successfully moved pass this point, it means error is resolved.
+      if (numRetry != 0) {
+        if (! partition) System.err.print("\n");
+        numRetry = 0; // Reset number of retries 
+      }
+      
+      JsonArray topLevelComments = topLevelPage.getComments();
+      for (int i = 0; i < topLevelComments.size(); ++i) {
+        // Loop comment threads (top-level comments)
+        
+        if (! partition) {
+          System.out.printf("%2d%%", (int)((float) i / (topLevelComments.size()) * 100));
+        }
+        startTime = System.nanoTime();
+        JsonElement threadJson = topLevelComments.get(i);
+        Comment comment;
+        try {
+          comment = Comment.parseTopLevelComment(threadJson.getAsJsonObject());
+        } catch (JsonParseException | IllegalStateException e) {
+          // Skip the whole thread; its record leads to the replies when it is re-ingested
+          deadLetters.add("topLevelComment", threadJson, e);
+          pageTimings.phase("parse", startTime);
+          if (! partition) System.out.print("\b\b\b");
+          continue;
+        }
+        pageTimings.phase("parse", startTime);
+        String videoId = comment.getVideoId();
+        startTime = System.nanoTime();
+        Video videoInfo = getVideoInfo(videoId, videoCache); 
+        pageTimings.phase("videoInfo", startTime);
+        // Route the thread to the shard of its channel, taken from the thread itself so that it
+        // doesn't depend on the download of the video info
+        String routingKey = routingKey(comment, videoInfo, scopeId);
+        startTime = System.nanoTime();
+        Document threadDoc = makeDoc(comment, videoInfo, compact);
+        List<Document> replyDocs = new ArrayList<Document>();
+        if (addComment(routingKey, comment, videoInfo, threadDoc)) {
+          docCounter.increment();
+          ++numDocs;
+        }
+        pageTimings.phase("addDoc", startTime);
+        String parentId = comment.getCommentId();
+        long threadTime = comment.getPublishTimeMillis();
+        
+        // Small threads come with all their replies inline; only bigger ones need the
+        // reply pages
+        JsonArray replyComments = inlineReplies(threadJson.getAsJsonObject());
+        if (comment.getReplyCount() > replyComments.size()) {
+          startTime = System.nanoTime();
+          JsonArray allReplies = downloadAllReplies(parentId);
+          pageTimings.phase("downloadReplies", startTime);
+          if (allReplies != null) {
+            replyComments = allReplies;
+          } else {
+            System.err.println("\nFailed to download the replies of comment " + parentId 
+                               + "; indexing its first " + replyComments.size() + " only.");
+          }
+        } else if (replyComments.size() > 0) {
+          Metrics.counter("indexer.inlineReplyThreads").increment();
+        }
+        for (int j = 0; j < replyComments.size(); ++j) {
+          // Loop replies
+          startTime = System.nanoTime();
+          try {
+            comment = Comment.parseReplyComment(replyComments.get(j).getAsJsonObject());
+          } catch (JsonParseException | IllegalStateException e) {
+            deadLetters.add("replyComment", replyComments.get(j), e);
+            pageTimings.phase("parse", startTime);
+            continue;
+          }
+          comment.setVideoId(videoId);
+          pageTimings.phase("parse", startTime);
+          startTime = System.nanoTime();
+          Document replyDoc = makeDoc(comment, videoInfo, compact);
+          if (addComment(routingKey, comment, videoInfo, replyDoc)) {
+            if (indexThreadBlocks) replyDocs.add(replyDoc);
+            docCounter.increment();
+            ++numDocs;
+          }
+          pageTimings.phase("addDoc", startTime);
+        } // END FOR (loop replies)
+        if (indexThreadBlocks) {
+          // Write the whole thread at once, so it stays one contiguous block
+          startTime = System.nanoTime();
+          ThreadBlocks.addThread(indexWriters.get(routingKey, threadTime), threadDoc, replyDocs);
+          pageTimings.phase("addDoc", startTime);
+        }
+        if (! partition) {
+          System.out.print("\b\b\b");
+        }
+      } // END FOR (loop comment threads)
+      topLevelPageToken = topLevelPage.getNextPageToken();
+      pageTimings.attribute("scope", scopeId);
+      pageTimings.attribute("page", pageNum);
+      pageTimings.attribute("threads", topLevelComments.size());
+      pageTimings.attribute("docs", numDocs);
+      pageTimings.finish(metricsLogFile);
+      ++pageNum;
+      if (! partition) {
+        System.out.println("DONE");
+      }
+    } while (topLevelPageToken != null || numRetry != 0);
+    
+    return numDocs;
+  }
+  
+  /**
+   * Get the routing key of a comment thread: the channel ID of its snippet, or of its video for
+   * records without one, or as a last resort the scope ID.
+   */
+  private static String routingKey(Comment topLevelComment, Video videoInfo, String scopeId) {
+    if (! topLevelComment.getChannelId().isEmpty()) return topLevelComment.getChannelId();
+    if (! videoInfo.getChannelId().isEmpty()) return videoInfo.getChannelId();
+    return scopeId;
+  }
+  
+  /**
+   * Add the document of a comment to its sub-index (with its near-duplicate cluster ID, and the
+   * shingles of its text if enabled), and its video and user to the metadata of a compact index.
+   * With -blocks only the metadata is added: the documents of a thread are added together, as a
+   * block.
+   * 
+   * @param routingKey The routing key of shards (the channel ID).
+   * @param comment The comment.
+   * @param videoInfo The video of the comment.
+   * @param doc The document of the comment.
+   * @return false if the comment was skipped because its time partition is frozen.
+   * @throws IOException Error writing the index.
+   */
+  private boolean addComment(String routingKey, Comment comment, Video videoInfo, Document doc) 
+                                                                       throws IOException {
+    if (indexShingles) PhraseShingles.addField(doc);
+    long publishTime = comment.getPublishTimeMillis();
+    IndexWriter indexWriter = indexWriters.get(routingKey, publishTime);
+    if (indexWriter == null) {
+      Metrics.counter("indexer.frozenSkipped").increment();
+      return false;
+    }
+    // Only comments actually indexed can head a cluster, or it couldn't be found
+    if (nearDuplicates.addClusterId(doc)) duplicateCounter.increment();
+    if (compact) {
+      MetadataStore.Updater metadata = indexWriters.metadata(routingKey, publishTime);
+      metadata.addVideo(comment.getVideoId(), videoInfo);
+      metadata.addUser(comment);
+    }
+    if (! indexThreadBlocks) addDoc(indexWriter, doc);
+    return true;
+  }
+  
+  /**
+   * Crawl a channel by partitions: the comment threads of every video of the channel (from its
+   * uploads playlist), and those of the channel itself (its discussion, comments without a
+   * video), are crawled as separate page token chains, numThreads partitions at a time.
+   * 
+   * Partitions already recorded in the checkpoint file are skipped, and every completed partition
+   * is recorded in it (after a commit of the index) as the crawl goes. The checkpoint is deleted
+   * when all partitions are done; partitions that failed are crawled again by the next run with 
+   * the same checkpoint.
+   * 
+   * @param channelId The channel ID.
+   * @return false if the videos of the channel could not be listed.
+   * @throws IOException Error writing the index or the checkpoint.
+   */
+  private boolean crawlChannelByVideo(final String channelId) throws IOException {
+    List<String> videoIds = downloadChannelVideoIds(channelId);
+    if (videoIds == null) {
+      System.err.println("Failed to list the videos of channel " + channelId + ".");
+      return false;
+    }
+    final CrawlCheckpoint checkpoint = CrawlCheckpoint.load(checkpointFile, channelId);
+    
+    // The discussion of the channel first, then its videos
+    final Map<String, Scope> partitions = new LinkedHashMap<String, Scope>();
+    partitions.put(channelId, Scope.DISCUSSION);
+    for (String videoId : videoIds) {
+      partitions.put(videoId, Scope.VIDEO);
+    }
+    final int numPartitions = partitions.size();
+    System.out.println("Crawling " + videoIds.size() + " videos and the discussion of channel "
+                       + channelId + " with " + numThreads + " threads" 
+                       + (checkpoint.numDone() > 0 
+                          ? " (" + checkpoint.numDone() + " done by earlier runs)" : "") + ".");
+    
+    final AtomicInteger numFinished = new AtomicInteger(checkpoint.numDone());
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    for (final Map.Entry<String, Scope> partition : partitions.entrySet()) {
+      if (checkpoint.isDone(partition.getKey())) continue;
+      results.add(executor.submit(new Callable<Long>() {
+        @Override
+        public Long call() throws IOException {
+          long numDocs = crawlThreads(partition.getValue(), partition.getKey(), true);
+          if (numDocs >= 0) {
+            checkpoint.completed(partition.getKey());
+            if (checkpoint.isDue()) saveCheckpoint(checkpoint);
+          }
+          System.out.printf("[%d/%d] %s %s: %s%n", numFinished.incrementAndGet(), numPartitions, 
+                            partition.getValue() == Scope.VIDEO ? "video" : "discussion of", 
+                            partition.getKey(), 
+                            numDocs >= 0 ? numDocs + " comments" : "FAILED");
+          return numDocs;
+        }
+      }));
+    }
+    executor.shutdown();
+    
+    int numFailed = 0;
+    try {
+      for (Future<Long> result : results) {
+        if (result.get() < 0) ++numFailed;
+      }
+    } catch (InterruptedException | ExecutionException e) {
+      // Stop the other partitions before the writers are closed
+      executor.shutdownNow();
+      try {
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+      if (e instanceof ExecutionException && e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Channel crawl interrupted", e);
+    }
+    
+    saveCheckpoint(checkpoint);
+    if (numFailed == 0) {
+      checkpoint.delete();
+    } else {
+      System.err.println(numFailed + " of " + numPartitions + " partitions failed" 
+                         + (checkpointFile != null 
+                            ? "; run again with the same checkpoint to retry them." : "."));
+    }
+    return true;
+  }
+  
+  /**
+   * Commit the index and record the partitions completed before the commit in the checkpoint.
+   */
+  private synchronized void saveCheckpoint(CrawlCheckpoint checkpoint) throws IOException {
+    List<String> completed = checkpoint.takeCompleted();
+    indexWriters.commit();
+    checkpoint.save(completed);
+  }
+  
+  private void reportMetrics(long indexingStartTime, long numDocs) {
+    double seconds = (System.nanoTime() - indexingStartTime) / 1e9;
+    Metrics.Timer httpTimer = Metrics.timer("indexer.http");
+    System.out.printf("Indexed %d comments (%d near-duplicates) in %.1f s (%.1f docs/s); "
+                      + "%d requests (mean %.1f ms, %d bytes, %d retries)%n",
+                      numDocs, Metrics.counter("indexer.nearDuplicates").getCount(), 
+                      seconds, numDocs / seconds, 
+                      httpTimer.getCount(), httpTimer.getMeanMillis(),
+                      Metrics.counter("indexer.httpBytes").getCount(),
+                      Metrics.counter("indexer.retries").getCount());
+    long numDeadLetters = Metrics.counter("indexer.deadLetters").getCount()
+                          + Metrics.counter("indexer.deadLettersDropped").getCount();
+    long numFrozenSkipped = Metrics.counter("indexer.frozenSkipped").getCount();
+    if (numFrozenSkipped > 0) {
+      System.out.println("Skipped " + numFrozenSkipped + " comments of frozen partitions.");
+    }
+    if (numDeadLetters > 0) {
+      System.out.println("Skipped " + numDeadLetters + " malformed records (logged to " 
+                         + deadLetterFile + ").");
+    }
+    if (metricsLogFile != null) {
+      JsonObject entry = Metrics.snapshot();
+      entry.addProperty("time", System.currentTimeMillis());
+      entry.addProperty("component", "indexer");
+      entry.addProperty("docs", numDocs);
+      entry.addProperty("docsPerSecond", numDocs / seconds);
+      Metrics.log(metricsLogFile, entry);
+    }
   }
   
   public static void main(String[] args) {
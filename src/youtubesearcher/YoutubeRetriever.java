@@ -1,35 +1,70 @@
 package youtubesearcher;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.LongPoint;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.EarlyTerminatingSortingCollector;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermInSetQuery;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.grouping.GroupDocs;
+import org.apache.lucene.search.grouping.GroupingSearch;
+import org.apache.lucene.search.grouping.TopGroups;
 import org.apache.lucene.search.highlight.Formatter;
 import org.apache.lucene.search.highlight.Highlighter;
 import org.apache.lucene.search.highlight.InvalidTokenOffsetsException;
 import org.apache.lucene.search.highlight.QueryScorer;
+import org.apache.lucene.search.highlight.SimpleHTMLEncoder;
 import org.apache.lucene.search.highlight.SimpleHTMLFormatter;
 import org.apache.lucene.search.highlight.SimpleSpanFragmenter;
+import org.apache.lucene.search.highlight.WeightedSpanTerm;
+import org.apache.lucene.search.highlight.WeightedSpanTermExtractor;
 import org.apache.lucene.search.spell.SpellChecker;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
 
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
@@ -47,8 +82,9 @@ public class YoutubeRetriever {
   /*
    * command-line arguments for the entry point
    */
-  @Option(name = "-index", aliases = "-i", required = true, 
-          usage = "Path to the directory of the index files to be searched. Required option.")
+  @Option(name = "-index", aliases = "-i", forbids = {"-nodes"},
+          usage = "Path to the directory of the index files to be searched. "
+                  + "Required option unless searching remote nodes (-nodes).")
   private File indexDir;
 
   @Option(name = "-query", aliases = "-q", 
@@ -56,6 +92,22 @@ public class YoutubeRetriever {
                   + "Can be ommited, e.g. to search for all comments from a user.")
   private String commentQueryString;
   
+  @Option(name = "-reply-query", aliases = "-rq",
+          usage = "Only find threads (top-level comments) with a reply matching this query. "
+                  + "Needs an index of thread blocks (indexer option -blocks).")
+  private String replyQueryString;
+  
+  @Option(name = "-thread", aliases = "-t", forbids = {"-nodes"},
+          usage = "Output the whole thread of the comment with this ID instead of searching.")
+  private String threadCommentId;
+
+  @Option(name = "-similar-to", aliases = "-st",
+          forbids = {"-nodes", "-thread", "-sort", "-group-by", "-collapse-duplicates"},
+          usage = "Output the comments most similar to the comment with this ID (from the "
+                  + "similarity graph built by indexer option -similar) instead of searching. "
+                  + "The query and filters select among the most similar comments.")
+  private String similarCommentId;
+
   @Option(name = "-username", aliases = "-un",
       usage = "Usernames to filter the search result. Double quote a username for exact match.")
   private String userNameString;
@@ -80,6 +132,16 @@ public class YoutubeRetriever {
       usage = "A list of channel IDs to filter the search result. Separated by space.")
   private String channelIdString;
   
+  @Option(name = "-from",
+      usage = "Only find comments published on or after this day (YYYY-MM-DD, UTC). The older "
+              + "partitions of a time-partitioned index are not searched.")
+  private String fromDate;
+  
+  @Option(name = "-to",
+      usage = "Only find comments published on or before this day (YYYY-MM-DD, UTC). The newer "
+              + "partitions of a time-partitioned index are not searched.")
+  private String toDate;
+  
   @Option(name = "-page", aliases = "-p",
       usage = "Page number of the search results to output.")
   private int page = 1; 
@@ -88,6 +150,28 @@ public class YoutubeRetriever {
       usage = "Maximum number of search results to output for each page.")
   private int hitsPerPage = 10; 
   
+  @Option(name = "-sort", aliases = "-s",
+      forbids = {"-nodes", "-group-by", "-collapse-duplicates"},
+      usage = "Order of the hits: RELEVANCE (default), RECENT (newest first) or LIKES (most liked "
+              + "first). A time-partitioned index is searched newest partition first, until the "
+              + "page is filled. An index sorted in that order (indexer option -index-sort) is "
+              + "searched only up to the page in every segment.")
+  private SortOrder sortOrder = SortOrder.RELEVANCE;
+  
+  @Option(name = "-collapse-duplicates", aliases = "-cd",
+      usage = "Show only the best hit of every cluster of near-duplicate comments (copy-pasted "
+              + "and bot comments clustered by the indexer).")
+  private boolean collapseDuplicates = false;
+  
+  @Option(name = "-group-by", aliases = "-g", forbids = {"-nodes", "-collapse-duplicates"},
+      usage = "Group the hits by VIDEO or THREAD: a page shows the top groups (-max of them), "
+              + "each with its best hits (-group-hits).")
+  private GroupBy groupBy;
+  
+  @Option(name = "-group-hits", aliases = "-gh", depends = {"-group-by"},
+      usage = "Number of hits shown for each group.")
+  private int hitsPerGroup = 3;
+  
   @Option(name = "-webpage-URL", aliases = "-w",
       usage = "URL of the search engine webpage; needed to correctly render links")
   private String webpageUrl; 
@@ -97,6 +181,55 @@ public class YoutubeRetriever {
               + "If not provided this feature will be disabled.")
 private File dictionaryPath;
   
+  @Option(name = "-format", aliases = "-f",
+      usage = "Output format of the search results: HTML (default) or JSON.")
+  private ResultRenderer.Format outputFormat = ResultRenderer.Format.HTML;
+  
+  @Option(name = "-parallel", aliases = "-par",
+      usage = "Search the segments of the index in parallel, on a thread pool shared by all "
+              + "searches of the process. Speeds up expensive queries on multi-core hosts.")
+  private boolean parallel = false;
+  
+  @Option(name = "-directory", aliases = "-dir",
+      usage = "How the index files are accessed: AUTO (default), MMAP, NIO or PRELOAD "
+              + "(memory-mapped and loaded into memory when opened).")
+  private IndexShards.DirectoryMode directoryMode = IndexShards.DirectoryMode.AUTO;
+  
+  @Option(name = "-nodes", aliases = "-n", forbids = {"-index"},
+      usage = "Search remote nodes (see SearchNode) instead of a local index. Shard groups are "
+              + "separated by commas, the replicas of a group by '|', "
+              + "e.g. \"h1:8080|h2:8080,h3:8080\".")
+  private String nodeList;
+  
+  @Option(name = "-node-timeout", aliases = "-nt",
+      usage = "Time to wait for the remote nodes, in milliseconds. Nodes that don't answer in time "
+              + "are left out of the (partial) results.")
+  private int nodeTimeoutMillis = 2000;
+
+  @Option(name = "-time-budget", aliases = "-tb",
+      usage = "Time budget of a search, in milliseconds (0 for none). When it runs out, the hits "
+              + "found so far are returned as partial results.")
+  private int timeBudgetMillis = 0;
+
+  @Option(name = "-max-depth", aliases = "-md",
+      usage = "Deepest result reachable by pagination (page * -max), 0 (default) for no limit. "
+              + "Deeper pages show the last reachable page instead, as every page before them "
+              + "has to be collected.")
+  private int maxDepth = 0;
+
+  @Option(name = "-max-terms", aliases = "-mt",
+      usage = "Maximum number of terms a wildcard, prefix or fuzzy pattern may match. Broader "
+              + "patterns are rejected.")
+  private int maxTerms = 10000;
+
+  @Option(name = "-query-log", aliases = "-ql",
+      usage = "Append every received query to this log file (for replaying with SearchLoadTester).")
+  private File queryLogFile;
+  
+  @Option(name = "-metrics-log", aliases = "-ml",
+      usage = "Append the per-phase timings of every search to this log file (as JSON lines).")
+  private File metricsLogFile;
+  
   @Option(name = "-help", aliases = "-h", help = true,
           usage = "Print help text.")
   private boolean printHelp = false;
@@ -105,371 +238,1087 @@ private File dictionaryPath;
    * Lucene retriever internal objects
    */
   private StandardAnalyzer analyzer; // analyzer for tokenizing text
-  private Directory index;           // the index
+  private List<Directory> indexes;   // the index (one directory per shard if sharded)
   private IndexReader reader;        // reader object
   private IndexSearcher searcher;    // searcher object
   private BooleanQuery finalQuery;   // constructed query object
   private TopDocs docs;              // search result
+  private Metrics.Request timings;   // per-phase timings of the current search
+  private SearchBudget budget;       // time budget of the current search (null if unlimited)
+  private boolean blockIndex;        // whether the index is made of thread blocks
+  private MetadataStore metadata;    // video and user metadata of a compact index (else null)
+  private MetadataStore openedMetadata; // metadata opened for this search only
+  private boolean useColumns;        // whether to read IDs and counts from the DocColumns cache
+  private TopGroups<BytesRef> groups; // grouped search result (with -group-by)
+  private long fromTime = Long.MIN_VALUE; // publish time range (-from and -to), in milliseconds
+  private long toTime = Long.MAX_VALUE;
+  private boolean partitioned;       // whether the index is partitioned by time
+  private List<File> indexDirs;      // the sub-index directories of indexes
+  private List<File> unsearchedDirs = new ArrayList<File>(); // partitions left out of the search
+  private IndexSearcher unsearchedSearcher; // over unsearchedDirs, opened to look up parents
+  private boolean prunedRecentPartitions = false; // older partitions left out of a RECENT search
+  private List<Directory> unsearchedIndexes;
+  
+  /**
+   * Orders of the hits.
+   */
+  enum SortOrder {
+    RELEVANCE(null),
+    RECENT(new Sort(new SortField("publishTime", SortField.Type.LONG, true))),
+    LIKES(new Sort(new SortField("likeCount", SortField.Type.LONG, true), 
+                   new SortField("publishTime", SortField.Type.LONG, true)));
+    
+    final Sort sort; // null for the order of the scores
+    
+    SortOrder(Sort sort) {
+      this.sort = sort;
+    }
+  }
+  
+  /**
+   * Keys the hits can be grouped by.
+   */
+  enum GroupBy {
+    VIDEO("videoId"),   // the video of the comment
+    THREAD("threadKey"); // the top-level comment of the thread (the comment itself if top-level)
+    
+    final String field; // sorted doc values field holding the group key of every comment
+    
+    GroupBy(String field) {
+      this.field = field;
+    }
+  }
+  
+  private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+  
   /*
-   * URL Encoded user inputs for potentially secondary HTTP calls (clicking on links).
-   * Used in re-search links, i.e. pagination links and the suggestion link
+   * Memory for the hits cached by the first pass of a grouping search and replayed to the second
+   * pass, instead of running the query twice. Larger results run the query again.
    */
-  private String commentQueryString_urlEncoded;
-  private String userNameString_urlEncoded;
-  private String videoTitleString_urlEncoded;
-  private String channelTitleString_urlEncoded;
+  private static final double GROUPING_CACHE_MB = 16.0;
   
-  private void initialize() {
+  /*
+   * Similar comments looked up per requested one when the query or filters may reject some
+   */
+  private static final int SIMILAR_FILTER_FACTOR = 10;
+  
+  void initialize() {
     try {
       // Open a File-System-Index-Directory for use 
       // (i.e. an index on disk, as opposed to one in memory).
-      // FSDirectory.open() chooses the best FSDirectory implementation automatically 
+      // By default FSDirectory.open() chooses the best FSDirectory implementation automatically 
       // given the environment and the known limitations of each implementation.
-      index = FSDirectory.open(indexDir.toPath());
+      // A sharded index has one directory per shard.
+      // A time-partitioned index only opens the partitions of the requested time range (a
+      // whole thread is shown from all of them).
+      partitioned = IndexShards.partitioning(indexDir) != null;
+      indexDirs = partitioned && threadCommentId == null 
+                  ? IndexShards.partitionDirs(indexDir, fromTime, toTime)
+                  : IndexShards.indexDirs(indexDir);
+      if (partitioned) {
+        unsearchedDirs = new ArrayList<File>(IndexShards.partitionDirs(indexDir));
+        unsearchedDirs.removeAll(indexDirs);
+      }
+      indexes = IndexShards.openDirectories(indexDirs, directoryMode);
     } catch (IOException e) {
       System.err.println("Error opening index directory" + indexDir);
       e.printStackTrace();
     }
     
     analyzer = new StandardAnalyzer();
-    
-    urlEncodeUserInputs();
   }
   
   /**
    * Build the final Query object.
    * 
+   * Only the comment query takes part in scoring. All the other inputs are structured filters and
+   * are added as non-scoring FILTER clauses, which lets the query cache keep their matching
+   * documents as bitsets and reuse them across queries.
+   * 
    * @return The final combined Query object (a BooleanQuery object).
    * @throws ParseException Exception in parsing query.
    */
-  private BooleanQuery buildQuery() throws ParseException {
+  BooleanQuery buildQuery() throws ParseException {
     BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
     
     // Comment query
     if (commentQueryString != null && ! commentQueryString.isEmpty()) {
-      Query commentQuery = new QueryParser("commentText", analyzer).parse(commentQueryString);
+      // Phrases are looked up in the shingles of the text when the index has them
+      Query commentQuery = parse(new PhraseShingles.Parser(analyzer), commentQueryString);
       booleanQueryBuilder.add(commentQuery, Occur.MUST);
     }
-    // Username query
+    // Reply query (threads with a matching reply)
+    if (replyQueryString != null && ! replyQueryString.isEmpty()) {
+      Query replyQuery = parse(new PhraseShingles.Parser(analyzer), replyQueryString);
+      booleanQueryBuilder.add(ThreadBlocks.threadsWithReply(replyQuery), Occur.MUST);
+    }
+    // Username filter (prefix and infix patterns are looked up in the n-gram sub-fields)
     if (userNameString != null && ! userNameString.isEmpty()) {
-      Query userNameQuery = new QueryParser("userName", analyzer).parse(userNameString);
-      booleanQueryBuilder.add(userNameQuery, Occur.MUST);
+      Query userNameQuery = parse(new PartialMatch.Parser("userName", analyzer), 
+                                  userNameString);
+      booleanQueryBuilder.add(userNameQuery, Occur.FILTER);
     }
-    // User Id query
+    // User Id filter
     if (userIdString != null && ! userIdString.isEmpty()) {
-      Query userIdQuery = new QueryParser("userId", analyzer).parse(userIdString);
-      booleanQueryBuilder.add(userIdQuery, Occur.MUST);
+      booleanQueryBuilder.add(buildIdFilter("userId", userIdString), Occur.FILTER);
     }
-    // Video title query
+    // Video title filter
     if (videoTitleString != null && ! videoTitleString.isEmpty()) {
-      Query videoTitleQuery = new QueryParser("videoTitle", analyzer).parse(videoTitleString);
-      booleanQueryBuilder.add(videoTitleQuery, Occur.MUST);
+      Query videoTitleQuery = parse(new PartialMatch.Parser("videoTitle", analyzer), 
+                                    videoTitleString);
+      booleanQueryBuilder.add(videoTitleQuery, Occur.FILTER);
     }
-    // Video Id query
+    // Video Id filter
     if (videoIdString != null && ! videoIdString.isEmpty()) {
-      Query videoIdQuery = new QueryParser("videoId", analyzer).parse(videoIdString);
-      booleanQueryBuilder.add(videoIdQuery, Occur.MUST);
+      booleanQueryBuilder.add(buildIdFilter("videoId", videoIdString), Occur.FILTER);
     }
-    // Channel title query
+    // Channel title filter
     if (channelTitleString != null && ! channelTitleString.isEmpty()) {
-      Query channelTitleQuery = new QueryParser("channelTitle", analyzer).parse(channelTitleString);
-      booleanQueryBuilder.add(channelTitleQuery, Occur.MUST);
+      Query channelTitleQuery = parse(new PartialMatch.Parser("channelTitle", analyzer), 
+                                      channelTitleString);
+      booleanQueryBuilder.add(channelTitleQuery, Occur.FILTER);
     }
-    // Channel Id query
+    // Channel Id filter
     if (channelIdString != null && ! channelIdString.isEmpty()) {
-      Query channelIdQuery = new QueryParser("channelId", analyzer).parse(channelIdString);
-      booleanQueryBuilder.add(channelIdQuery, Occur.MUST);
+      booleanQueryBuilder.add(buildIdFilter("channelId", channelIdString), Occur.FILTER);
+    }
+    // Publish time filter (segments entirely out of the range are skipped by the points index)
+    if (fromTime != Long.MIN_VALUE || toTime != Long.MAX_VALUE) {
+      booleanQueryBuilder.add(LongPoint.newRangeQuery("publishTime", fromTime, toTime), 
+                              Occur.FILTER);
     }
     
     return booleanQueryBuilder.build();
   }
   
   /**
-   * Search the query string.
+   * Parse a query string, with its patterns limited to -max-terms terms when searched.
+   */
+  private Query parse(QueryParser parser, String queryString) throws ParseException {
+    parser.setMultiTermRewriteMethod(new ExpansionLimit(maxTerms));
+    return parser.parse(queryString);
+  }
+  
+  /**
+   * Build a filter matching any of a list of IDs on an exact keyword (StringField) field.
+   * 
+   * The IDs are matched as-is rather than going through the QueryParser, because the analyzer 
+   * would lowercase them (Youtube IDs are case-sensitive) and a long list would otherwise become
+   * a big disjunction of scoring term queries.
+   * 
+   * @param fieldName Name of the ID field.
+   * @param idList A list of IDs separated by space (double quotes around IDs are ignored).
+   * @return A query matching documents with any of the IDs.
+   */
+  static Query buildIdFilter(String fieldName, String idList) {
+    List<BytesRef> ids = new ArrayList<BytesRef>();
+    for (String id : idList.replace("\"", " ").trim().split("\\s+")) {
+      if (! id.isEmpty()) {
+        ids.add(new BytesRef(id));
+      }
+    }
+    return new TermInSetQuery(fieldName, ids);
+  }
+  
+  /**
+   * Search the query string and output the results to the standard output.
    * 
    * @return status code (0 for success).
    */
   private int search() {
-    initialize();
+    return search(openOutput());
+  }
+  
+  /**
+   * Search the query string.
+   * 
+   * @param output The output to render the results to (closed when done).
+   * @return status code (0 for success).
+   */
+  int search(Writer output) {
+    return search(output, null, null);
+  }
+  
+  /**
+   * Search the query string, with a searcher kept open by the caller if given.
+   * 
+   * @param output The output to render the results to (closed when done).
+   * @param residentSearcher An open searcher (e.g. from a ResidentSearcherManager, released by the
+   *                         caller), or null to open the index for this search only.
+   * @param residentMetadata The metadata of the index kept open by the caller along with the
+   *                         searcher (null if the index is not compact).
+   * @return status code (0 for success).
+   */
+  int search(Writer output, IndexSearcher residentSearcher, MetadataStore residentMetadata) {
+    if (maxDepth != 0 && (long) page * hitsPerPage > maxDepth) {
+      if (hitsPerPage > maxDepth) {
+        System.err.println("Pages of " + hitsPerPage + " results are deeper than the first " 
+                           + maxDepth + " results that can be reached (-max-depth).");
+        Metrics.counter("retriever.rejectedDepth").increment();
+        return 1;
+      }
+      // Show the last reachable page, which the pagination links lead to
+      page = maxDepth / hitsPerPage;
+      Metrics.counter("retriever.clampedDepth").increment();
+    }
+    if (nodeList != null) {
+      return searchNodes(output);
+    }
+    timings = new Metrics.Request("retriever");
+    budget = timeBudgetMillis == 0 ? null : new SearchBudget(timeBudgetMillis);
+    if (residentSearcher == null) {
+      initialize();
+    } else {
+      analyzer = new StandardAnalyzer();
+    }
+    logQuery();
     
     // Build the Query object.
+    long startTime = System.nanoTime();
     try {
       finalQuery = buildQuery();
     } catch (ParseException e) {
       System.err.println("Error parsing the query string: \"" + commentQueryString + "\"");
       e.printStackTrace();
+      Metrics.counter("retriever.parseErrors").increment();
+      close();
       return 1;
     }
+    timings.phase("parse", startTime);
 
     // Search
     try {
-      reader = DirectoryReader.open(index);
-      searcher = new IndexSearcher(reader);
-      docs = searcher.search(finalQuery, hitsPerPage);
-      ScoreDoc[] results = docs.scoreDocs;
+      startTime = System.nanoTime();
+      if (residentSearcher == null) {
+        if (partitioned && sortOrder == SortOrder.RECENT && threadCommentId == null) {
+          reader = openRecentPartitions(page * hitsPerPage);
+        } else {
+          reader = IndexShards.openReader(indexes);
+          if (partitioned) timings.attribute("partitions", indexes.size());
+        }
+        searcher = newSearcher(reader, indexes.size() > 1, parallel);
+        metadata = openedMetadata = MetadataStore.open(indexDir, directoryMode);
+      } else {
+        searcher = residentSearcher;
+        metadata = residentMetadata;
+        // Building the columns of a segment only pays off for searchers kept open
+        useColumns = true;
+      }
+      blockIndex = ThreadBlocks.isBlockIndex(searcher.getIndexReader());
+      timings.phase("open", startTime);
       
-      int numTotalHits = docs.totalHits;
-
-      if (page > 1 && (page - 1) * hitsPerPage < numTotalHits) {
-        for (int i = 0; i < page - 1; ++i) {
-          ScoreDoc lastHit = results[results.length - 1];
-          docs = searcher.searchAfter(lastHit, finalQuery, hitsPerPage);
-          results = docs.scoreDocs;
+      if (threadCommentId != null) {
+        outputThread(output);
+        return 0;
+      }
+      if (similarCommentId != null) {
+        return outputSimilar(output);
+      }
+      if (replyQueryString != null && ! replyQueryString.isEmpty() && ! blockIndex) {
+        System.err.println("The reply query (-rq) needs an index of thread blocks "
+                           + "(indexer option -blocks).");
+        return 1;
+      }
+      
+      String groupField = groupBy != null ? groupBy.field 
+                          : collapseDuplicates ? NearDuplicates.CLUSTER_ID_FIELD : null;
+      if (groupField != null && ! hasSortedDocValues(searcher.getIndexReader(), groupField)) {
+        System.err.println("Grouping by " + groupField + " (-group-by or -collapse-duplicates) "
+                           + "needs an index with the keys as doc values; reindex the comments.");
+        return 1;
+      }
+      // The results are highlighted with finalQuery itself
+      Query searchQuery = budget == null ? finalQuery : budget.wrap(finalQuery);
+      int numTotalHits;
+      boolean totalHitsLowerBound = false;
+      ScoreDoc[] results = null;
+      if (groupBy != null) {
+        groups = searchGroups(searcher, searchQuery, groupField, page, hitsPerPage, hitsPerGroup, 
+                              timings);
+        numTotalHits = groups.totalGroupCount != null ? groups.totalGroupCount : 0;
+      } else {
+        if (collapseDuplicates) {
+          docs = searchCollapsedPage(searcher, searchQuery, page, hitsPerPage, timings);
+        } else {
+          docs = searchPage(searcher, searchQuery, page, hitsPerPage, sortOrder.sort, timings);
+          // The hits of partitions left out of the search are not counted either
+          totalHitsLowerBound = prunedRecentPartitions || sortOrder.sort != null 
+              && terminatesEarly(searcher.getIndexReader(), sortOrder.sort);
         }
+        results = docs.scoreDocs;
+        numTotalHits = docs.totalHits;
+      }
+      boolean timedOut = budget != null && budget.isExceeded();
+      
+      timings.attribute("totalHits", numTotalHits);
+      timings.attribute("page", page);
+      if (timedOut) {
+        timings.attribute("timedOut", true);
+        Metrics.counter("retriever.timedOut").increment();
       }
       
+      startTime = System.nanoTime();
       String[] suggestions = null;
       if (commentQueryString != null && ! commentQueryString.isEmpty()) {
         suggestions = suggest(commentQueryString, 1);
       }
+      String suggestion = suggestions != null && suggestions.length != 0 ? suggestions[0] : null;
+      timings.phase("spellcheck", startTime);
       
-      System.out.println("<h2>Results for query <u>" 
-                         + commentQueryString + "</u>");
-      if (suggestions != null && suggestions.length != 0) {
-        System.out.println("(Or did you mean "
-                           + "<a href=\"" 
-                           + webpageUrl 
-                           + "?commentQuery=" + suggestions[0]
-                           + "&usernameQuery=" + userNameString_urlEncoded
-                           + "&userIdQuery=" + userIdString
-                           + "&videoTitleQuery=" + videoTitleString_urlEncoded
-                           + "&videoIdQuery=" + videoIdString
-                           + "&channelTitleQuery=" + channelTitleString_urlEncoded
-                           + "&channelIdQuery=" + channelIdString
-                           + "&max=" + hitsPerPage
-                           + "\">"
-                           + suggestions[0]
-                           + "</a>?)");
+      try (ResultRenderer renderer = ResultRenderer.create(outputFormat, output, 
+                                                           webpageUrl, buildLinkParameters())) {
+        startTime = System.nanoTime();
+        if (timedOut) renderer.timedOut();
+        if (totalHitsLowerBound) renderer.totalHitsLowerBound();
+        renderer.maxDepth(maxDepth);
+        renderer.beginResults(commentQueryString, suggestion, numTotalHits, page, hitsPerPage);
+        timings.phase("render", startTime);
+        if (groups != null) {
+          outputGroups(renderer, groups, page, finalQuery);
+        } else {
+          outputResults(renderer, results, 1 + (page - 1) * hitsPerPage, finalQuery);
+        }
+        startTime = System.nanoTime();
+        renderer.endResults();
+        timings.phase("render", startTime);
       }
-      System.out.println("</h2>");
-                         
-      outputPagination(numTotalHits);
-      outputResults(results, page, finalQuery);
-      outputPagination(numTotalHits);
       
+    } catch (ExpansionLimit.TooManyTermsException e) {
+      System.err.println(e.getMessage() + " Use a longer pattern (-max-terms).");
+      Metrics.counter("retriever.rejectedExpansions").increment();
+      return 1;
     } catch (IOException e) {
       System.err.println("Error opening index.");
       e.printStackTrace();
+      Metrics.counter("retriever.errors").increment();
       return 2;
+    } finally {
+      close();
+      timings.finish(metricsLogFile);
     }
     
     return 0;
   }
   
   /**
-   * Output results as an HTML snippet
+   * Search the query string on the remote nodes and merge their results.
+   * 
+   * Every shard group returns its top page * hitsPerPage hits, from which the requested page is
+   * taken after merging.
+   * 
+   * @param output The output to render the results to (closed when done).
+   * @return status code (0 for success).
+   */
+  private int searchNodes(Writer output) {
+    timings = new Metrics.Request("coordinator");
+    logQuery();
+    try {
+      long startTime = System.nanoTime();
+      SearchCoordinator coordinator = new SearchCoordinator(nodeList, nodeTimeoutMillis);
+      SearchCoordinator.Results results = coordinator.search(nodeParameters(), 
+                                                             page * hitsPerPage);
+      timings.phase("nodes", startTime);
+      timings.attribute("totalHits", results.totalHits);
+      timings.attribute("unavailableNodes", results.unavailableNodes.size());
+      if (coordinator.allUnavailable(results)) {
+        System.err.println("No search node answered.");
+        Metrics.counter("coordinator.errors").increment();
+        return 2;
+      }
+      
+      // Out-of-range pages show the first page, like local searches
+      List<SearchCoordinator.Hit> hits = results.hits;
+      int from = (page - 1) * hitsPerPage < hits.size() ? (page - 1) * hitsPerPage : 0;
+      hits = hits.subList(from, Math.min(from + hitsPerPage, hits.size()));
+      
+      startTime = System.nanoTime();
+      String[] suggestions = null;
+      if (commentQueryString != null && ! commentQueryString.isEmpty()) {
+        suggestions = suggest(commentQueryString, 1);
+      }
+      String suggestion = suggestions != null && suggestions.length != 0 ? suggestions[0] : null;
+      timings.phase("spellcheck", startTime);
+      
+      startTime = System.nanoTime();
+      try (ResultRenderer renderer = ResultRenderer.create(outputFormat, output, 
+                                                           webpageUrl, buildLinkParameters())) {
+        renderer.partialResults(results.unavailableNodes);
+        if (results.timedOut) renderer.timedOut();
+        renderer.maxDepth(maxDepth);
+        renderer.beginResults(commentQueryString, suggestion, results.totalHits, 
+                              page, hitsPerPage);
+        for (int i = 0; i < hits.size(); ++i) {
+          SearchCoordinator.Hit hit = hits.get(i);
+          renderer.result(i + 1 + (page - 1) * hitsPerPage, hit.score, 
+                          hit.doc, hit.highlightedText, hit.parentDoc);
+        }
+        renderer.endResults();
+      }
+      timings.phase("render", startTime);
+    } catch (IOException e) {
+      System.err.println("Error writing the results.");
+      e.printStackTrace();
+      Metrics.counter("coordinator.errors").increment();
+      return 2;
+    } finally {
+      timings.finish(metricsLogFile);
+    }
+    
+    return 0;
+  }
+  
+  /**
+   * Get the search inputs as SearchNode request parameters.
+   */
+  private Map<String, String> nodeParameters() {
+    Map<String, String> parameters = new LinkedHashMap<String, String>();
+    parameters.put("q", commentQueryString);
+    parameters.put("rq", replyQueryString);
+    parameters.put("un", userNameString);
+    parameters.put("ui", userIdString);
+    parameters.put("vt", videoTitleString);
+    parameters.put("vi", videoIdString);
+    parameters.put("ct", channelTitleString);
+    parameters.put("ci", channelIdString);
+    parameters.put("from", fromDate);
+    parameters.put("to", toDate);
+    if (collapseDuplicates) parameters.put("cd", "1");
+    return parameters;
+  }
+  
+  /**
+   * Make a searcher over a reader of the index.
+   * 
+   * The searcher uses Lucene's default query cache, shared by all searchers in this JVM, so that
+   * hot filters (e.g. the ID set of a popular channel) are kept as bitsets across queries.
+   * 
+   * @param reader The reader (a MultiReader of the shards for a sharded index).
+   * @param sharded Whether the index is sharded.
+   * @param parallel Whether to search the segments in parallel.
+   * @return The searcher.
+   */
+  static IndexSearcher newSearcher(IndexReader reader, boolean sharded, boolean parallel) {
+    IndexSearcher searcher;
+    if (sharded || parallel) {
+      // Search all shards (and with -parallel, all segments) in parallel
+      searcher = ParallelIndexSearcher.create(reader, parallel);
+    } else {
+      searcher = new IndexSearcher(reader);
+    }
+    return searcher;
+  }
+  
+  /**
+   * Record the query in the query log (if enabled).
+   */
+  private void logQuery() {
+    if (queryLogFile == null) return;
+    QueryLog.Entry entry = new QueryLog.Entry(commentQueryString, replyQueryString, 
+                                              userNameString, userIdString, 
+                                              videoTitleString, videoIdString, 
+                                              channelTitleString, channelIdString, 
+                                              page, hitsPerPage);
+    entry.collapseDuplicates = collapseDuplicates;
+    entry.from = fromDate;
+    entry.to = toDate;
+    if (sortOrder != SortOrder.RELEVANCE) entry.sort = sortOrder.name();
+    if (groupBy != null) {
+      entry.groupBy = groupBy.name();
+      entry.groupHits = hitsPerGroup;
+    }
+    try {
+      QueryLog.append(queryLogFile, entry);
+    } catch (IOException e) {
+      System.err.println("Error writing to query log file " + queryLogFile);
+    }
+  }
+  
+  /**
+   * Open the reader of a search sorted by recency over the partitions of a time-partitioned
+   * index. The partitions are opened newest first, until they hold enough hits for the page:
+   * older partitions can only have hits ranking after these, and are left out of the search
+   * (so the total number of hits is then a lower bound). The hits of every partition are only
+   * counted up to the hits still needed, through the shared query cache and within the time
+   * budget, since the search itself counts them again.
+   * 
+   * @param numHits Number of hits needed (all hits up to the end of the page).
+   * @return A reader over the opened partitions (MultiReader, if there are several).
+   * @throws IOException
+   */
+  private IndexReader openRecentPartitions(int numHits) throws IOException {
+    List<IndexReader> partitionReaders = new ArrayList<IndexReader>();
+    int first = indexes.size();
+    try {
+      Query countQuery = budget == null ? finalQuery : budget.wrap(finalQuery);
+      int count = 0;
+      while (first > 0 && count < numHits) {
+        --first;
+        IndexReader partitionReader = DirectoryReader.open(indexes.get(first));
+        partitionReaders.add(0, partitionReader);
+        count += countUpTo(newSearcher(partitionReader, false, false), countQuery, 
+                           numHits - count);
+      }
+    } catch (IOException e) {
+      IOUtils.closeWhileHandlingException(partitionReaders);
+      throw e;
+    }
+    unsearchedDirs.addAll(indexDirs.subList(0, first));
+    prunedRecentPartitions = first > 0;
+    timings.attribute("partitions", partitionReaders.size());
+    Metrics.counter("retriever.prunedPartitions").add(first);
+    if (partitionReaders.size() == 1) return partitionReaders.get(0);
+    return new MultiReader(partitionReaders.toArray(new IndexReader[partitionReaders.size()]), 
+                           true);
+  }
+  
+  /**
+   * Count the hits of a query, stopping at a limit.
+   * 
+   * @return The number of hits, at most limit.
+   * @throws IOException
+   */
+  private static int countUpTo(IndexSearcher searcher, Query query, final int limit) 
+                                                                      throws IOException {
+    final int[] count = new int[1];
+    searcher.search(query, new SimpleCollector() {
+      @Override
+      protected void doSetNextReader(LeafReaderContext context) {
+        if (count[0] >= limit) throw new CollectionTerminatedException(); // skip the segment
+      }
+      
+      @Override
+      public void collect(int doc) {
+        if (++count[0] >= limit) throw new CollectionTerminatedException();
+      }
+      
+      @Override
+      public boolean needsScores() {
+        return false;
+      }
+    });
+    return count[0];
+  }
+  
+  /**
+   * Find a comment in the partitions of a time-partitioned index that were left out of the
+   * search (e.g. the parent of a reply published before the searched time range).
    * 
+   * @param commentId The comment ID.
+   * @return The document of the comment, or null if it is not indexed.
+   * @throws IOException
+   */
+  private Document findUnsearchedComment(String commentId) throws IOException {
+    if (unsearchedDirs.isEmpty()) return null;
+    if (unsearchedSearcher == null) {
+      unsearchedIndexes = IndexShards.openDirectories(unsearchedDirs, directoryMode);
+      unsearchedSearcher = new IndexSearcher(IndexShards.openReader(unsearchedIndexes));
+    }
+    TermQuery termQuery = new TermQuery(new Term("commentId", commentId));
+    ScoreDoc[] hits = unsearchedSearcher.search(termQuery, 1).scoreDocs;
+    return hits.length == 0 ? null : unsearchedSearcher.doc(hits[0].doc);
+  }
+  
+  /**
+   * Release the index reader, metadata and directory opened by a search.
+   */
+  private void close() {
+    try {
+      if (reader != null) reader.close();
+      if (unsearchedSearcher != null) unsearchedSearcher.getIndexReader().close();
+      if (openedMetadata != null) openedMetadata.close();
+      if (indexes != null) IOUtils.close(indexes);
+      if (unsearchedIndexes != null) IOUtils.close(unsearchedIndexes);
+    } catch (IOException e) {
+      System.err.println("Error closing index.");
+    }
+    reader = null;
+    unsearchedSearcher = null;
+    openedMetadata = null;
+    indexes = null;
+    unsearchedIndexes = null;
+  }
+  
+  /**
+   * Search for one page of hits.
+   * 
+   * Pages are reached by calling searchAfter() from the last hit of each previous page. If the
+   * page is out of range, the first page is returned.
+   * 
+   * @param searcher The IndexSearcher object.
+   * @param query The Query object.
+   * @param page The page number.
+   * @param hitsPerPage Number of hits per page.
+   * @return The hits of the page (totalHits is the total number of hits of the query).
+   * @throws IOException
+   */
+  static TopDocs searchPage(IndexSearcher searcher, Query query, int page, int hitsPerPage) 
+                                                                       throws IOException {
+    return searchPage(searcher, query, page, hitsPerPage, null);
+  }
+  
+  /**
+   * Search for one page of hits, recording the time spent in the "search" (first page) and
+   * "paginate" (following pages) phases.
+   * 
+   * @param timings Timings of the request (null to not record).
+   * @see #searchPage(IndexSearcher, Query, int, int)
+   */
+  static TopDocs searchPage(IndexSearcher searcher, Query query, int page, int hitsPerPage, 
+                            Metrics.Request timings) throws IOException {
+    return searchPage(searcher, query, page, hitsPerPage, null, timings);
+  }
+  
+  /**
+   * Search for one page of hits in a given order. The scores of the hits are computed in any
+   * order, for display.
+   * 
+   * If the segments of the index are sorted in that order (indexer option -index-sort), each
+   * segment is searched only up to the last hit of the page, and totalHits is a lower bound.
+   * 
+   * @param sort The order of the hits (null for the order of the scores).
+   * @see #searchPage(IndexSearcher, Query, int, int, Metrics.Request)
+   */
+  static TopDocs searchPage(IndexSearcher searcher, Query query, int page, int hitsPerPage, 
+                            Sort sort, Metrics.Request timings) throws IOException {
+    if (sort != null && terminatesEarly(searcher.getIndexReader(), sort)) {
+      return searchSortedPage(searcher, query, page, hitsPerPage, sort, timings);
+    }
+    long startTime = System.nanoTime();
+    TopDocs docs = sort == null ? searcher.search(query, hitsPerPage)
+                                : searcher.search(query, hitsPerPage, sort, true, false);
+    if (timings != null) timings.phase("search", startTime);
+    
+    if (page > 1 && (page - 1) * hitsPerPage < docs.totalHits) {
+      startTime = System.nanoTime();
+      for (int i = 0; i < page - 1 && docs.scoreDocs.length != 0; ++i) {
+        // (a search cut by its time budget may run out of hits before the page)
+        ScoreDoc lastHit = docs.scoreDocs[docs.scoreDocs.length - 1];
+        docs = sort == null ? searcher.searchAfter(lastHit, query, hitsPerPage)
+                            : searcher.searchAfter(lastHit, query, hitsPerPage, sort, true, false);
+      }
+      if (timings != null) timings.phase("paginate", startTime);
+    }
+    
+    return docs;
+  }
+  
+  /**
+   * Check whether the searches of an index in a given order can stop early in every segment:
+   * some segments are sorted in that order, and none in another.
+   * 
+   * @param reader The index.
+   * @param sort The order of the hits.
+   * @return true if searchPage() cuts the collection of the segments sorted in that order.
+   */
+  static boolean terminatesEarly(IndexReader reader, Sort sort) {
+    boolean sorted = false;
+    for (LeafReaderContext leaf : reader.leaves()) {
+      Sort indexSort = leaf.reader().getIndexSort();
+      if (indexSort == null) continue;
+      // (the collector refuses segments sorted in another order)
+      if (! EarlyTerminatingSortingCollector.canEarlyTerminate(sort, indexSort)) return false;
+      sorted = true;
+    }
+    return sorted;
+  }
+  
+  /**
+   * Search for one page of hits in the order of the index sort: the top hits of a segment are
+   * its first matching documents, so the collection of every segment stops after as many hits
+   * as the pages up to this one hold, whatever the number of matches. The pages are found in a
+   * single pass; if the page is out of range, the first page is returned.
+   * 
+   * @see #searchPage(IndexSearcher, Query, int, int, Sort, Metrics.Request)
+   */
+  private static TopDocs searchSortedPage(IndexSearcher searcher, Query query, int page, 
+                                          int hitsPerPage, final Sort sort, 
+                                          Metrics.Request timings) throws IOException {
+    long startTime = System.nanoTime();
+    final int numHits = page * hitsPerPage;
+    // the collectors of the slices of segments, and the top hits collectors they wrap
+    final Map<EarlyTerminatingSortingCollector, TopFieldCollector> collectors = 
+        Collections.synchronizedMap(
+            new LinkedHashMap<EarlyTerminatingSortingCollector, TopFieldCollector>());
+    TopFieldDocs[] segmentDocs = searcher.search(query, 
+        new CollectorManager<EarlyTerminatingSortingCollector, TopFieldDocs[]>() {
+          @Override
+          public EarlyTerminatingSortingCollector newCollector() throws IOException {
+            // Scores are tracked for display, and computed for the collected hits only
+            TopFieldCollector topHits = TopFieldCollector.create(sort, numHits, true, true, false);
+            EarlyTerminatingSortingCollector collector = 
+                new EarlyTerminatingSortingCollector(topHits, sort, numHits);
+            collectors.put(collector, topHits);
+            return collector;
+          }
+
+          @Override
+          public TopFieldDocs[] reduce(Collection<EarlyTerminatingSortingCollector> slices) {
+            TopFieldDocs[] docs = new TopFieldDocs[slices.size()];
+            int i = 0;
+            for (EarlyTerminatingSortingCollector collector : slices) {
+              docs[i++] = collectors.get(collector).topDocs();
+            }
+            return docs;
+          }
+        });
+    TopDocs docs = TopDocs.merge(sort, (page - 1) * hitsPerPage, hitsPerPage, segmentDocs, true);
+    if (docs.scoreDocs.length == 0 && page > 1) {
+      docs = TopDocs.merge(sort, 0, hitsPerPage, segmentDocs, true);
+    }
+    if (timings != null) {
+      timings.phase("search", startTime);
+      for (EarlyTerminatingSortingCollector collector : collectors.keySet()) {
+        if (collector.terminatedEarly()) {
+          timings.attribute("terminatedEarly", true);
+          Metrics.counter("retriever.terminatedEarly").increment();
+          break;
+        }
+      }
+    }
+    return docs;
+  }
+  
+  /**
+   * Check whether any segment of the index has sorted doc values for a field.
+   */
+  private static boolean hasSortedDocValues(IndexReader reader, String field) {
+    FieldInfo fieldInfo = MultiFields.getMergedFieldInfos(reader).fieldInfo(field);
+    return fieldInfo != null && fieldInfo.getDocValuesType() == DocValuesType.SORTED;
+  }
+  
+  /**
+   * Search for one page of groups of hits: the hits are grouped by the value of a sorted doc
+   * values field, the groups are ranked by their best hit, and every group keeps its best hits.
+   * 
+   * The hits of the query are collected once: the first pass (finding the top groups, and
+   * counting all groups) caches them, and the second pass (collecting the hits of the top
+   * groups) replays them from the cache, up to GROUPING_CACHE_MB. If the page is out of range,
+   * the first page is returned.
+   * 
+   * @param searcher The IndexSearcher object.
+   * @param query The Query object.
+   * @param groupField The sorted doc values field holding the group keys.
+   * @param page The page number.
+   * @param groupsPerPage Number of groups per page.
+   * @param hitsPerGroup Maximum number of hits of every group.
+   * @param timings Timings of the request.
+   * @return The groups of the page (totalGroupCount is the total number of groups).
+   * @throws IOException
+   */
+  static TopGroups<BytesRef> searchGroups(IndexSearcher searcher, Query query, String groupField, 
+                                          int page, int groupsPerPage, int hitsPerGroup, 
+                                          Metrics.Request timings) throws IOException {
+    long startTime = System.nanoTime();
+    GroupingSearch groupingSearch = new GroupingSearch(groupField);
+    groupingSearch.setGroupDocsLimit(hitsPerGroup);
+    groupingSearch.setAllGroups(true);
+    groupingSearch.setCachingInMB(GROUPING_CACHE_MB, true);
+    TopGroups<BytesRef> groups = 
+        groupingSearch.search(searcher, query, (page - 1) * groupsPerPage, groupsPerPage);
+    if (groups.groups.length == 0 && page > 1) {
+      groups = groupingSearch.search(searcher, query, 0, groupsPerPage);
+    }
+    timings.phase("search", startTime);
+    return groups;
+  }
+  
+  /**
+   * Search for one page of hits with near-duplicates collapsed: the hits are grouped by cluster
+   * ID, and every group is represented by its best hit.
+   * 
+   * The groups of the requested page are found in one grouping search, however many duplicates
+   * rank before them. If the page is out of range, the first page is returned.
+   * 
+   * @param searcher The IndexSearcher object.
+   * @param query The Query object.
+   * @param page The page number.
+   * @param hitsPerPage Number of hits per page.
+   * @param timings Timings of the request.
+   * @return The best hits of the groups of the page (totalHits is the number of groups).
+   * @throws IOException
+   */
+  private static TopDocs searchCollapsedPage(IndexSearcher searcher, Query query, int page, 
+                                             int hitsPerPage, Metrics.Request timings) 
+                                                                       throws IOException {
+    TopGroups<BytesRef> groups = searchGroups(searcher, query, NearDuplicates.CLUSTER_ID_FIELD, 
+                                              page, hitsPerPage, 1, timings);
+    ScoreDoc[] scoreDocs = new ScoreDoc[groups.groups.length];
+    float maxScore = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < scoreDocs.length; ++i) {
+      GroupDocs<BytesRef> group = groups.groups[i];
+      scoreDocs[i] = group.scoreDocs[0];
+      maxScore = Math.max(maxScore, group.maxScore);
+    }
+    int totalGroupCount = groups.totalGroupCount != null ? groups.totalGroupCount : 0;
+    Metrics.counter("retriever.collapsedHits").add(groups.totalHitCount - totalGroupCount);
+    return new TopDocs(totalGroupCount, scoreDocs, scoreDocs.length == 0 ? Float.NaN : maxScore);
+  }
+  
+  /**
+   * Output results through a renderer
+   * 
+   * @param renderer The renderer to output the results with
    * @param results The hits to display
-   * @param page The page number (used for the number before each result)
+   * @param firstRank The rank of the first result (the number before each result)
    * @param query Query object (used for highlighting search terms in results)
    * @throws IOException 
    */
-  private void outputResults(ScoreDoc[] results, int page, Query query) throws IOException {
+  private void outputResults(ResultRenderer renderer, ScoreDoc[] results, int firstRank, 
+                             Query query) throws IOException {
     if (searcher.getIndexReader().maxDoc() == 0) {
       System.err.println("No document in the index!");
       return;
     }
     
     for(int i = 0; i < results.length; ++i) {
+        long startTime = System.nanoTime();
         int docId = results[i].doc;
-        Document doc = searcher.doc(docId);
+        Document doc = loadDoc(docId);
+        timings.phase("fetch", startTime);
         
         // Get highlighted result
-        String highlightedText;
-        if (commentQueryString != null && ! commentQueryString.isEmpty()) {
+        startTime = System.nanoTime();
+        String highlightedText = null;
+        // Hits rendered after the time budget ran out are not highlighted
+        if (commentQueryString != null && ! commentQueryString.isEmpty() 
+            && (budget == null || ! budget.hasRunOut())) {
           try {
             highlightedText = getHighlightedField(query, analyzer, 
                                                   "commentText", doc.get("commentText"));
           } catch (InvalidTokenOffsetsException e) {
-            highlightedText = doc.get("commentText");
+            highlightedText = null;
           }
-        } else {
-          // Don't call getHighlightedField() if there is no search on the field "commentText"!
-          // See the NOTE section of the Javadoc of getHighlightedField().
-          highlightedText = doc.get("commentText");
         }
+        // Don't call getHighlightedField() if there is no search on the field "commentText"!
+        // See the NOTE section of the Javadoc of getHighlightedField().
+        timings.phase("highlight", startTime);
         
         // Get parent comment
+        startTime = System.nanoTime();
         String parentId = doc.get("parentId");
-        String parentUserId = "Not Indexed";
-        String parentUserName = "Not Indexed";
-        String parentComment = "Not Indexed";
-        if (! parentId.isEmpty()) {
+        Document parentDoc = null;
+        if (blockIndex) {
+          // The parent is the top-level comment ending the block of the thread
+          int threadDoc = ThreadBlocks.threadDoc(searcher.getIndexReader(), docId);
+          if (threadDoc >= 0 && threadDoc != docId) {
+            parentDoc = loadDoc(threadDoc);
+          }
+        } else if (! parentId.isEmpty() && useColumns) {
+          int parent = DocColumns.findComment(searcher.getIndexReader(), parentId);
+          if (parent >= 0) {
+            parentDoc = loadDoc(parent);
+          }
+        } else if (! parentId.isEmpty()) {
           TermQuery termQuery = new TermQuery(new Term("commentId", parentId));
           ScoreDoc[] parentResults = searcher.search(termQuery, 1).scoreDocs;
           if (parentResults.length != 0) {
-            int parentDocId = parentResults[0].doc;
-            parentUserId = searcher.doc(parentDocId).get("userId");
-            parentUserName = searcher.doc(parentDocId).get("userName");
-            parentComment = searcher.doc(parentDocId).get("commentText");
+            parentDoc = searcher.doc(parentResults[0].doc);
+          } else {
+            parentDoc = findUnsearchedComment(parentId);
           }
         }
+        timings.phase("parents", startTime);
         
-        // The font is the same as that used by Youtube comments
-        String html = "<p style='font-family:Roboto,Arial,sans-serif;'>"
-                        + "<span style='font-size:1.3rem;font-weight:bold;'>"
-                          + "<i>" 
-                            + (i + 1 + (page - 1) * hitsPerPage) 
-                          + "</i>. " 
-                          + "<a href=\"https://www.youtube.com/channel/"
-                            + doc.get("userId")
-                          + "\">"
-                            + "<img src=\""
-                              + doc.get("profilePicture")
-                            + "\" width=20 height=20>"
-                            + doc.get("userName") 
-                          + "</a>"
-                        + "</span>"
-                        + " commented:<br>"
-                        + "<table style='font-family:Roboto,Arial,sans-serif;'>"
-                        + "<td valign='top'>"
-                          + "<a href=\"https://www.youtube.com/watch?v="
-                            + doc.get("videoId")
-                          + "\">"
-                            + "<img src=\""
-                              + doc.get("videoThumbnail")
-                            + "\">"
-                          + "</a>"
-                        + "</td>"
-                        + "<td valign='top'>"
-                          + "<a href=\"https://www.youtube.com/watch?v="
-                            + doc.get("videoId")
-                            + "&lc="
-                            + doc.get("commentId")
-                          + "\">"
-                            + "<span style='font-size:1.0rem;margin-left:2em;'>\"" 
-                              + highlightedText
-                            + "\"</span>"
-                          + "</a>";
-        
-        if (! parentId.isEmpty()) {
-          html += "<span style='font-size:0.7rem;font-weight:bold;'>" 
-                  + "<br>&nbsp in reply to the following comment by "
-                  + "<a href=\"https://www.youtube.com/channel/"
-                    + parentUserId
-                  + "\">"
-                    + parentUserName
-                  + "</a>: <br>"
-                + "</span>"
-                + "<a href=\"https://www.youtube.com/watch?v="
-                  + doc.get("videoId")
-                  + "&lc="
-                  + parentId
-                + "\">"
-                  + "<span style='font-size:0.9rem;margin-left:2em;'>\"" 
-                    + parentComment
-                  + "\"</span>"
-                + "</a>";
+        if (metadata != null) {
+          startTime = System.nanoTime();
+          metadata.join(doc);
+          if (parentDoc != null) metadata.join(parentDoc);
+          timings.phase("metadata", startTime);
         }
         
-        html += "<span style='font-size:1.0rem;font-weight:bold;'>" 
-                + "<br>&nbsp on video titled: "
-              + "</span>"
-              + "<a href=\"https://www.youtube.com/watch?v="
-                + doc.get("videoId")
-              + "\">"
-                + "<span style='font-size:1.0rem;font-weight:bold;'>"
-                  + doc.get("videoTitle")
-                + "</span>"
-              + "</a>"
-                + "<span style='font-size:0.7rem;font-weight:bold;'>" 
-                + "<br>&nbsp from channel: "
-                + "<a href=\"https://www.youtube.com/channel/"
-                  + doc.get("channelId")
-                + "\">"
-                  + doc.get("channelTitle")
-                + "</a><br>"
-              + "</span>"
-            + "</td>"
-          + "</table>"
-          + "</p>";
-          
-        System.out.println(html);
-    }
-  }
-  
-  /**
-   * Prints out the interactive pagination in HTML format
-   * 
-   * @param numTotalHits Total number of results
-   */
-  private void outputPagination(int numTotalHits) {
-    final int PEEK_RANGE = 9;
-    
-    if (numTotalHits == 0) return;
-    
-    int lastPage = numTotalHits / hitsPerPage + (numTotalHits % hitsPerPage != 0 ? 1 : 0);
+        startTime = System.nanoTime();
+        renderer.result(firstRank + i, results[i].score, 
+                        doc, highlightedText, parentDoc);
+        if (i == 0) {
+          // Let the first result reach the client before the rest of the page is rendered
+          renderer.flush();
+        }
+        timings.phase("render", startTime);
+    }
+  }
+  
+  /**
+   * Output groups of results through a renderer
+   * 
+   * @param renderer The renderer to output the groups with
+   * @param groups The groups of the page
+   * @param page The page number (used for the number before each group)
+   * @param query Query object (used for highlighting search terms in results)
+   * @throws IOException 
+   */
+  private void outputGroups(ResultRenderer renderer, TopGroups<BytesRef> groups, int page, 
+                            Query query) throws IOException {
+    for (int i = 0; i < groups.groups.length; ++i) {
+      GroupDocs<BytesRef> group = groups.groups[i];
+      long startTime = System.nanoTime();
+      String groupValue = group.groupValue == null ? "" : group.groupValue.utf8ToString();
+      renderer.beginGroup(i + 1 + (page - 1) * hitsPerPage, groupBy, groupValue, 
+                          group.totalHits);
+      timings.phase("render", startTime);
+      outputResults(renderer, group.scoreDocs, 1, query);
+      startTime = System.nanoTime();
+      renderer.endGroup();
+      timings.phase("render", startTime);
+    }
+  }
+  
+  /**
+   * Load the stored fields of a document, with the IDs and counts from the DocColumns cache when
+   * it is used.
+   */
+  private Document loadDoc(int docId) throws IOException {
+    return useColumns ? DocColumns.document(searcher.getIndexReader(), docId) 
+                      : searcher.doc(docId);
+  }
+  
+  /**
+   * Output the whole thread of a comment: the top-level comment, then the replies.
+   * 
+   * @param output The output to render the thread to (closed when done).
+   * @throws IOException
+   */
+  private void outputThread(Writer output) throws IOException {
+    long startTime = System.nanoTime();
+    int[] threadDocs = findThread(threadCommentId);
+    timings.phase("thread", startTime);
+    timings.attribute("totalHits", threadDocs.length);
     
-    String html = "";
-    if (lastPage != 1) {
-      html += "&nbsp&nbsp";
-      if (page != 1) {
-        html += printPageLink(1, "First") + "&nbsp&nbsp"
-                + printPageLink(page - 1, "Prev");
-      }
-      
-      if (page > 1 + PEEK_RANGE) {
-        html += " ...";
-      } else {
-        html += "&nbsp&nbsp";
-      }
-      
-      for (int i = Math.max(page - PEEK_RANGE, 1); i < page; ++i) {
-        html += printPageLink(i, String.valueOf(i)) + "&nbsp&nbsp";
+    try (ResultRenderer renderer = ResultRenderer.create(outputFormat, output, 
+                                                         webpageUrl, buildLinkParameters())) {
+      startTime = System.nanoTime();
+      renderer.beginResults(commentQueryString, null, threadDocs.length, 
+                            1, Math.max(threadDocs.length, 1));
+      Document threadDoc = null;
+      for (int i = 0; i < threadDocs.length; ++i) {
+        Document doc = loadDoc(threadDocs[i]);
+        if (metadata != null) metadata.join(doc);
+        if (i == 0) threadDoc = doc;
+        renderer.result(i + 1, 0, doc, null, i == 0 ? null : threadDoc);
       }
-      
-      html += String.valueOf(page);
-      
-      for (int i = page + 1; i <= Math.min(page + PEEK_RANGE, lastPage); ++i) {
-        html += "&nbsp&nbsp" + printPageLink(i, String.valueOf(i));
-      }
-
-      if (page < lastPage - PEEK_RANGE) {
-        html += "... ";
-      } else {
-        html += "&nbsp&nbsp";
+      renderer.endResults();
+      timings.phase("render", startTime);
+    }
+  }
+  
+  /**
+   * Output a page of the comments most similar to the comment similarCommentId, most similar
+   * first, with their similarity as score. They are found in the similarity graphs of the
+   * searched sub-indexes, then looked up in the index through the query and filters.
+   * 
+   * @return status code (0 for success).
+   * @throws IOException
+   */
+  private int outputSimilar(Writer output) throws IOException {
+    long startTime = System.nanoTime();
+    ScoreDoc[] hits = searcher.search(new TermQuery(new Term("commentId", similarCommentId)), 1)
+                              .scoreDocs;
+    if (hits.length == 0) {
+      System.err.println("No comment with ID " + similarCommentId + " in the index.");
+      return 1;
+    }
+    String text = searcher.doc(hits[0].doc).get("commentText");
+    boolean filtered = ! finalQuery.clauses().isEmpty();
+    // The comment itself is found too
+    int numNeighbors = (page * hitsPerPage + 1) * (filtered ? SIMILAR_FILTER_FACTOR : 1);
+    List<SimilarComments.Neighbor> neighbors;
+    List<File> dirs = indexDirs != null ? indexDirs : IndexShards.indexDirs(indexDir);
+    try (SimilarComments similarComments = SimilarComments.open(dirs, directoryMode)) {
+      if (similarComments == null) {
+        System.err.println("The index has no similarity graph; "
+                           + "update it with the indexer option -similar.");
+        return 1;
       }
-      
-      if (page != lastPage) {
-        html += printPageLink(page + 1, "Next") + "&nbsp&nbsp"
-                + printPageLink(lastPage, "Last");
-                
+      neighbors = similarComments.search(text, numNeighbors);
+    }
+    timings.phase("similar", startTime);
+    
+    startTime = System.nanoTime();
+    List<BytesRef> ids = new ArrayList<BytesRef>();
+    for (SimilarComments.Neighbor neighbor : neighbors) {
+      ids.add(new BytesRef(neighbor.commentId));
+    }
+    BooleanQuery.Builder lookupQuery = new BooleanQuery.Builder();
+    lookupQuery.add(new TermInSetQuery("commentId", ids), Occur.FILTER);
+    if (filtered) lookupQuery.add(finalQuery, Occur.FILTER);
+    Map<String, Integer> docIds = new HashMap<String, Integer>();
+    Set<String> idField = Collections.singleton("commentId");
+    for (ScoreDoc hit : searcher.search(lookupQuery.build(), Math.max(ids.size(), 1)).scoreDocs) {
+      docIds.put(searcher.doc(hit.doc, idField).get("commentId"), hit.doc);
+    }
+    List<ScoreDoc> similar = new ArrayList<ScoreDoc>();
+    for (SimilarComments.Neighbor neighbor : neighbors) {
+      Integer docId = docIds.get(neighbor.commentId);
+      if (docId != null && ! neighbor.commentId.equals(similarCommentId)) {
+        similar.add(new ScoreDoc(docId, neighbor.similarity));
       }
     }
+    // An out-of-range page shows the first page
+    int first = (page - 1) * hitsPerPage < similar.size() ? (page - 1) * hitsPerPage : 0;
+    List<ScoreDoc> results = similar.subList(first, Math.min(first + hitsPerPage, similar.size()));
+    timings.phase("search", startTime);
+    timings.attribute("totalHits", similar.size());
+    timings.attribute("page", page);
     
-    html += "<br><span style='margin-left:1em'>"
-             + "Displaying results " + (hitsPerPage * (page - 1) + 1) + " ~ "
-             + (hitsPerPage * (page - 1) + hitsPerPage)
-             + " (page " + page + " of " + lastPage + ")"
-             + "<br></span>";
-        
-    System.out.println(html);
+    try (ResultRenderer renderer = ResultRenderer.create(outputFormat, output, 
+                                                         webpageUrl, buildLinkParameters())) {
+      startTime = System.nanoTime();
+      // More similar comments are found for the next pages
+      if (neighbors.size() == numNeighbors) renderer.totalHitsLowerBound();
+      renderer.maxDepth(maxDepth);
+      renderer.beginResults(commentQueryString, null, similar.size(), 
+                            first / hitsPerPage + 1, hitsPerPage);
+      timings.phase("render", startTime);
+      outputResults(renderer, results.toArray(new ScoreDoc[results.size()]), first + 1, 
+                    finalQuery);
+      startTime = System.nanoTime();
+      renderer.endResults();
+      timings.phase("render", startTime);
+    }
+    return 0;
+  }
+  
+  /**
+   * Find the documents of the thread of a comment.
+   * 
+   * In an index of thread blocks the thread is read from the block of the comment; otherwise the
+   * top-level comment and the replies are searched by ID.
+   * 
+   * @param commentId ID of a comment of the thread.
+   * @return The doc IDs of the top-level comment and then of the replies (empty if not found).
+   * @throws IOException
+   */
+  private int[] findThread(String commentId) throws IOException {
+    ScoreDoc[] hits = searcher.search(new TermQuery(new Term("commentId", commentId)), 1)
+                              .scoreDocs;
+    if (hits.length == 0) return new int[0];
+    if (blockIndex) {
+      return ThreadBlocks.threadDocs(searcher.getIndexReader(), hits[0].doc);
+    }
+    
+    String parentId = searcher.doc(hits[0].doc).get("parentId");
+    String threadId = parentId == null || parentId.isEmpty() ? commentId : parentId;
+    ScoreDoc[] top = searcher.search(new TermQuery(new Term("commentId", threadId)), 1)
+                             .scoreDocs;
+    TermQuery repliesQuery = new TermQuery(new Term("parentId", threadId));
+    int numReplies = searcher.count(repliesQuery);
+    ScoreDoc[] replies = numReplies == 0 ? new ScoreDoc[0] 
+        : searcher.search(repliesQuery, numReplies, Sort.INDEXORDER).scoreDocs;
+    int[] docIds = new int[top.length + replies.length];
+    if (top.length != 0) docIds[0] = top[0].doc;
+    for (int i = 0; i < replies.length; ++i) {
+      docIds[top.length + i] = replies[i].doc;
+    }
+    return docIds;
   }
   
   /**
-   * Prints the HTML hyperlink for a page
+   * Open the buffered output that results are rendered to.
    * 
-   * @param page The page number to link to.
-   * @param anchorText The anchor text to display for the link.
-   * @return HTML code of a link.
+   * @return A buffered UTF-8 writer on the standard output.
    */
-  private String printPageLink(int pageNumber, String anchorText) {
-    String html;
-    html = "<a href=\"" 
-           + webpageUrl 
-           + "?page=" + pageNumber
-           + "&max=" + hitsPerPage
-           + "&commentQuery=" + commentQueryString_urlEncoded
-           + "&usernameQuery=" + userNameString_urlEncoded
-           + "&userIdQuery=" + userIdString
-           + "&videoTitleQuery=" + videoTitleString_urlEncoded
-           + "&videoIdQuery=" + videoIdString
-           + "&channelTitleQuery=" + channelTitleString_urlEncoded
-           + "&channelIdQuery=" + channelIdString
-           + "\">"
-           + anchorText
-           + "</a>";
-    return html;
+  private static Writer openOutput() {
+    return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 
+                              OUTPUT_BUFFER_SIZE);
   }
   
   /**
@@ -492,38 +1341,43 @@ private File dictionaryPath;
   
   /*
    * URL Encode user inputs for potentially secondary HTTP calls (clicking on links).
-   * Used in re-search links, i.e. pagination links and the suggestion link
+   * Used in re-search links, i.e. pagination links and the suggestion link, so that they repeat
+   * the same search: the filters, then the other options that change the hits (only when set)
    */
-  void urlEncodeUserInputs() {
-    try {
-      commentQueryString_urlEncoded = URLEncoder.encode(commentQueryString, 
-                                                        StandardCharsets.UTF_8.toString()); 
-    } catch (UnsupportedEncodingException ex) {
-      commentQueryString_urlEncoded = commentQueryString;
-    }
-    try {
-      userNameString_urlEncoded = URLEncoder.encode(userNameString, 
-                                                    StandardCharsets.UTF_8.toString()); 
-    } catch (UnsupportedEncodingException ex) {
-      userNameString_urlEncoded = userNameString;
-    }
-    try {
-      videoTitleString_urlEncoded = URLEncoder.encode(videoTitleString, 
-                                                      StandardCharsets.UTF_8.toString()); 
-    } catch (UnsupportedEncodingException ex) {
-      videoTitleString_urlEncoded = videoTitleString;
+  private String buildLinkParameters() {
+    StringBuilder parameters = new StringBuilder();
+    parameters.append("&usernameQuery=").append(HtmlResultRenderer.urlEncode(userNameString))
+              .append("&userIdQuery=").append(HtmlResultRenderer.urlEncode(userIdString))
+              .append("&videoTitleQuery=").append(HtmlResultRenderer.urlEncode(videoTitleString))
+              .append("&videoIdQuery=").append(HtmlResultRenderer.urlEncode(videoIdString))
+              .append("&channelTitleQuery=")
+              .append(HtmlResultRenderer.urlEncode(channelTitleString))
+              .append("&channelIdQuery=").append(HtmlResultRenderer.urlEncode(channelIdString));
+    appendLinkParameter(parameters, "replyQuery", replyQueryString);
+    appendLinkParameter(parameters, "fromDate", fromDate);
+    appendLinkParameter(parameters, "toDate", toDate);
+    if (sortOrder != SortOrder.RELEVANCE) {
+      appendLinkParameter(parameters, "sort", sortOrder.name());
     }
-    try {
-      channelTitleString_urlEncoded = URLEncoder.encode(channelTitleString, 
-                                                        StandardCharsets.UTF_8.toString()); 
-    } catch (UnsupportedEncodingException ex) {
-      channelTitleString_urlEncoded = channelTitleString;
+    if (collapseDuplicates) appendLinkParameter(parameters, "collapseDuplicates", "1");
+    if (groupBy != null) {
+      appendLinkParameter(parameters, "groupBy", groupBy.name());
+      appendLinkParameter(parameters, "groupHits", Integer.toString(hitsPerGroup));
     }
+    appendLinkParameter(parameters, "similarTo", similarCommentId);
+    return parameters.toString();
+  }
+  
+  private static void appendLinkParameter(StringBuilder parameters, String name, String value) {
+    if (value == null || value.isEmpty()) return;
+    parameters.append('&').append(name).append('=').append(HtmlResultRenderer.urlEncode(value));
   }
   
   /**
    * Mark highlights in a field with a given query.
    * 
+   * The content is HTML-escaped, so the returned result can be output as HTML directly.
+   * 
    * Note the query must have a clause that searches the given field, otherwise the returned result
    * will be null instead of the original content without highlight (even if there are clauses that
    * search for other fields in the query)
@@ -536,21 +1390,45 @@ private File dictionaryPath;
    * @throws IOException 
    * @throws InvalidTokenOffsetsException
    */
-  private static String getHighlightedField(Query query, Analyzer analyzer, 
-                                            String fieldName, String fieldValue) 
-                                         throws IOException, InvalidTokenOffsetsException {
+  static String getHighlightedField(Query query, Analyzer analyzer, 
+                                    String fieldName, String fieldValue) 
+                                 throws IOException, InvalidTokenOffsetsException {
     Formatter formatter = new SimpleHTMLFormatter("<b>", "</b>");
-    QueryScorer queryScorer = new QueryScorer(query);
-    Highlighter highlighter = new Highlighter(formatter, queryScorer);
+    QueryScorer queryScorer = new QueryScorer(query) {
+      @Override
+      protected WeightedSpanTermExtractor newTermExtractor(String defaultField) {
+        return new WeightedSpanTermExtractor(defaultField) {
+          @Override
+          protected void extract(Query query, float boost, Map<String, WeightedSpanTerm> terms)
+                                                                          throws IOException {
+            // Highlight the words of the text, not the terms of the sub-field standing for them
+            if (query instanceof SubFieldQuery) query = ((SubFieldQuery) query).getFallback();
+            super.extract(query, boost, terms);
+          }
+        };
+      }
+    };
+    Highlighter highlighter = new Highlighter(formatter, new SimpleHTMLEncoder(), queryScorer);
     highlighter.setTextFragmenter(new SimpleSpanFragmenter(queryScorer, Integer.MAX_VALUE));
     highlighter.setMaxDocCharsToAnalyze(Integer.MAX_VALUE);
     return highlighter.getBestFragment(analyzer, fieldName, fieldValue);
 }
   
-  private int parseArgs(String[] args) {
+  @SuppressWarnings("deprecation")
+  int parseArgs(String[] args) {
     final CmdLineParser args4jCmdLineParser = new CmdLineParser(this);
     try {
       args4jCmdLineParser.parseArgument(args);
+      if (indexDir == null && nodeList == null && ! printHelp) 
+        throw new CmdLineException("Must provide an index (-i) or search nodes (-nodes).");
+      if (hitsPerGroup < 1)
+        throw new CmdLineException("The number of hits per group must be at least 1.");
+      if (timeBudgetMillis < 0 || maxDepth < 0)
+        throw new CmdLineException("The time budget and the maximum depth can't be negative.");
+      if (maxTerms < 1)
+        throw new CmdLineException("The maximum number of terms must be at least 1.");
+      if (fromDate != null) fromTime = parseDay(fromDate, 0);
+      if (toDate != null) toTime = parseDay(toDate, 1) - 1; // up to the end of the day
     } catch (final CmdLineException e) {
       System.err.println(e.getMessage());
       System.err.println("Usage:");
@@ -567,6 +1445,24 @@ private File dictionaryPath;
     return 0;
   }
   
+  /**
+   * Parse a day of the -from and -to options.
+   * 
+   * @param day The day, as YYYY-MM-DD (UTC).
+   * @param plusDays Number of days to add.
+   * @return The start of the resulting day, in milliseconds since the epoch.
+   * @throws CmdLineException The day is malformed.
+   */
+  @SuppressWarnings("deprecation")
+  static long parseDay(String day, int plusDays) throws CmdLineException {
+    try {
+      return LocalDate.parse(day).plusDays(plusDays).atStartOfDay(ZoneOffset.UTC).toInstant()
+                      .toEpochMilli();
+    } catch (DateTimeParseException e) {
+      throw new CmdLineException("Malformed day \"" + day + "\" (expected YYYY-MM-DD).");
+    }
+  }
+  
   /**
    * Retriever Entry point.
    * 